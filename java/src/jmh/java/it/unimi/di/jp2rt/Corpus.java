@@ -0,0 +1,86 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import org.openscience.cdk.exception.InvalidSmilesException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesParser;
+
+/**
+ * The molecule corpora used by the benchmarks.
+ *
+ * <p>Every corpus is a resource containing a SMILES per line; the available corpora are {@code
+ * small} (a few heavy atoms), {@code druglike} (common drugs) and {@code large} (macrolides,
+ * peptides and lipids).
+ */
+final class Corpus {
+
+  private Corpus() {}
+
+  /**
+   * Returns the SMILES of the given corpus.
+   *
+   * @param name the name of the corpus.
+   * @return the SMILES of the corpus.
+   */
+  static List<String> smiles(final String name) {
+    final InputStream in =
+        Objects.requireNonNull(
+            Corpus.class.getResourceAsStream("corpus/" + name + ".smi"), "Unknown corpus " + name);
+    try (BufferedReader reader =
+        new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+      return reader.lines().map(String::strip).filter(s -> !s.isEmpty()).toList();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns the parsed molecules of the given corpus.
+   *
+   * @param name the name of the corpus.
+   * @return the molecules of the corpus.
+   * @throws IllegalStateException if some SMILES of the corpus can't be parsed.
+   */
+  static IAtomContainer[] molecules(final String name) {
+    final SmilesParser parser = new SmilesParser(SilentChemObjectBuilder.getInstance());
+    return smiles(name).stream()
+        .map(
+            s -> {
+              try {
+                return parser.parseSmiles(s);
+              } catch (InvalidSmilesException e) {
+                throw new IllegalStateException("Invalid SMILES in corpus " + name + ": " + s, e);
+              }
+            })
+        .toArray(IAtomContainer[]::new);
+  }
+}
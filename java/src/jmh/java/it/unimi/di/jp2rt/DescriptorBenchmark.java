@@ -0,0 +1,129 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.qsar.IMolecularDescriptor;
+
+/**
+ * Measures the time needed by every {@link WrappedMolecularDescriptor} to compute a molecule, on
+ * the small, drug-like and large {@link Corpus corpora}; every invocation computes the next
+ * molecule of the corpus, cyclically.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DescriptorBenchmark {
+
+  @Param({
+    "AcidicGroupCountDescriptor",
+    "ALOGPDescriptor",
+    "AminoAcidCountDescriptor",
+    "APolDescriptor",
+    "AromaticAtomsCountDescriptor",
+    "AromaticBondsCountDescriptor",
+    "AtomCountDescriptor",
+    "AutocorrelationDescriptorCharge",
+    "AutocorrelationDescriptorMass",
+    "AutocorrelationDescriptorPolarizability",
+    "BasicGroupCountDescriptor",
+    "BCUTDescriptor",
+    "BondCountDescriptor",
+    "BPolDescriptor",
+    "CarbonTypesDescriptor",
+    "ChiChainDescriptor",
+    "ChiClusterDescriptor",
+    "ChiPathClusterDescriptor",
+    "ChiPathDescriptor",
+    "EccentricConnectivityIndexDescriptor",
+    "FMFDescriptor",
+    "FractionalCSP3Descriptor",
+    "FractionalPSADescriptor",
+    "FragmentComplexityDescriptor",
+    "HBondAcceptorCountDescriptor",
+    "HBondDonorCountDescriptor",
+    "HybridizationRatioDescriptor",
+    "JPlogPDescriptor",
+    "KappaShapeIndicesDescriptor",
+    "KierHallSmartsDescriptor",
+    "LargestChainDescriptor",
+    "LargestPiSystemDescriptor",
+    "MannholdLogPDescriptor",
+    "MDEDescriptor",
+    "PetitjeanNumberDescriptor",
+    "PetitjeanShapeIndexDescriptor",
+    "RotatableBondsCountDescriptor",
+    "RuleOfFiveDescriptor",
+    "SmallRingDescriptor",
+    "SpiroAtomCountDescriptor",
+    "TPSADescriptor",
+    "VAdjMaDescriptor",
+    "WeightDescriptor",
+    "WeightedPathDescriptor",
+    "WienerNumbersDescriptor",
+    "XLogPDescriptor",
+    "ZagrebIndexDescriptor"
+  })
+  public String descriptor;
+
+  @Param({"small", "druglike", "large"})
+  public String corpus;
+
+  private WrappedMolecularDescriptor wd;
+  private IAtomContainer[] molecules;
+  private double[] dest;
+  private int next;
+
+  @Setup
+  public void setup() throws ReflectiveOperationException {
+    wd =
+        new WrappedMolecularDescriptor(
+            Class.forName("org.openscience.cdk.qsar.descriptors.molecular." + descriptor)
+                .asSubclass(IMolecularDescriptor.class)
+                .getDeclaredConstructor()
+                .newInstance());
+    molecules = Corpus.molecules(corpus);
+    dest = new double[wd.numDescriptors()];
+  }
+
+  @Benchmark
+  public double[] calculate() {
+    wd.calculate(molecules[next], dest, 0);
+    if (++next == molecules.length) next = 0;
+    return dest;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the end-to-end throughput of the computation from an input file to an output file, at
+ * different levels of parallelism, using a parallel stream (in the common pool), an unordered
+ * {@link Pipeline}, an ordered one, and an unordered one scheduling the longest lines first.
+ *
+ * <p>The input file contains the molecules of all the {@link Corpus corpora}, repeated to obtain
+ * {@link #MOLECULES} lines; in the {@code mixed} layout the corpora are interleaved, while in the
+ * {@code skewed} layout the lines are small and drug-like molecules, followed by a single block of
+ * large ones at the end of the file (the typical cause of a run ending with a single busy thread).
+ * The reported score is the average time per molecule.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class EndToEndBenchmark {
+
+  /** The number of molecules (lines) of the input file. */
+  public static final int MOLECULES = 1000;
+
+  @Param({"1", "2", "4", "8"})
+  public int parallelism;
+
+  @Param({"stream", "pipeline", "ordered", "longest-first"})
+  public String mode;
+
+  @Param({"mixed", "skewed"})
+  public String layout;
+
+  private Path dir;
+  private String inPath;
+  private String outPath;
+  private ForkJoinPool pool;
+
+  @Setup
+  public void setup() throws IOException {
+    final List<String> smiles = new ArrayList<>();
+    for (String corpus : List.of("small", "druglike")) smiles.addAll(Corpus.smiles(corpus));
+    final List<String> large = Corpus.smiles("large");
+    final List<String> lines = new ArrayList<>(MOLECULES);
+    if (layout.equals("skewed")) {
+      for (int i = 0; i < MOLECULES - large.size(); i++)
+        lines.add(i + "\t" + smiles.get(i % smiles.size()));
+      for (String s : large) lines.add(lines.size() + "\t" + s);
+    } else {
+      smiles.addAll(large);
+      for (int i = 0; i < MOLECULES; i++) lines.add(i + "\t" + smiles.get(i % smiles.size()));
+    }
+    dir = Files.createTempDirectory("jp2rt-bench");
+    inPath = Files.write(dir.resolve("in.tsv"), lines, StandardCharsets.UTF_8).toString();
+    outPath = dir.resolve("out.tsv").toString();
+    pool = new ForkJoinPool(parallelism);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    pool.shutdown();
+    try (Stream<Path> paths = Files.list(dir)) {
+      for (Path p : paths.toList()) Files.delete(p);
+    }
+    Files.delete(dir);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MOLECULES)
+  public void compute() throws IOException, InterruptedException, ExecutionException {
+    if (!mode.equals("stream"))
+      try (Stream<String> lines = Files.lines(Path.of(inPath));
+          RowWriter writer =
+              MolecularDescriptorsCalculator.writer(
+                  outPath, MolecularDescriptorsCalculator.numDescriptors(null), 0, false)) {
+        new Pipeline(null)
+            .threads(parallelism)
+            .ordered(mode.equals("ordered"))
+            .lookahead(mode.equals("longest-first") ? Pipeline.DEFAULT_LOOKAHEAD : 0)
+            .run(lines, writer);
+      }
+    else
+      // a parallel stream runs in the pool of the thread executing its terminal operation
+      pool.submit(
+              () -> {
+                MolecularDescriptorsCalculator.toFile(
+                    MolecularDescriptorsCalculator.fromFile(inPath, null), outPath);
+                return null;
+              })
+          .get();
+  }
+}
@@ -0,0 +1,76 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency of the computation of all the default descriptors of a single molecule, on
+ * the small, drug-like and large {@link Corpus corpora}, with the descriptors computed one after
+ * the other or in parallel (see {@link MolecularDescriptorsWrapper#fanOut(boolean)}); every
+ * invocation computes the next molecule of the corpus, cyclically.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MoleculeBenchmark {
+
+  @Param({"false", "true"})
+  public boolean fanOut;
+
+  @Param({"small", "druglike", "large"})
+  public String corpus;
+
+  private MolecularDescriptorsWrapper wrapper;
+  private List<String> smiles;
+  private double[] dest;
+  private int next;
+
+  @Setup
+  public void setup() {
+    wrapper = new MolecularDescriptorsWrapper().fanOut(fanOut);
+    smiles = Corpus.smiles(corpus);
+    dest = new double[wrapper.numDescriptors()];
+  }
+
+  @Benchmark
+  public double[] calculate() {
+    wrapper.calculate(smiles.get(next), dest);
+    if (++next == smiles.size()) next = 0;
+    return dest;
+  }
+}
@@ -0,0 +1,139 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency of computing the descriptors of a single molecule through a {@link
+ * DescriptorServer}, compared with computing them directly with a warmed up {@link
+ * MolecularDescriptorsWrapper} in the calling thread; the sampled times give the percentiles (among
+ * them p50 and p99) of the latency per molecule. Observe that the server computes the descriptors
+ * of a single molecule in parallel (see {@link MolecularDescriptorsWrapper#fanOut(boolean)}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ServerBenchmark {
+
+  @Param({"small", "druglike"})
+  public String corpus;
+
+  private List<String> smiles;
+  private int next;
+  private MolecularDescriptorsWrapper wrapper;
+  private double[] values;
+  private DescriptorServer server;
+  private SocketChannel channel;
+  private ByteBuffer response;
+
+  @Setup
+  public void setup() throws IOException {
+    smiles = Corpus.smiles(corpus);
+    wrapper = new MolecularDescriptorsWrapper();
+    values = new double[wrapper.numDescriptors()];
+    for (String s : smiles) wrapper.calculate(s, values);
+    server =
+        new DescriptorServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), null)
+            .start();
+    final Thread serving =
+        new Thread(
+            () -> {
+              try {
+                server.serve();
+              } catch (IOException e) {
+                throw new IllegalStateException(e);
+              }
+            });
+    serving.setDaemon(true);
+    serving.start();
+    channel = SocketChannel.open(server.localAddress());
+    final ByteBuffer columns = read(Integer.BYTES);
+    read(columns.getInt());
+    response =
+        ByteBuffer.allocate(Integer.BYTES + wrapper.numDescriptors() * Double.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    for (String s : smiles) request(s);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    channel.close();
+    server.close();
+  }
+
+  private ByteBuffer read(final int n) throws IOException {
+    final ByteBuffer bb = ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+    while (bb.hasRemaining()) if (channel.read(bb) < 0) throw new IOException("Closed");
+    return bb.flip();
+  }
+
+  private ByteBuffer request(final String s) throws IOException {
+    final byte[] payload = s.getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer bb =
+        ByteBuffer.allocate(Integer.BYTES + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+    bb.putInt(payload.length).put(payload).flip();
+    while (bb.hasRemaining()) channel.write(bb);
+    response.clear();
+    while (response.hasRemaining()) if (channel.read(response) < 0) throw new IOException("Closed");
+    return response;
+  }
+
+  private String nextSmiles() {
+    final String s = smiles.get(next);
+    next = (next + 1) % smiles.size();
+    return s;
+  }
+
+  @Benchmark
+  public double[] direct() {
+    return wrapper.calculate(nextSmiles(), values);
+  }
+
+  @Benchmark
+  public ByteBuffer server() throws IOException {
+    return request(nextSmiles());
+  }
+}
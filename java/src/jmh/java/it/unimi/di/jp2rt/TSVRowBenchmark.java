@@ -0,0 +1,114 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the parsing of the lines of the input file into {@link TSVRow} instances, and the
+ * formatting of rows (with a realistic number of descriptor values, some of which {@code NaN}) by
+ * both {@link TSVRow#toString()} and {@link TSVWriter}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TSVRowBenchmark {
+
+  @Param({"0", "6"})
+  public int precision;
+
+  private String[] lines;
+  private TSVRow[] rows;
+  private TSVWriter writer;
+  private int next;
+
+  @Setup
+  public void setup() {
+    final List<String> smiles = Corpus.smiles("druglike");
+    final int numDescriptors = new MolecularDescriptorsWrapper().numDescriptors();
+    final SplittableRandom random = new SplittableRandom(0);
+    lines = new String[smiles.size()];
+    rows = new TSVRow[smiles.size()];
+    for (int i = 0; i < lines.length; i++) {
+      lines[i] = (1 + random.nextDouble(20)) + "\tname " + i + "\t" + smiles.get(i);
+      final double[] values = new double[numDescriptors];
+      for (int j = 0; j < numDescriptors; j++)
+        values[j] =
+            switch (random.nextInt(4)) {
+              case 0 -> random.nextInt(100);
+              case 1 -> Double.NaN;
+              default -> random.nextDouble(-1E3, 1E3);
+            };
+      rows[i] = new TSVRow(lines[i]).descriptors(values);
+    }
+    writer =
+        new TSVWriter(
+                Channels.newChannel(OutputStream.nullOutputStream()),
+                TSVWriter.DEFAULT_BUFFER_SIZE)
+            .precision(precision);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    writer.close();
+  }
+
+  @Benchmark
+  public TSVRow parse() {
+    final TSVRow row = new TSVRow(lines[next]);
+    if (++next == lines.length) next = 0;
+    return row;
+  }
+
+  @Benchmark
+  public String format() {
+    final String s = rows[next].toString();
+    if (++next == rows.length) next = 0;
+    return s;
+  }
+
+  @Benchmark
+  public void write() throws IOException {
+    writer.write(rows[next]);
+    if (++next == rows.length) next = 0;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the construction of a {@link MolecularDescriptorsWrapper}, that happens once for every
+ * thread of a computation, for the default descriptors and for a selection of a few values.
+ *
+ * <p>Run with {@code -prof gc} (that is, {@code ./gradlew :jp2rt:jmh -PjmhIncludes=WrapperBenchmark
+ * -PjmhProfilers=gc}) to get also the bytes allocated per wrapper ({@code gc.alloc.rate.norm}),
+ * that bound from above the heap retained by every wrapper.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class WrapperBenchmark {
+
+  @Param({"default", "ALogP,XLogP,TopoPSA"})
+  public String selection;
+
+  private List<String> names;
+
+  @Setup
+  public void setup() {
+    names = selection.equals("default") ? null : Arrays.asList(selection.split(","));
+  }
+
+  @Benchmark
+  public MolecularDescriptorsWrapper construct() {
+    return new MolecularDescriptorsWrapper(names);
+  }
+}
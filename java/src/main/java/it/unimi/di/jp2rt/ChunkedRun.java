@@ -0,0 +1,323 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A checkpointed computation of the molecular descriptors of a (possibly very large) file, that can
+ * be resumed after an interruption.
+ *
+ * <p>The input lines are split in chunks of a fixed number of lines, and the rows of every chunk
+ * are written, in tab separated format, to a <em>part</em> file in a directory whose path is given
+ * by {@link #partsDir(String)}; every part is first written to a temporary file, that is then
+ * atomically renamed, and its completion is recorded in a <em>manifest</em> in the same directory.
+ * Running again the computation with the same input and options skips the chunks that have already
+ * been completed. Once all the chunks are completed, the parts are merged (in input order) in the
+ * output file, with the format given by {@link MolecularDescriptorsCalculator#writer(String, int,
+ * int, boolean)}, and the directory is removed.
+ *
+ * <p>The manifest starts with a header recording the input file (its path, size and last
+ * modification time), the chunk size, the {@linkplain DescriptorCache#fingerprint(
+ * MolecularDescriptorsWrapper) fingerprint} of the computed descriptors and the number format of
+ * the parts; the computation refuses to resume from parts with a different header.
+ */
+public class ChunkedRun {
+
+  /** The default number of lines of every chunk. */
+  public static final int DEFAULT_CHUNK_SIZE = 100_000;
+
+  /** The extension of the directory containing the parts of an output file. */
+  public static final String PARTS_EXTENSION = ".parts";
+
+  /** The name of the manifest file. */
+  public static final String MANIFEST = "manifest";
+
+  private static final String VERSION = "JP2RT-Parts-Version: 1";
+  private static final String CHUNK = "Chunk: ";
+  private static final String TMP_EXTENSION = ".tmp";
+
+  private final String inPath;
+  private final String outPath;
+  private final MolecularDescriptorsWrapper layout;
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+  private int precision = 0;
+  private boolean asFloat = false;
+  private Supplier<MolecularDescriptorsWrapper> wrappers;
+  private Pipeline pipeline;
+
+  /**
+   * Creates a new checkpointed computation.
+   *
+   * @param inPath the path of the file containing the SMILES.
+   * @param outPath the path of the file to write to.
+   * @param layout a wrapper computing the same descriptors of the ones used for the computation.
+   * @throws NullPointerException if one of the parameters is {@code null}.
+   * @throws IllegalArgumentException if one of the paths is {@link
+   *     MolecularDescriptorsCalculator#STANDARD_STREAM}.
+   */
+  public ChunkedRun(
+      final String inPath, final String outPath, final MolecularDescriptorsWrapper layout) {
+    this.inPath = Objects.requireNonNull(inPath, "Input file cannot be null");
+    this.outPath = Objects.requireNonNull(outPath, "Output file cannot be null");
+    this.layout = Objects.requireNonNull(layout, "The layout must not be null");
+    if (inPath.equals(MolecularDescriptorsCalculator.STANDARD_STREAM)
+        || outPath.equals(MolecularDescriptorsCalculator.STANDARD_STREAM))
+      throw new IllegalArgumentException("Checkpointed runs need input and output files");
+  }
+
+  /**
+   * Sets the number of lines of every chunk.
+   *
+   * @param chunkSize the number of lines of every chunk.
+   * @return this computation.
+   * @throws IllegalArgumentException if the chunk size is not positive.
+   */
+  public ChunkedRun chunkSize(final int chunkSize) {
+    if (chunkSize <= 0) throw new IllegalArgumentException("The chunk size must be positive");
+    this.chunkSize = chunkSize;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of significant digits of the written descriptor values (see {@link
+   * TSVWriter#precision(int)}); it is ignored for binary output.
+   *
+   * @param precision the maximum number of significant digits, or 0 for the shortest
+   *     representation.
+   * @return this computation.
+   */
+  public ChunkedRun precision(final int precision) {
+    this.precision = precision;
+    return this;
+  }
+
+  /**
+   * Sets whether the descriptor values are written as {@code float}.
+   *
+   * @param asFloat whether the descriptor values are written as {@code float}.
+   * @return this computation.
+   */
+  public ChunkedRun asFloat(final boolean asFloat) {
+    this.asFloat = asFloat;
+    return this;
+  }
+
+  /**
+   * Sets the supplier of the wrappers used to compute the descriptors of every chunk with a
+   * parallel stream.
+   *
+   * @param wrappers the supplier of the wrappers, or {@code null} to use the default ones.
+   * @return this computation.
+   */
+  public ChunkedRun wrappers(final Supplier<MolecularDescriptorsWrapper> wrappers) {
+    this.wrappers = wrappers;
+    return this;
+  }
+
+  /**
+   * Sets the pipeline used to compute the descriptors of every chunk, in place of a parallel
+   * stream.
+   *
+   * @param pipeline the pipeline, or {@code null} to use a parallel stream.
+   * @return this computation.
+   */
+  public ChunkedRun pipeline(final Pipeline pipeline) {
+    this.pipeline = pipeline;
+    return this;
+  }
+
+  /**
+   * Returns the path of the directory containing the parts of the given output file.
+   *
+   * @param outPath the path of the output file.
+   * @return the path of the directory containing the parts.
+   */
+  public static Path partsDir(final String outPath) {
+    return Paths.get(outPath + PARTS_EXTENSION);
+  }
+
+  private boolean binary() {
+    return outPath.endsWith(NpyWriter.EXTENSION);
+  }
+
+  private List<String> header() throws IOException {
+    final Path in = Paths.get(inPath);
+    return List.of(
+        VERSION,
+        "Input: " + in.toAbsolutePath(),
+        "Input-Size: " + Files.size(in),
+        "Input-Modified: " + Files.getLastModifiedTime(in).toMillis(),
+        "Chunk-Size: " + chunkSize,
+        "Descriptors: " + DescriptorCache.fingerprint(layout),
+        "Precision: " + (binary() ? 0 : precision),
+        "Float: " + asFloat);
+  }
+
+  private static Path part(final Path dir, final int index) {
+    return dir.resolve(String.format("part-%06d.tsv", index));
+  }
+
+  /**
+   * Runs (or resumes) the computation.
+   *
+   * @return the number of chunks whose computation has been skipped, since it had been completed
+   *     by a previous run.
+   * @throws IllegalArgumentException if the input file does not exist or is not readable, or the
+   *     existing parts have been computed for a different input or with different options.
+   * @throws IOException if an I/O error occurs.
+   */
+  public int run() throws IOException {
+    final Path dir = partsDir(outPath);
+    final Path manifest = dir.resolve(MANIFEST);
+    final List<String> header = header();
+    final Set<Integer> done = new HashSet<>();
+    if (Files.exists(manifest)) {
+      final List<String> recorded = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+      if (recorded.size() < header.size()
+          || !recorded.subList(0, header.size()).equals(header))
+        throw new IllegalArgumentException(
+            "The parts in "
+                + dir
+                + " have been computed for a different input or with different options, remove"
+                + " the directory to start over");
+      for (String line : recorded.subList(header.size(), recorded.size())) {
+        // a chunk whose record has been truncated by an interruption is computed again
+        final String[] fields = line.split(" ");
+        if (fields.length != 3 || !line.startsWith(CHUNK)) continue;
+        try {
+          final int index = Integer.parseInt(fields[1]);
+          if (Files.exists(part(dir, index))) done.add(index);
+        } catch (NumberFormatException e) {
+          continue;
+        }
+      }
+    } else {
+      Files.createDirectories(dir);
+      final Path tmp = dir.resolve(MANIFEST + TMP_EXTENSION);
+      Files.write(tmp, header, StandardCharsets.UTF_8);
+      Files.move(tmp, manifest, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    int numChunks = 0, skipped = 0;
+    try (Stream<String> lines = MolecularDescriptorsCalculator.lines(inPath, true);
+        FileChannel log = FileChannel.open(manifest, StandardOpenOption.APPEND)) {
+      final Iterator<String> iterator = lines.iterator();
+      final List<String> chunk = new ArrayList<>();
+      for (; iterator.hasNext(); numChunks++) {
+        if (done.contains(numChunks)) {
+          for (int i = 0; i < chunkSize && iterator.hasNext(); i++) iterator.next();
+          skipped++;
+          continue;
+        }
+        chunk.clear();
+        while (chunk.size() < chunkSize && iterator.hasNext()) chunk.add(iterator.next());
+        compute(chunk, part(dir, numChunks));
+        final ByteBuffer record =
+            ByteBuffer.wrap(
+                (CHUNK + numChunks + " " + chunk.size() + "\n").getBytes(StandardCharsets.UTF_8));
+        while (record.hasRemaining()) log.write(record);
+        log.force(false);
+      }
+    }
+    merge(dir, numChunks);
+    return skipped;
+  }
+
+  private void compute(final List<String> chunk, final Path part) throws IOException {
+    final Path tmp = part.resolveSibling(part.getFileName() + TMP_EXTENSION);
+    final FileChannel channel =
+        FileChannel.open(
+            tmp,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    try (TSVWriter writer =
+        new TSVWriter(channel, TSVWriter.DEFAULT_BUFFER_SIZE)
+            .precision(binary() ? 0 : precision)
+            .asFloat(asFloat)) {
+      if (pipeline != null) pipeline.run(chunk.stream(), writer);
+      else
+        MolecularDescriptorsCalculator.toWriter(
+            MolecularDescriptorsCalculator.fromStream(chunk.parallelStream(), null, wrappers),
+            writer);
+      writer.flush();
+      channel.force(true);
+    }
+    Files.move(tmp, part, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void merge(final Path dir, final int numChunks) throws IOException {
+    if (binary()) {
+      final int numDescriptors = layout.numDescriptors();
+      try (RowWriter writer =
+          MolecularDescriptorsCalculator.writer(outPath, numDescriptors, 0, asFloat)) {
+        for (int i = 0; i < numChunks; i++)
+          try (Stream<String> lines = Files.lines(part(dir, i), StandardCharsets.UTF_8)) {
+            MolecularDescriptorsCalculator.toWriter(
+                lines.map(line -> row(line, numDescriptors)), writer);
+          }
+      }
+    } else {
+      // tab separated parts can be concatenated as they are
+      final Path out = Paths.get(outPath);
+      try (OutputStream os =
+          outPath.endsWith(MolecularDescriptorsCalculator.GZIP_EXTENSION)
+              ? new GZIPOutputStream(Files.newOutputStream(out), 1 << 16)
+              : Files.newOutputStream(out)) {
+        for (int i = 0; i < numChunks; i++) Files.copy(part(dir, i), os);
+      }
+    }
+    for (int i = 0; i < numChunks; i++) Files.delete(part(dir, i));
+    Files.delete(dir.resolve(MANIFEST));
+    Files.delete(dir);
+  }
+
+  private static TSVRow row(final String line, final int numDescriptors) {
+    final double[] values = new double[numDescriptors];
+    int end = line.length();
+    for (int i = numDescriptors; i-- != 0; ) {
+      final int start = line.lastIndexOf('\t', end - 1);
+      values[i] = Double.parseDouble(line.substring(start + 1, end));
+      end = start;
+    }
+    return new TSVRow(line.substring(0, end)).descriptors(values);
+  }
+}
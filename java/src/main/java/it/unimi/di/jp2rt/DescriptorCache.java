@@ -0,0 +1,311 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import org.openscience.cdk.CDK;
+
+/**
+ * A persistent, content addressed, cache of descriptor values.
+ *
+ * <p>Values are stored in a directory containing a file for every <em>fingerprint</em> (see {@link
+ * #fingerprint(MolecularDescriptorsWrapper)}) of the computed descriptors, so that different
+ * descriptor sets (or CDK versions) never share values. Every file is append only and contains a
+ * sequence of records made of a key (usually the canonical SMILES of a molecule) followed by its
+ * descriptor values; when the cache is opened the file is scanned to build an index of the
+ * positions of the records, while the most recently used values are kept in memory.
+ *
+ * <p>This class is thread-safe, and a single instance is meant to be shared by all the {@link
+ * MolecularDescriptorsWrapper} instances used in a computation; concurrent requests for the same
+ * key are computed just once.
+ *
+ * <p>The same directory can be used at the same time by several processes (for instance, by the
+ * processes computing the {@linkplain Shard shards} of a file on the same machine): every append
+ * holds an exclusive {@link FileLock} on the file, under which the records appended by the other
+ * processes are indexed before writing at the actual end of the file. Within a JVM, on the other
+ * hand, a single instance must be used for every directory, since file locks are held on behalf of
+ * the whole JVM.
+ */
+public class DescriptorCache implements Closeable {
+
+  /** The default number of descriptor rows kept in memory. */
+  public static final int DEFAULT_MEMORY_SIZE = 10_000;
+
+  private static final byte[] MAGIC = "JP2RTDC1".getBytes(StandardCharsets.US_ASCII);
+  private static final String EXTENSION = ".cache";
+  private static final int HEADER_LENGTH = MAGIC.length + Integer.BYTES;
+
+  private final int numDescriptors;
+  private final FileChannel channel;
+  private final Map<String, Long> index = new HashMap<>();
+  private final Map<String, double[]> memory;
+  private final Map<String, CompletableFuture<double[]>> inFlight = new ConcurrentHashMap<>();
+  private long end;
+
+  /**
+   * Opens (or creates) the cache for the given fingerprint in the given directory.
+   *
+   * @param dir the directory containing the cache files (created if missing).
+   * @param fingerprint the fingerprint of the descriptor set.
+   * @param numDescriptors the number of descriptor values of every row.
+   * @param memorySize the number of descriptor rows kept in memory.
+   * @throws NullPointerException if one of the parameters is {@code null}.
+   * @throws IllegalArgumentException if the existing file has been written for a different number
+   *     of descriptor values.
+   * @throws IOException if an I/O error occurs.
+   */
+  public DescriptorCache(
+      final Path dir, final String fingerprint, final int numDescriptors, final int memorySize)
+      throws IOException {
+    Objects.requireNonNull(dir, "The directory must not be null");
+    Objects.requireNonNull(fingerprint, "The fingerprint must not be null");
+    this.numDescriptors = numDescriptors;
+    memory =
+        new LinkedHashMap<>(16, .75f, true) {
+          @Override
+          protected boolean removeEldestEntry(final Map.Entry<String, double[]> eldest) {
+            return size() > memorySize;
+          }
+        };
+    Files.createDirectories(dir);
+    channel =
+        FileChannel.open(
+            dir.resolve(fingerprint + EXTENSION),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    try (FileLock lock = channel.lock()) {
+      if (channel.size() == 0) {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).putInt(numDescriptors).flip();
+        while (header.hasRemaining()) channel.write(header);
+      }
+      checkHeader();
+      end = scan(HEADER_LENGTH);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens (or creates) the cache in the given directory for the descriptors of the given wrapper.
+   *
+   * @param dir the directory containing the cache files (created if missing).
+   * @param wrapper the wrapper whose descriptors will be cached.
+   * @return the cache.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static DescriptorCache open(final Path dir, final MolecularDescriptorsWrapper wrapper)
+      throws IOException {
+    return new DescriptorCache(
+        dir, fingerprint(wrapper), wrapper.numDescriptors(), DEFAULT_MEMORY_SIZE);
+  }
+
+  /**
+   * Returns a fingerprint of the descriptors computed by the given wrapper.
+   *
+   * <p>The fingerprint is an hash of the CDK version, the flavor of the SMILES used as keys, the
+   * names of the wrapped descriptors and of the names of the computed values (see {@link
+   * MolecularDescriptorsWrapper#columns()}), so that different selections of descriptors use
+   * different cache files.
+   *
+   * @param wrapper the wrapper.
+   * @return the fingerprint, as an hexadecimal string.
+   */
+  public static String fingerprint(final MolecularDescriptorsWrapper wrapper) {
+    try {
+      final MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(CDK.getVersion().getBytes(StandardCharsets.UTF_8));
+      md.update(
+          ("\n" + MolecularDescriptorsWrapper.CACHE_KEY_FLAVOR).getBytes(StandardCharsets.UTF_8));
+      for (WrappedMolecularDescriptor wd : wrapper)
+        md.update(("\n" + wd.name()).getBytes(StandardCharsets.UTF_8));
+      for (String c : wrapper.columns()) md.update(("\t" + c).getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(md.digest(), 0, 16);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void checkHeader() throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    while (header.hasRemaining()) if (channel.read(header, header.position()) < 0) break;
+    if (header.hasRemaining()) throw new IllegalArgumentException("Invalid cache file");
+    final byte[] magic = new byte[MAGIC.length];
+    header.flip().get(magic);
+    if (!Arrays.equals(magic, MAGIC)) throw new IllegalArgumentException("Invalid cache file");
+    if (header.getInt() != numDescriptors)
+      throw new IllegalArgumentException(
+          "The cache file has not been written for " + numDescriptors + " descriptor values");
+  }
+
+  /**
+   * Indexes the records starting at the given position, returning the end of the last complete
+   * one; must be called holding the file lock, so that no other process is appending.
+   */
+  private long scan(long pos) throws IOException {
+    final ByteBuffer len = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    final long size = channel.size();
+    while (pos + Integer.BYTES <= size) {
+      len.clear();
+      channel.read(len, pos);
+      final int keyLen = len.flip().getInt();
+      final long next = pos + Integer.BYTES + keyLen + (long) numDescriptors * Double.BYTES;
+      if (keyLen < 0 || next > size) break;
+      final ByteBuffer key = ByteBuffer.allocate(keyLen);
+      while (key.hasRemaining()) channel.read(key, pos + Integer.BYTES + key.position());
+      index.put(
+          new String(key.array(), StandardCharsets.UTF_8), pos + Integer.BYTES + keyLen);
+      pos = next;
+    }
+    if (pos < size) channel.truncate(pos); // drops a partial record left by an interrupted run
+    return pos;
+  }
+
+  private double[] lookup(final String key) throws IOException {
+    final long pos;
+    synchronized (this) {
+      final double[] values = memory.get(key);
+      if (values != null) return values;
+      final Long p = index.get(key);
+      if (p == null) return null;
+      pos = p;
+    }
+    final ByteBuffer bb =
+        ByteBuffer.allocate(numDescriptors * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    while (bb.hasRemaining()) channel.read(bb, pos + bb.position());
+    final double[] values = new double[numDescriptors];
+    bb.flip().asDoubleBuffer().get(values);
+    synchronized (this) {
+      memory.put(key, values);
+    }
+    return values;
+  }
+
+  private synchronized void store(final String key, final double[] values) throws IOException {
+    if (index.containsKey(key)) return;
+    final byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer bb =
+        ByteBuffer.allocate(Integer.BYTES + k.length + numDescriptors * Double.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    bb.putInt(k.length).put(k);
+    for (double d : values) bb.putDouble(d);
+    bb.flip();
+    try (FileLock lock = channel.lock()) {
+      end = scan(end); // the records appended by other processes sharing the file
+      if (!index.containsKey(key)) {
+        while (bb.hasRemaining()) channel.write(bb, end + bb.position());
+        index.put(key, end + Integer.BYTES + k.length);
+        end += bb.limit();
+      }
+    }
+    memory.put(key, values);
+  }
+
+  /**
+   * Copies the cached values for the given key in the given array, computing (and caching) them if
+   * they are not already present.
+   *
+   * <p>If the values for the same key are being computed by another thread, this method waits for
+   * them instead of computing them again.
+   *
+   * @param key the key.
+   * @param dest the destination array.
+   * @param compute the function that computes the values in the given array, if needed, returning
+   *     {@code false} if the values are not definitive (for instance, because some descriptor has
+   *     been abandoned) and must not be cached.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void computeIfAbsent(
+      final String key, final double[] dest, final Predicate<double[]> compute)
+      throws IOException {
+    double[] values = lookup(key);
+    if (values == null) {
+      final CompletableFuture<double[]> future = new CompletableFuture<>();
+      final CompletableFuture<double[]> pending = inFlight.putIfAbsent(key, future);
+      if (pending != null) {
+        try {
+          values = pending.join();
+        } catch (CompletionException | CancellationException e) {
+          compute.test(dest);
+          return;
+        }
+      } else {
+        try {
+          values = lookup(key);
+          if (values == null) {
+            if (!compute.test(dest)) {
+              future.cancel(false); // waiting threads compute the values on their own
+              return;
+            }
+            values = dest.clone();
+            store(key, values);
+          }
+          future.complete(values);
+        } catch (IOException | RuntimeException | Error e) {
+          future.completeExceptionally(e);
+          throw e;
+        } finally {
+          inFlight.remove(key, future);
+        }
+      }
+    }
+    System.arraycopy(values, 0, dest, 0, numDescriptors);
+  }
+
+  /**
+   * Returns the number of rows in the cache.
+   *
+   * @return the number of rows in the cache.
+   */
+  public synchronized int size() {
+    return index.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
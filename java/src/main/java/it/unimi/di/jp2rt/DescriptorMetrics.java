@@ -0,0 +1,450 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects timing and failure metrics of the descriptor computation.
+ *
+ * <p>For every descriptor the number of computations, failures (computations whose values are
+ * replaced with {@code Double.NaN}), abandoned computations (see {@link TimeBudget}) and {@code
+ * NaN} values are counted, and the latency of both the computation and the cloning of the molecule
+ * that precedes it are recorded in logarithmic histograms; moreover, the number of molecules and of
+ * SMILES that can't be parsed are counted.
+ *
+ * <p>All the counters are {@link LongAdder} instances, so that the overhead of the instrumentation
+ * is negligible even when the same instance is shared by all the threads of a computation (see
+ * {@link MolecularDescriptorsWrapper#metrics(DescriptorMetrics)}). The metrics can be printed with
+ * {@link #toString()}, exported with {@link #toJson()}, or inspected while the computation is in
+ * progress through JMX, once {@link #register()} has been called.
+ */
+public class DescriptorMetrics implements DescriptorMetricsMXBean, Closeable {
+
+  /** The name of the JMX bean registered by {@link #register()}. */
+  public static final String OBJECT_NAME = "it.unimi.di.jp2rt:type=DescriptorMetrics";
+
+  /** A histogram of latencies, with a bucket for every power of two of nanoseconds. */
+  public static final class Histogram {
+    private final LongAdder[] buckets = new LongAdder[Long.SIZE];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    private Histogram() {
+      for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency, in nanoseconds.
+     */
+    public void record(final long nanos) {
+      final long n = Math.max(nanos, 0);
+      buckets[Long.SIZE - 1 - Long.numberOfLeadingZeros(n | 1)].increment();
+      count.increment();
+      total.add(n);
+      max.accumulate(n);
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return the number of recorded latencies.
+     */
+    public long count() {
+      return count.sum();
+    }
+
+    /**
+     * Returns the sum of the recorded latencies.
+     *
+     * @return the sum of the recorded latencies, in nanoseconds.
+     */
+    public long totalNanos() {
+      return total.sum();
+    }
+
+    /**
+     * Returns the maximum recorded latency.
+     *
+     * @return the maximum recorded latency, in nanoseconds.
+     */
+    public long maxNanos() {
+      return max.get();
+    }
+
+    /**
+     * Returns the mean of the recorded latencies.
+     *
+     * @return the mean of the recorded latencies, in nanoseconds ({@code NaN} if there is none).
+     */
+    public double meanNanos() {
+      final long c = count();
+      return c == 0 ? Double.NaN : (double) totalNanos() / c;
+    }
+
+    /**
+     * Returns an upper bound to the given quantile of the recorded latencies, that is, the upper
+     * end of the bucket containing it.
+     *
+     * @param q the quantile, between 0 and 1.
+     * @return an upper bound to the quantile, in nanoseconds (0 if there is no recorded latency).
+     */
+    public long quantileNanos(final double q) {
+      final long[] counts = new long[buckets.length];
+      long c = 0;
+      for (int i = 0; i < counts.length; i++) c += counts[i] = buckets[i].sum();
+      if (c == 0) return 0;
+      final long rank = (long) Math.ceil(q * c);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++)
+        if ((seen += counts[i]) >= rank) return Math.min((2L << i) - 1, maxNanos());
+      return maxNanos();
+    }
+  }
+
+  /** The metrics of a single descriptor. */
+  public static final class Stats {
+    private final String name;
+    private final Histogram calculate = new Histogram();
+    private final Histogram cloning = new Histogram();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder nans = new LongAdder();
+
+    private Stats(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * Records a computation.
+     *
+     * @param cloneNanos the time spent cloning the molecule, in nanoseconds, or a negative value if
+     *     the molecule has not been cloned.
+     * @param calculateNanos the time spent computing the descriptor, in nanoseconds.
+     * @param failed whether the computation failed.
+     * @param nans the number of {@code NaN} values computed.
+     */
+    void record(
+        final long cloneNanos, final long calculateNanos, final boolean failed, final int nans) {
+      if (cloneNanos >= 0) cloning.record(cloneNanos);
+      calculate.record(calculateNanos);
+      if (failed) failures.increment();
+      if (nans != 0) this.nans.add(nans);
+    }
+
+    /** Records a computation abandoned because it exceeded its time budget. */
+    void timedOut() {
+      timeouts.increment();
+    }
+
+    /**
+     * Returns the name of the descriptor.
+     *
+     * @return the name of the descriptor.
+     */
+    public String name() {
+      return name;
+    }
+
+    /**
+     * Returns the histogram of the time spent computing the descriptor.
+     *
+     * @return the histogram of the time spent computing the descriptor.
+     */
+    public Histogram calculate() {
+      return calculate;
+    }
+
+    /**
+     * Returns the histogram of the time spent cloning the molecule before computing the
+     * descriptor.
+     *
+     * @return the histogram of the time spent cloning the molecule.
+     */
+    public Histogram cloning() {
+      return cloning;
+    }
+
+    /**
+     * Returns the number of failed computations.
+     *
+     * @return the number of failed computations.
+     */
+    public long failures() {
+      return failures.sum();
+    }
+
+    /**
+     * Returns the number of computations abandoned because they exceeded their time budget.
+     *
+     * @return the number of abandoned computations.
+     */
+    public long timeouts() {
+      return timeouts.sum();
+    }
+
+    /**
+     * Returns the number of computed {@code NaN} values (including the ones replacing the values of
+     * failed computations).
+     *
+     * @return the number of {@code NaN} values.
+     */
+    public long nans() {
+      return nans.sum();
+    }
+  }
+
+  private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+  private final LongAdder molecules = new LongAdder();
+  private final LongAdder parseFailures = new LongAdder();
+  private final long start = System.nanoTime();
+  private ObjectName objectName = null;
+
+  /**
+   * Returns the metrics of the given descriptor, creating them if needed.
+   *
+   * @param name the name of the descriptor.
+   * @return the metrics of the descriptor.
+   */
+  public Stats stats(final String name) {
+    return stats.computeIfAbsent(name, Stats::new);
+  }
+
+  /** Records a molecule. */
+  void molecule() {
+    molecules.increment();
+  }
+
+  /** Records a SMILES that could not be parsed. */
+  void parseFailure() {
+    parseFailures.increment();
+  }
+
+  /**
+   * Returns the metrics of all the descriptors, sorted by decreasing total computation time.
+   *
+   * @return the metrics of all the descriptors.
+   */
+  public List<Stats> descriptors() {
+    return stats.values().stream()
+        .sorted(Comparator.comparingLong((Stats s) -> s.calculate.totalNanos()).reversed())
+        .toList();
+  }
+
+  @Override
+  public long getMolecules() {
+    return molecules.sum();
+  }
+
+  @Override
+  public long getParseFailures() {
+    return parseFailures.sum();
+  }
+
+  @Override
+  public double getMoleculesPerSecond() {
+    return getMolecules() / ((System.nanoTime() - start) / 1E9);
+  }
+
+  @Override
+  public Map<String, Long> getCalculations() {
+    return collect(s -> s.calculate.count());
+  }
+
+  @Override
+  public Map<String, Long> getFailures() {
+    return collect(Stats::failures);
+  }
+
+  @Override
+  public Map<String, Long> getTimeouts() {
+    return collect(Stats::timeouts);
+  }
+
+  @Override
+  public Map<String, Long> getNaNs() {
+    return collect(Stats::nans);
+  }
+
+  @Override
+  public Map<String, Double> getMeanMicros() {
+    return collectDouble(s -> s.calculate.meanNanos() / 1E3);
+  }
+
+  @Override
+  public Map<String, Double> getMeanCloneMicros() {
+    return collectDouble(s -> s.cloning.meanNanos() / 1E3);
+  }
+
+  @Override
+  public String getJson() {
+    return toJson();
+  }
+
+  private Map<String, Long> collect(final ToLongFunction<Stats> f) {
+    final Map<String, Long> m = new LinkedHashMap<>();
+    for (Stats s : descriptors()) m.put(s.name, f.applyAsLong(s));
+    return m;
+  }
+
+  private Map<String, Double> collectDouble(final ToDoubleFunction<Stats> f) {
+    final Map<String, Double> m = new LinkedHashMap<>();
+    for (Stats s : descriptors()) m.put(s.name, f.applyAsDouble(s));
+    return m;
+  }
+
+  /**
+   * Registers these metrics as a JMX bean (named {@link #OBJECT_NAME}) in the platform server,
+   * replacing any previously registered instance; the bean is unregistered by {@link #close()}.
+   *
+   * @return these metrics.
+   * @throws IllegalStateException if the registration fails.
+   */
+  public synchronized DescriptorMetrics register() {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) server.unregisterMBean(name);
+      server.registerMBean(this, name);
+      objectName = name;
+      return this;
+    } catch (JMException e) {
+      throw new IllegalStateException("Problems registering the metrics bean", e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (objectName == null) return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      // the bean has been replaced (or unregistered) by someone else
+    }
+    objectName = null;
+  }
+
+  /**
+   * Returns the metrics in JSON format.
+   *
+   * @return the metrics in JSON format.
+   */
+  public String toJson() {
+    final StringJoiner descriptors = new StringJoiner(",\n", "[\n", "\n  ]");
+    for (Stats s : descriptors())
+      descriptors.add(
+          String.format(
+              Locale.ROOT,
+              "    {\"name\": \"%s\", \"calculations\": %d, \"failures\": %d, \"timeouts\": %d,"
+                  + " \"nans\": %d, \"calculate\": %s, \"clone\": %s}",
+              s.name,
+              s.calculate.count(),
+              s.failures(),
+              s.timeouts(),
+              s.nans(),
+              json(s.calculate),
+              json(s.cloning)));
+    return String.format(
+        Locale.ROOT,
+        "{\n  \"molecules\": %d,\n  \"parse_failures\": %d,\n  \"molecules_per_second\": %.3f,\n"
+            + "  \"descriptors\": %s\n}",
+        getMolecules(),
+        getParseFailures(),
+        getMoleculesPerSecond(),
+        stats.isEmpty() ? "[]" : descriptors.toString());
+  }
+
+  private static String json(final Histogram h) {
+    return String.format(
+        Locale.ROOT,
+        "{\"total_ns\": %d, \"mean_ns\": %.1f, \"p50_ns\": %d, \"p99_ns\": %d, \"max_ns\": %d}",
+        h.totalNanos(),
+        h.count() == 0 ? 0 : h.meanNanos(),
+        h.quantileNanos(.5),
+        h.quantileNanos(.99),
+        h.maxNanos());
+  }
+
+  /**
+   * Returns a human readable report of the metrics, with a line for every descriptor sorted by
+   * decreasing total computation time.
+   *
+   * @return a human readable report of the metrics.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb =
+        new StringBuilder(
+            String.format(
+                Locale.ROOT,
+                "%d molecules (%d unparsable), %.1f molecules/s%n",
+                getMolecules(),
+                getParseFailures(),
+                getMoleculesPerSecond()));
+    sb.append(
+        String.format(
+            Locale.ROOT,
+            "%-40s %10s %8s %8s %10s %10s %10s %10s %10s%n",
+            "descriptor",
+            "total ms",
+            "fail",
+            "timeout",
+            "NaN",
+            "mean us",
+            "p99 us",
+            "max us",
+            "clone us"));
+    for (Stats s : descriptors())
+      sb.append(
+          String.format(
+              Locale.ROOT,
+              "%-40s %10.1f %8d %8d %10d %10.1f %10.1f %10.1f %10.1f%n",
+              s.name,
+              s.calculate.totalNanos() / 1E6,
+              s.failures(),
+              s.timeouts(),
+              s.nans(),
+              s.calculate.count() == 0 ? 0 : s.calculate.meanNanos() / 1E3,
+              s.calculate.quantileNanos(.99) / 1E3,
+              s.calculate.maxNanos() / 1E3,
+              s.cloning.count() == 0 ? 0 : s.cloning.meanNanos() / 1E3));
+    return sb.toString();
+  }
+}
@@ -0,0 +1,102 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.util.Map;
+
+/**
+ * The JMX interface of {@link DescriptorMetrics}; maps are keyed by descriptor name.
+ *
+ * @see DescriptorMetrics#register()
+ */
+public interface DescriptorMetricsMXBean {
+
+  /**
+   * Returns the number of molecules processed so far.
+   *
+   * @return the number of molecules.
+   */
+  long getMolecules();
+
+  /**
+   * Returns the number of SMILES that could not be parsed so far.
+   *
+   * @return the number of unparsable SMILES.
+   */
+  long getParseFailures();
+
+  /**
+   * Returns the mean throughput since the metrics have been created.
+   *
+   * @return the number of molecules per second.
+   */
+  double getMoleculesPerSecond();
+
+  /**
+   * Returns the number of computations of every descriptor.
+   *
+   * @return the number of computations.
+   */
+  Map<String, Long> getCalculations();
+
+  /**
+   * Returns the number of failed computations of every descriptor.
+   *
+   * @return the number of failed computations.
+   */
+  Map<String, Long> getFailures();
+
+  /**
+   * Returns the number of abandoned computations of every descriptor.
+   *
+   * @return the number of abandoned computations.
+   */
+  Map<String, Long> getTimeouts();
+
+  /**
+   * Returns the number of {@code NaN} values computed by every descriptor.
+   *
+   * @return the number of {@code NaN} values.
+   */
+  Map<String, Long> getNaNs();
+
+  /**
+   * Returns the mean computation time of every descriptor.
+   *
+   * @return the mean computation time, in microseconds.
+   */
+  Map<String, Double> getMeanMicros();
+
+  /**
+   * Returns the mean time spent cloning the molecule before computing every descriptor.
+   *
+   * @return the mean cloning time, in microseconds.
+   */
+  Map<String, Double> getMeanCloneMicros();
+
+  /**
+   * Returns all the metrics in JSON format.
+   *
+   * @return the metrics in JSON format.
+   */
+  String getJson();
+}
@@ -0,0 +1,398 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A resident server computing molecular descriptors on request, so that the cost of starting the
+ * JVM and of initializing (and compiling) the CDK is paid just once.
+ *
+ * <p>The server listens on a local TCP or Unix domain socket (see {@link #address(String)}), and
+ * every connection is served by a dedicated thread, while the descriptors are computed by a fixed
+ * pool of worker threads, each owning a {@link MolecularDescriptorsWrapper} that is created, and
+ * warmed up on a few molecules, when the server starts.
+ *
+ * <p>The protocol is made of length-prefixed binary messages, where all the integers and floating
+ * point numbers are little endian:
+ *
+ * <ul>
+ *   <li>upon connection the server sends a 32-bit length followed by the names of the computed
+ *       values (see {@link MolecularDescriptorsWrapper#columns()}), encoded in UTF-8 and separated
+ *       by newlines;
+ *   <li>every request is made of a 32-bit length followed by a batch of SMILES, encoded in UTF-8
+ *       and separated by newlines;
+ *   <li>every response is made of the 32-bit number of molecules of the request, followed by their
+ *       descriptor values, in the order of the columns, as 64-bit floating point numbers (molecules
+ *       whose SMILES cannot be parsed have all their values set to NaN);
+ *   <li>a request that can't be served gets instead an error response, made of the 32-bit number
+ *       -1 followed by a 32-bit length and by a message encoded in UTF-8.
+ * </ul>
+ *
+ * <p>The molecules of a batch are split evenly among the workers (a batch with fewer molecules than
+ * workers has also the descriptors of every molecule computed in parallel, see {@link
+ * MolecularDescriptorsWrapper#fanOut(boolean)}); a request with an empty batch gets a response with
+ * no molecules. A request with more than {@link #MAX_REQUEST_MOLECULES} molecules gets an error
+ * response, while a request longer than {@link #MAX_REQUEST_LENGTH} bytes (or a computation
+ * failing unexpectedly) gets an error response and closes the connection.
+ */
+public class DescriptorServer implements Closeable {
+
+  /** The default number of molecules every worker computes when the server starts. */
+  public static final int DEFAULT_WARMUP = 16;
+
+  /** The maximum length, in bytes, of a request. */
+  public static final int MAX_REQUEST_LENGTH = 1 << 28;
+
+  /** The maximum number of molecules of a request. */
+  public static final int MAX_REQUEST_MOLECULES = 1 << 14;
+
+  /** The number of molecules of an error response. */
+  private static final int ERROR = -1;
+
+  private static final Logger LOG = Logger.getLogger(DescriptorServer.class.getName());
+  private static final String[] WARMUP_SMILES = {
+    "CC(=O)Oc1ccccc1C(=O)O", "CN1C=NC2=C1C(=O)N(C(=O)N2C)C", "CC(C)Cc1ccc(cc1)C(C)C(=O)O"
+  };
+
+  private final SocketAddress address;
+  private final ThreadLocal<MolecularDescriptorsWrapper> wrapper;
+  private final List<String> columns;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private int warmup = DEFAULT_WARMUP;
+  private ServerSocketChannel server;
+  private ExecutorService workers;
+  private ExecutorService connections;
+
+  /**
+   * Creates a new server.
+   *
+   * @param address the address to listen on.
+   * @param wrappers the supplier of the wrappers, or {@code null} to use the default ones.
+   * @throws NullPointerException if the address is {@code null}.
+   */
+  public DescriptorServer(
+      final SocketAddress address, final Supplier<MolecularDescriptorsWrapper> wrappers) {
+    this.address = Objects.requireNonNull(address, "The address must not be null");
+    final Supplier<MolecularDescriptorsWrapper> supplier =
+        wrappers == null ? MolecularDescriptorsWrapper::new : wrappers;
+    wrapper = ThreadLocal.withInitial(supplier);
+    columns = supplier.get().columns();
+  }
+
+  /**
+   * Returns the socket address denoted by the given string: a port number (on the loopback
+   * interface), a {@code host:port} pair, or otherwise the path of a Unix domain socket.
+   *
+   * @param spec the address specification.
+   * @return the socket address.
+   * @throws NullPointerException if the specification is {@code null}.
+   */
+  public static SocketAddress address(final String spec) {
+    Objects.requireNonNull(spec, "The address must not be null");
+    final int colon = spec.lastIndexOf(':');
+    try {
+      if (colon < 0)
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(spec));
+      return new InetSocketAddress(
+          spec.substring(0, colon), Integer.parseInt(spec.substring(colon + 1)));
+    } catch (NumberFormatException e) {
+      return UnixDomainSocketAddress.of(spec);
+    }
+  }
+
+  /**
+   * Sets the number of worker threads computing the descriptors.
+   *
+   * @param threads the number of worker threads.
+   * @return this server.
+   * @throws IllegalArgumentException if the number of threads is not positive.
+   */
+  public DescriptorServer threads(final int threads) {
+    if (threads <= 0) throw new IllegalArgumentException("The number of threads must be positive");
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * Sets the number of molecules every worker computes when the server starts, so that the
+   * descriptors are initialized and compiled before the first request.
+   *
+   * @param warmup the number of molecules computed by every worker.
+   * @return this server.
+   * @throws IllegalArgumentException if the number of molecules is negative.
+   */
+  public DescriptorServer warmup(final int warmup) {
+    if (warmup < 0) throw new IllegalArgumentException("The warm-up must not be negative");
+    this.warmup = warmup;
+    return this;
+  }
+
+  /**
+   * Returns the names of the values computed by the server.
+   *
+   * @return the names of the computed values.
+   */
+  public List<String> columns() {
+    return columns;
+  }
+
+  /**
+   * Warms up the workers and starts listening; connections are not accepted until {@link #serve()}
+   * is called.
+   *
+   * @return this server.
+   * @throws IllegalStateException if the server has already been started.
+   * @throws IOException if an I/O error occurs.
+   */
+  public synchronized DescriptorServer start() throws IOException {
+    if (server != null) throw new IllegalStateException("The server has already been started");
+    workers = Executors.newFixedThreadPool(threads, factory("jp2rt-server-worker"));
+    connections = Executors.newCachedThreadPool(factory("jp2rt-server-connection"));
+    final List<Callable<Void>> warmups = new ArrayList<>();
+    for (int t = 0; t < threads; t++)
+      warmups.add(
+          () -> {
+            final MolecularDescriptorsWrapper w = wrapper.get();
+            for (int i = 0; i < warmup; i++)
+              w.calculate(WARMUP_SMILES[i % WARMUP_SMILES.length], null);
+            return null;
+          });
+    try {
+      // a fixed pool starts a new thread for each of its first tasks, so every worker is warmed up
+      for (Future<Void> f : workers.invokeAll(warmups)) f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while warming up", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Could not warm up the workers", e.getCause());
+    }
+    if (address instanceof UnixDomainSocketAddress unix) Files.deleteIfExists(unix.getPath());
+    server =
+        ServerSocketChannel.open(
+            address instanceof UnixDomainSocketAddress
+                ? StandardProtocolFamily.UNIX
+                : StandardProtocolFamily.INET);
+    server.bind(address);
+    return this;
+  }
+
+  /**
+   * Returns the address the server is listening on (for instance, to know the port chosen by the
+   * system when listening on port 0).
+   *
+   * @return the address the server is listening on.
+   * @throws IOException if an I/O error occurs.
+   */
+  public SocketAddress localAddress() throws IOException {
+    return server.getLocalAddress();
+  }
+
+  /**
+   * Accepts and serves connections until the server is closed.
+   *
+   * @throws IllegalStateException if the server has not been started.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void serve() throws IOException {
+    if (server == null) throw new IllegalStateException("The server has not been started");
+    try {
+      for (; ; ) {
+        final SocketChannel channel = server.accept();
+        connections.execute(() -> serve(channel));
+      }
+    } catch (ClosedChannelException e) {
+      // the server has been closed
+    }
+  }
+
+  private void serve(final SocketChannel channel) {
+    try (channel) {
+      final ByteBuffer length = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      write(channel, message(String.join("\n", columns).getBytes(StandardCharsets.UTF_8)));
+      for (; ; ) {
+        length.clear();
+        if (!read(channel, length)) return; // the client closed the connection
+        final int n = length.flip().getInt();
+        if (n < 0 || n > MAX_REQUEST_LENGTH) {
+          LOG.warning("Closing a connection after a request of " + n + " bytes");
+          write(
+              channel, error("Requests must not be longer than " + MAX_REQUEST_LENGTH + " bytes"));
+          return;
+        }
+        final ByteBuffer request = ByteBuffer.allocate(n);
+        if (!read(channel, request)) throw new EOFException();
+        final String[] smiles = split(new String(request.array(), StandardCharsets.UTF_8));
+        ByteBuffer response;
+        try {
+          response = compute(smiles);
+        } catch (IllegalArgumentException e) {
+          response = error(e.getMessage());
+        } catch (ExecutionException | RuntimeException e) {
+          final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+          LOG.log(Level.SEVERE, "Closing a connection after an unexpected error", cause);
+          write(channel, error("Unexpected error: " + cause));
+          return;
+        }
+        write(channel, response);
+      }
+    } catch (ClosedByInterruptException e) {
+      // the server has been closed
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Closing a connection after an I/O error", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static String[] split(final String request) {
+    return request.isEmpty() ? new String[0] : request.split("\n", -1);
+  }
+
+  /**
+   * Computes the descriptors of the given molecules, returning the response.
+   *
+   * @throws IllegalArgumentException if the request has too many molecules.
+   */
+  private ByteBuffer compute(final String[] smiles)
+      throws InterruptedException, ExecutionException {
+    if (smiles.length > MAX_REQUEST_MOLECULES)
+      throw new IllegalArgumentException(
+          "Requests must not have more than " + MAX_REQUEST_MOLECULES + " molecules");
+    final int numCols = columns.size();
+    final long size =
+        Integer.BYTES
+            + Math.multiplyExact(Math.multiplyExact((long) smiles.length, numCols), Double.BYTES);
+    if (size > Integer.MAX_VALUE)
+      throw new IllegalArgumentException(
+          "The response to a request of " + smiles.length + " molecules would be too long");
+    final ByteBuffer response = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+    response.putInt(0, smiles.length);
+    final int slices = Math.min(threads, smiles.length);
+    // with fewer molecules than workers, every worker also computes its descriptors in parallel
+    final boolean fanOut = smiles.length < threads;
+    final List<Callable<Void>> tasks = new ArrayList<>(slices);
+    for (int s = 0; s < slices; s++) {
+      final int from = (int) ((long) smiles.length * s / slices);
+      final int to = (int) ((long) smiles.length * (s + 1) / slices);
+      tasks.add(
+          () -> {
+            final MolecularDescriptorsWrapper w = wrapper.get().fanOut(fanOut);
+            final double[] values = new double[numCols];
+            final DoubleBuffer out =
+                response
+                    .duplicate()
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .position(Integer.BYTES + from * numCols * Double.BYTES)
+                    .asDoubleBuffer();
+            for (int i = from; i < to; i++) out.put(w.calculate(smiles[i], values));
+            return null;
+          });
+    }
+    for (Future<Void> f : workers.invokeAll(tasks)) f.get();
+    return response;
+  }
+
+  private static ByteBuffer error(final String message) {
+    final byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+    return ByteBuffer.allocate(2 * Integer.BYTES + payload.length)
+        .order(ByteOrder.LITTLE_ENDIAN)
+        .putInt(ERROR)
+        .putInt(payload.length)
+        .put(payload)
+        .flip();
+  }
+
+  private static ByteBuffer message(final byte[] payload) {
+    return ByteBuffer.allocate(Integer.BYTES + payload.length)
+        .order(ByteOrder.LITTLE_ENDIAN)
+        .putInt(payload.length)
+        .put(payload)
+        .flip();
+  }
+
+  private static boolean read(final SocketChannel channel, final ByteBuffer bb)
+      throws IOException {
+    while (bb.hasRemaining()) if (channel.read(bb) < 0) return false;
+    return true;
+  }
+
+  private static void write(final SocketChannel channel, final ByteBuffer bb) throws IOException {
+    while (bb.hasRemaining()) channel.write(bb);
+  }
+
+  private static ThreadFactory factory(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return r -> {
+      final Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  /**
+   * Stops accepting connections and shuts down the threads of the server; the file of a Unix domain
+   * socket is deleted.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (server == null) return;
+    try {
+      server.close();
+      if (address instanceof UnixDomainSocketAddress unix) Files.deleteIfExists(unix.getPath());
+    } finally {
+      connections.shutdownNow();
+      workers.shutdownNow();
+    }
+  }
+}
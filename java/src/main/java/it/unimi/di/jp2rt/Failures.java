@@ -0,0 +1,241 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accounts for the failures of a computation: the SMILES that can't be parsed, and the descriptor
+ * computations whose values are replaced with {@code Double.NaN} (because the descriptor throws an
+ * exception, returns no value, or exceeds its {@link TimeBudget}).
+ *
+ * <p>Failures are counted by {@link LongAdder} instances (overall, and for every descriptor), so
+ * that accounting them costs no contention among the threads of a computation; moreover, they can
+ * be recorded in a <em>rejects</em> file in tab separated format, where every line contains the
+ * name of the failed descriptor (or {@link #PARSER}), the name of the class of the exception (or
+ * {@link #NO_VALUE}), followed by the fields of the input line. Since the SMILES is the last field,
+ * the rejects file can be used as the input of a new computation. The records are appended to a
+ * lock-free queue, and written (buffered) by a dedicated thread.
+ *
+ * <p>A single instance is meant to be shared by all the {@link MolecularDescriptorsWrapper}
+ * instances used in a computation (see {@link MolecularDescriptorsWrapper#failures(Failures)});
+ * {@link #toString()} returns a summary of the failures (listing the descriptors that failed most
+ * often). This class is thread-safe.
+ */
+public class Failures implements Closeable {
+
+  /** The name recorded in place of the descriptor for the SMILES that can't be parsed. */
+  public static final String PARSER = "SmilesParser";
+
+  /** The name recorded in place of the exception for descriptors returning no value. */
+  public static final String NO_VALUE = "-";
+
+  /** The maximum number of descriptors listed by {@link #toString()}. */
+  private static final int SUMMARY_DESCRIPTORS = 5;
+
+  private static final String END = new String("");
+
+  private final LongAdder unparsable = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final Map<String, LongAdder> byDescriptor = new ConcurrentHashMap<>();
+  private final LinkedTransferQueue<String> records;
+  private final Thread writer;
+  private volatile boolean closed = false;
+  private volatile IOException error = null;
+
+  /** Creates a new {@link Failures} instance that just counts the failures. */
+  public Failures() {
+    records = null;
+    writer = null;
+  }
+
+  /**
+   * Creates a new {@link Failures} instance that counts the failures and records them in the given
+   * rejects file (created, or truncated if it already exists).
+   *
+   * @param rejects the path of the rejects file.
+   * @throws NullPointerException if the path is {@code null}.
+   * @throws IOException if an I/O error occurs opening the file.
+   */
+  public Failures(final Path rejects) throws IOException {
+    this(rejects, false);
+  }
+
+  /**
+   * Creates a new {@link Failures} instance that counts the failures and records them in the given
+   * rejects file, possibly appending them to the ones already recorded (for instance, when resuming
+   * a {@link ChunkedRun}).
+   *
+   * <p>The counts include just the failures of this instance.
+   *
+   * @param rejects the path of the rejects file.
+   * @param append whether the records are appended to the file, instead of truncating it.
+   * @throws NullPointerException if the path is {@code null}.
+   * @throws IOException if an I/O error occurs opening the file.
+   */
+  public Failures(final Path rejects, final boolean append) throws IOException {
+    Objects.requireNonNull(rejects, "The path of the rejects file must not be null");
+    final BufferedWriter out =
+        append
+            ? Files.newBufferedWriter(
+                rejects,
+                StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)
+            : Files.newBufferedWriter(rejects, StandardCharsets.UTF_8);
+    records = new LinkedTransferQueue<>();
+    writer = new Thread(() -> write(out), "jp2rt-rejects-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  private void write(final BufferedWriter out) {
+    try (out) {
+      for (String record = records.take(); record != END; record = records.take()) {
+        out.write(record);
+        out.newLine();
+        if (records.isEmpty()) out.flush();
+      }
+    } catch (IOException e) {
+      error = e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Records a SMILES that could not be parsed.
+   *
+   * @param row the row containing the SMILES, or {@code null} if the SMILES is not part of a row.
+   * @param smiles the SMILES.
+   * @param e the exception thrown by the parser.
+   */
+  void unparsable(final TSVRow row, final String smiles, final Exception e) {
+    unparsable.increment();
+    record(PARSER, e.getClass().getName(), row, smiles);
+  }
+
+  /**
+   * Records a descriptor computation whose values have been replaced with {@code Double.NaN}.
+   *
+   * @param descriptor the name of the descriptor.
+   * @param cause the name of the class of the exception, or {@link #NO_VALUE}.
+   * @param row the row containing the SMILES, or {@code null} if the SMILES is not part of a row.
+   * @param smiles the SMILES of the molecule.
+   */
+  void failed(final String descriptor, final String cause, final TSVRow row, final String smiles) {
+    failures.increment();
+    LongAdder counter = byDescriptor.get(descriptor);
+    if (counter == null) counter = byDescriptor.computeIfAbsent(descriptor, d -> new LongAdder());
+    counter.increment();
+    record(descriptor, cause, row, smiles);
+  }
+
+  private void record(
+      final String descriptor, final String cause, final TSVRow row, final String smiles) {
+    if (records == null || closed || error != null) return;
+    final StringBuilder sb = new StringBuilder(descriptor).append('\t').append(cause);
+    if (row != null) for (String e : row.extra()) sb.append('\t').append(e);
+    records.add(sb.append('\t').append(smiles).toString());
+  }
+
+  /**
+   * Returns the number of SMILES that could not be parsed.
+   *
+   * @return the number of SMILES that could not be parsed.
+   */
+  public long unparsable() {
+    return unparsable.sum();
+  }
+
+  /**
+   * Returns the number of failed descriptor computations.
+   *
+   * @return the number of failed descriptor computations.
+   */
+  public long failures() {
+    return failures.sum();
+  }
+
+  /**
+   * Returns the number of failed computations of every descriptor that failed at least once.
+   *
+   * @return a map from descriptor names to their number of failed computations, sorted by name.
+   */
+  public Map<String, Long> failuresByDescriptor() {
+    final Map<String, Long> res = new TreeMap<>();
+    byDescriptor.forEach((d, c) -> res.put(d, c.sum()));
+    return res;
+  }
+
+  /**
+   * Waits until all the failures have been written to the rejects file, and closes it.
+   *
+   * <p>Failures happening after this method is called are still counted, but not recorded.
+   *
+   * @throws IOException if an I/O error occurred writing the rejects file.
+   */
+  @Override
+  public void close() throws IOException {
+    if (writer == null || closed) return;
+    closed = true;
+    records.add(END);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing the rejects file", e);
+    }
+    if (error != null) throw error;
+  }
+
+  @Override
+  public String toString() {
+    final Map<String, Long> byDescriptor = failuresByDescriptor();
+    final StringJoiner sj = new StringJoiner(", ", " (", ")").setEmptyValue("");
+    byDescriptor.entrySet().stream()
+        .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+        .limit(SUMMARY_DESCRIPTORS)
+        .forEach(e -> sj.add(e.getKey() + ": " + e.getValue()));
+    if (byDescriptor.size() > SUMMARY_DESCRIPTORS)
+      sj.add((byDescriptor.size() - SUMMARY_DESCRIPTORS) + " more descriptor(s)");
+    return unparsable()
+        + " SMILES could not be parsed, "
+        + failures()
+        + " descriptor computation(s) failed"
+        + sj;
+  }
+}
@@ -21,48 +21,101 @@ along with this file.  If not, see <https://www.gnu.org/licenses/>.
 
 package it.unimi.di.jp2rt;
 
-import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import me.tongfei.progressbar.ProgressBar;
 import me.tongfei.progressbar.ProgressBarBuilder;
 
 /** An <em>utility class</em> to compute molecular descriptors. */
 public class MolecularDescriptorsCalculator {
 
+  /** The default number, per thread, of rows waiting to be written in ordered mode. */
+  public static final int DEFAULT_REORDER_CAPACITY = 64;
+
+  /** The extension of the files recording the column layout of an output file. */
+  public static final String COLUMNS_EXTENSION = ".columns";
+
+  /** The path denoting the standard input, or the standard output. */
+  public static final String STANDARD_STREAM = "-";
+
+  /** The extension of gzip compressed files. */
+  public static final String GZIP_EXTENSION = ".gz";
+
+  private static final int IO_BUFFER_SIZE = 1 << 16;
+
   private MolecularDescriptorsCalculator() {}
 
-  private static long numLines(String filename) throws IOException {
-    final byte[] buffer = new byte[8192];
-    int n, count = 0;
-    try (FileInputStream stream = new FileInputStream(filename)) {
-      while ((n = stream.read(buffer)) > 0) {
-        for (int i = 0; i < n; i++) if (buffer[i] == '\n') count++;
-      }
+  private static class ThreadSafeCalculator {
+    private static final ThreadSafeCalculator DEFAULT =
+        new ThreadSafeCalculator(MolecularDescriptorsWrapper::new);
+
+    /** The calculators of the selections seen so far by {@link #of(List)}. */
+    private static final Map<List<String>, ThreadSafeCalculator> SELECTIONS =
+        new ConcurrentHashMap<>();
+
+    private final ThreadLocal<MolecularDescriptorsWrapper> descriptorsHolder;
+
+    private ThreadSafeCalculator(final Supplier<MolecularDescriptorsWrapper> wrappers) {
+      descriptorsHolder = ThreadLocal.withInitial(wrappers);
     }
-    return count;
-  }
 
-  private static class ThreadSafeCalculator {
-    private static final ThreadLocal<MolecularDescriptorsWrapper> descriptorsHolder =
-        new ThreadLocal<>() {
-          @Override
-          protected MolecularDescriptorsWrapper initialValue() {
-            return new MolecularDescriptorsWrapper();
-          }
-          ;
-        };
+    public static ThreadSafeCalculator of(final Supplier<MolecularDescriptorsWrapper> wrappers) {
+      return wrappers == null ? DEFAULT : new ThreadSafeCalculator(wrappers);
+    }
+
+    /** Returns the calculator of the given selection, whose wrappers are reused by every call. */
+    public static ThreadSafeCalculator of(final List<String> selection) {
+      if (selection == null) return DEFAULT;
+      return SELECTIONS.computeIfAbsent(
+          List.copyOf(selection),
+          s -> new ThreadSafeCalculator(() -> new MolecularDescriptorsWrapper(s)));
+    }
 
-    public static TSVRow calculate(final String smiles) {
+    public TSVRow calculate(final String smiles) {
       return descriptorsHolder.get().calculate(new TSVRow(smiles));
     }
+
+    public double[] calculate(final String smiles, final double[] dest) {
+      return descriptorsHolder.get().calculate(smiles, dest);
+    }
+
+    public int numDescriptors() {
+      return descriptorsHolder.get().numDescriptors();
+    }
+
+    public MolecularDescriptorsWrapper wrapper() {
+      return descriptorsHolder.get();
+    }
   }
 
   /**
@@ -76,10 +129,209 @@ public class MolecularDescriptorsCalculator {
    */
   public static Stream<TSVRow> fromStream(
       final Stream<String> smilesStream, final ProgressBarBuilder pbb) {
+    return fromStream(smilesStream, pbb, null);
+  }
+
+  /**
+   * Returns a stream of {@link TSVRow} containing the molecular descriptors relative to the given
+   * stream of strings, computed by wrappers obtained from the given supplier.
+   *
+   * <p>The supplier is invoked (at most) once for every thread processing the stream, since {@link
+   * MolecularDescriptorsWrapper} instances are not thread-safe.
+   *
+   * @param smilesStream the stream of SMILES.
+   * @param pbb the {@link ProgressBarBuilder} to use, or {@code null} if no progress bar is needed.
+   * @param wrappers the supplier of the wrappers, or {@code null} to use the default ones.
+   * @return a stream of {@link TSVRow} with molecular descriptors values set.
+   * @throws NullPointerException if the stream parameter is null.
+   */
+  public static Stream<TSVRow> fromStream(
+      final Stream<String> smilesStream,
+      final ProgressBarBuilder pbb,
+      final Supplier<MolecularDescriptorsWrapper> wrappers) {
     Objects.requireNonNull(smilesStream, "Stream cannot be null");
+    final ThreadSafeCalculator calculator = ThreadSafeCalculator.of(wrappers);
     return pbb == null
-        ? smilesStream.map(ThreadSafeCalculator::calculate)
-        : ProgressBar.wrap(smilesStream, pbb).map(ThreadSafeCalculator::calculate);
+        ? smilesStream.map(calculator::calculate)
+        : ProgressBar.wrap(smilesStream, pbb).map(calculator::calculate);
+  }
+
+  /**
+   * Computes, in parallel, the descriptor values of the given molecules, returning them as a
+   * matrix.
+   *
+   * <p>If there are fewer molecules than processors, the molecules are computed one after the
+   * other, but the descriptors of every molecule are computed in parallel (see {@link
+   * MolecularDescriptorsWrapper#fanOut(boolean)}).
+   *
+   * @param smiles the SMILES of the molecules.
+   * @param wrappers the supplier of the wrappers, or {@code null} to use the default ones.
+   * @return the descriptor values, in row-major order: the values of the {@code i}-th molecule
+   *     start at index {@code i * numDescriptors}, in the order given by {@link
+   *     MolecularDescriptorsWrapper#columns()}.
+   * @throws NullPointerException if the array of SMILES is {@code null}.
+   * @throws IllegalArgumentException if the matrix would exceed the maximum size of an array.
+   */
+  public static double[] compute(
+      final String[] smiles, final Supplier<MolecularDescriptorsWrapper> wrappers) {
+    Objects.requireNonNull(smiles, "The SMILES must not be null");
+    final ThreadSafeCalculator calculator = ThreadSafeCalculator.of(wrappers);
+    final int numCols = calculator.numDescriptors();
+    if ((long) smiles.length * numCols > Integer.MAX_VALUE - 8)
+      throw new IllegalArgumentException("Too many molecules for a single array");
+    final double[] dest = new double[smiles.length * numCols];
+    compute(
+        smiles,
+        calculator,
+        (values, i) -> System.arraycopy(values, 0, dest, i * numCols, numCols));
+    return dest;
+  }
+
+  /**
+   * Computes, in parallel, the descriptor values of the given molecules, storing them as a matrix
+   * in the given buffer.
+   *
+   * <p>The values are written in the byte order of the buffer, starting from its position (that is
+   * not changed), in row-major order: the values of the {@code i}-th molecule are the {@code
+   * numDescriptors} values starting at the {@code i * numDescriptors}-th one, in the order given by
+   * {@link MolecularDescriptorsWrapper#columns()}. Using a direct buffer allocated by the caller
+   * (for instance, wrapping the memory of a NumPy array) no copy of the matrix is needed.
+   *
+   * @param smiles the SMILES of the molecules.
+   * @param dest the buffer where to store the descriptor values.
+   * @param wrappers the supplier of the wrappers, or {@code null} to use the default ones.
+   * @throws NullPointerException if the array of SMILES or the buffer are {@code null}.
+   * @throws IllegalArgumentException if the buffer has not enough space remaining.
+   */
+  public static void compute(
+      final String[] smiles,
+      final ByteBuffer dest,
+      final Supplier<MolecularDescriptorsWrapper> wrappers) {
+    compute(smiles, dest, wrappers, null);
+  }
+
+  /**
+   * Computes, in parallel, the descriptor values of the given molecules, storing them as a matrix
+   * in the given buffer (as {@link #compute(String[], ByteBuffer, Supplier)}) and accounting the
+   * failures of this computation in the given {@link Failures}.
+   *
+   * <p>Since the wrappers of the supplier are reused by later computations, the failures are
+   * accounted just while computing the given molecules.
+   *
+   * @param smiles the SMILES of the molecules.
+   * @param dest the buffer where to store the descriptor values.
+   * @param wrappers the supplier of the wrappers, or {@code null} to use the default ones.
+   * @param failures where to account the failures, or {@code null} to use those of the wrappers.
+   * @throws NullPointerException if the array of SMILES or the buffer are {@code null}.
+   * @throws IllegalArgumentException if the buffer has not enough space remaining.
+   */
+  public static void compute(
+      final String[] smiles,
+      final ByteBuffer dest,
+      final Supplier<MolecularDescriptorsWrapper> wrappers,
+      final Failures failures) {
+    Objects.requireNonNull(smiles, "The SMILES must not be null");
+    Objects.requireNonNull(dest, "The buffer must not be null");
+    compute(smiles, dest, ThreadSafeCalculator.of(wrappers), failures);
+  }
+
+  /**
+   * Returns the number of descriptor values computed for every molecule by {@link
+   * #computeSelection(String[], ByteBuffer, List, Failures)} with the given selection.
+   *
+   * @param selection the names of the selected descriptors or values (see {@link
+   *     MolecularDescriptorsWrapper#MolecularDescriptorsWrapper(Collection)}), or {@code null} for
+   *     the default descriptors.
+   * @return the number of descriptor values of every molecule.
+   */
+  public static int numDescriptors(final List<String> selection) {
+    return ThreadSafeCalculator.of(selection).numDescriptors();
+  }
+
+  /**
+   * Computes, in parallel, the selected descriptor values of the given molecules, storing them as
+   * a matrix in the given buffer (as {@link #compute(String[], ByteBuffer, Supplier, Failures)}).
+   *
+   * <p>Contrary to the other methods, the wrappers are created once per selection and thread, and
+   * reused by all the following calls with the same selection; this makes the method suitable for
+   * computing many small batches of molecules (for instance, from Python).
+   *
+   * @param smiles the SMILES of the molecules.
+   * @param dest the buffer where to store the descriptor values.
+   * @param selection the names of the selected descriptors or values (see {@link
+   *     MolecularDescriptorsWrapper#MolecularDescriptorsWrapper(Collection)}), or {@code null} for
+   *     the default descriptors.
+   * @param failures where to account the failures, or {@code null} not to account them.
+   * @throws NullPointerException if the array of SMILES or the buffer are {@code null}.
+   * @throws IllegalArgumentException if the buffer has not enough space remaining.
+   */
+  public static void computeSelection(
+      final String[] smiles,
+      final ByteBuffer dest,
+      final List<String> selection,
+      final Failures failures) {
+    Objects.requireNonNull(smiles, "The SMILES must not be null");
+    Objects.requireNonNull(dest, "The buffer must not be null");
+    compute(smiles, dest, ThreadSafeCalculator.of(selection), failures);
+  }
+
+  private static void compute(
+      final String[] smiles,
+      final ByteBuffer dest,
+      final ThreadSafeCalculator calculator,
+      final Failures failures) {
+    final int numCols = calculator.numDescriptors();
+    if ((long) smiles.length * numCols * Double.BYTES > dest.remaining())
+      throw new IllegalArgumentException(
+          "The buffer must have room for " + smiles.length * (long) numCols + " values");
+    final DoubleBuffer matrix = dest.duplicate().order(dest.order()).asDoubleBuffer();
+    compute(smiles, calculator, failures, (values, i) -> matrix.put(i * numCols, values));
+  }
+
+  private static void compute(
+      final String[] smiles,
+      final ThreadSafeCalculator calculator,
+      final ObjIntConsumer<double[]> sink) {
+    compute(smiles, calculator, null, sink);
+  }
+
+  private static void compute(
+      final String[] smiles,
+      final ThreadSafeCalculator calculator,
+      final Failures failures,
+      final ObjIntConsumer<double[]> sink) {
+    final int numCols = calculator.numDescriptors();
+    if (MolecularDescriptorsWrapper.fanOut(smiles.length)) {
+      // too few molecules to keep the processors busy: the descriptors are computed in parallel
+      final MolecularDescriptorsWrapper wrapper = calculator.wrapper().fanOut(true);
+      final Failures previous = wrapper.failures();
+      if (failures != null) wrapper.failures(failures);
+      try {
+        final double[] row = new double[numCols];
+        for (int i = 0; i < smiles.length; i++) sink.accept(wrapper.calculate(smiles[i], row), i);
+      } finally {
+        wrapper.fanOut(false).failures(previous);
+      }
+      return;
+    }
+    final ThreadLocal<double[]> rows = ThreadLocal.withInitial(() -> new double[numCols]);
+    IntStream.range(0, smiles.length)
+        .parallel()
+        .forEach(
+            i -> {
+              if (failures == null) {
+                sink.accept(calculator.calculate(smiles[i], rows.get()), i);
+                return;
+              }
+              final MolecularDescriptorsWrapper wrapper = calculator.wrapper();
+              final Failures previous = wrapper.failures();
+              wrapper.failures(failures);
+              try {
+                sink.accept(wrapper.calculate(smiles[i], rows.get()), i);
+              } finally {
+                wrapper.failures(previous);
+              }
+            });
   }
 
   /**
@@ -94,17 +346,86 @@ public class MolecularDescriptorsCalculator {
    */
   public static Stream<TSVRow> fromFile(final String inPath, final ProgressBarBuilder pbb)
       throws IOException {
-    Path p = Paths.get(Objects.requireNonNull(inPath, "Input file cannot be null"));
+    return fromStream(lines(inPath, false).parallel(), pbb);
+  }
+
+  /**
+   * Returns the stream of the lines of the given file, or of the standard input if the path is
+   * {@link #STANDARD_STREAM}; gzip compressed input is detected (by its magic number) and
+   * decompressed transparently.
+   *
+   * <p>The file is read just once: if requested, the progress bar of a regular file is based on
+   * the number of bytes read (of the compressed data, if the file is compressed), while the one of
+   * the standard input just counts the lines. The returned stream must be closed.
+   *
+   * @param inPath the path of the file, or {@link #STANDARD_STREAM}.
+   * @param progress whether a progress bar should be displayed while the stream is consumed.
+   * @return the stream of lines.
+   * @throws NullPointerException if the path parameter is {@code null}.
+   * @throws IllegalArgumentException if the file does not exist or is not readable.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static Stream<String> lines(final String inPath, final boolean progress)
+      throws IOException {
+    Objects.requireNonNull(inPath, "Input file cannot be null");
+    final ProgressBarBuilder pbb =
+        progress ? new ProgressBarBuilder().setTaskName("Computing") : null;
+    if (inPath.equals(STANDARD_STREAM)) {
+      final Stream<String> lines =
+          lines(
+              new FilterInputStream(System.in) {
+                @Override
+                public void close() {} // the standard input is not ours to close
+              });
+      return pbb == null ? lines : ProgressBar.wrap(lines, pbb).onClose(lines::close);
+    }
+    final Path p = Paths.get(inPath);
     if (!(p.toFile().isFile() && p.toFile().canRead()))
       throw new IllegalArgumentException("Input file does not exist or is not readable");
-    return fromStream(Files.lines(p).parallel(), pbb);
+    final InputStream in = Files.newInputStream(p);
+    return lines(
+        pbb == null
+            ? in
+            : ProgressBar.wrap(in, pbb.setInitialMax(Files.size(p)).setUnit("MiB", 1 << 20)));
+  }
+
+  /**
+   * Returns a buffered stream reading the given one, decompressing it if it is gzip compressed (as
+   * detected by its magic number).
+   *
+   * @param raw the stream to read.
+   * @return a buffered, and possibly decompressing, stream.
+   * @throws IOException if an I/O error occurs.
+   */
+  static InputStream decompress(final InputStream raw) throws IOException {
+    final BufferedInputStream in = new BufferedInputStream(raw, IO_BUFFER_SIZE);
+    in.mark(2);
+    final boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+    in.reset();
+    return gzip ? new GZIPInputStream(in, IO_BUFFER_SIZE) : in;
+  }
+
+  private static Stream<String> lines(final InputStream raw) throws IOException {
+    final BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(decompress(raw), StandardCharsets.UTF_8), IO_BUFFER_SIZE);
+    return reader
+        .lines()
+        .onClose(
+            () -> {
+              try {
+                reader.close();
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
   }
 
   /**
    * Returns a stream of {@link TSVRow} containing the molecular descriptors relative to data in the
    * given file.
    *
-   * <p>This method sets the progress bar based on the number of lines in the file.
+   * <p>This method reads the file with {@link #lines(String, boolean)}, displaying a progress bar.
    *
    * @param inPath the path of the file containing the SMILES.
    * @return a stream of {@link TSVRow} with molecular descriptors values set.
@@ -112,9 +433,7 @@ public class MolecularDescriptorsCalculator {
    * @throws IOException if an I/O error occurs.
    */
   public static Stream<TSVRow> fromFile(final String inPath) throws IOException {
-    ProgressBarBuilder pbb = new ProgressBarBuilder();
-    pbb.setInitialMax(numLines(inPath)).setTaskName("Computing");
-    return fromFile(inPath, pbb);
+    return fromStream(lines(inPath, true).parallel(), null);
   }
 
   /**
@@ -127,36 +446,534 @@ public class MolecularDescriptorsCalculator {
    */
   public static void toFile(final Stream<TSVRow> stream, final String outPath) throws IOException {
     Objects.requireNonNull(stream, "Stream cannot be null");
-    try (PrintWriter ps =
-        new PrintWriter(new BufferedOutputStream(new FileOutputStream(outPath)))) {
-      stream.forEach(ps::println);
+    try (RowWriter writer = writer(outPath, numDescriptors(null), 0, false)) {
+      toWriter(stream, writer);
     }
   }
 
+  /**
+   * Returns a {@link RowWriter} for the given file.
+   *
+   * <p>If the path ends with {@link NpyWriter#EXTENSION} the descriptor values are written in
+   * binary format by a {@link NpyWriter} (in which case the precision is ignored), otherwise a
+   * {@link TSVWriter} is used, writing to the standard output if the path is {@link
+   * #STANDARD_STREAM} (that is flushed, but not closed, when the writer is closed), and compressing
+   * the output with gzip if the path ends with {@link #GZIP_EXTENSION}.
+   *
+   * @param outPath the path of the file to write to, or {@link #STANDARD_STREAM}.
+   * @param numCols the number of descriptor values of every row (see {@link
+   *     NpyWriter#NpyWriter(Path, int, boolean)}).
+   * @param precision the maximum number of significant digits, or 0 for the shortest
+   *     representation.
+   * @param asFloat whether the descriptor values should be written as {@code float}.
+   * @return the writer.
+   * @throws NullPointerException if the path parameter is {@code null}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static RowWriter writer(
+      final String outPath, final int numCols, final int precision, final boolean asFloat)
+      throws IOException {
+    Objects.requireNonNull(outPath, "Output file cannot be null");
+    if (outPath.endsWith(NpyWriter.EXTENSION))
+      return new NpyWriter(Paths.get(outPath), numCols, asFloat);
+    return tsvWriter(outPath, precision, asFloat);
+  }
+
+  /**
+   * Returns a {@link TSVWriter} for the given file.
+   *
+   * <p>This method behaves as {@link #writer(String, int, int, boolean)}, but it always writes in
+   * tab separated format, whatever the extension of the path.
+   *
+   * @param outPath the path of the file to write to, or {@link #STANDARD_STREAM}.
+   * @param precision the maximum number of significant digits, or 0 for the shortest
+   *     representation.
+   * @param asFloat whether the values should be written as {@code float}.
+   * @return the writer.
+   * @throws NullPointerException if the path parameter is {@code null}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static TSVWriter tsvWriter(
+      final String outPath, final int precision, final boolean asFloat) throws IOException {
+    Objects.requireNonNull(outPath, "Output file cannot be null");
+    final TSVWriter writer;
+    if (outPath.equals(STANDARD_STREAM)) {
+      // System.out swallows I/O errors (such as a closed pipe), so its descriptor is written directly
+      System.out.flush();
+      writer =
+          new TSVWriter(
+              Channels.newChannel(
+                  new FilterOutputStream(new FileOutputStream(FileDescriptor.out)) {
+                    @Override
+                    public void write(final byte[] b, final int off, final int len)
+                        throws IOException {
+                      out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                      flush(); // the standard output is not ours to close
+                    }
+                  }),
+              TSVWriter.DEFAULT_BUFFER_SIZE);
+    } else if (outPath.endsWith(GZIP_EXTENSION)) {
+      final OutputStream out = Files.newOutputStream(Paths.get(outPath));
+      writer =
+          new TSVWriter(
+              Channels.newChannel(new GZIPOutputStream(out, IO_BUFFER_SIZE)),
+              TSVWriter.DEFAULT_BUFFER_SIZE);
+    } else writer = new TSVWriter(Paths.get(outPath));
+    return writer.precision(precision).asFloat(asFloat);
+  }
+
+  /**
+   * Writes the given stream of {@link TSVRow} with the given {@link RowWriter}.
+   *
+   * <p>The writer is not closed by this method.
+   *
+   * @param stream the stream of {@link TSVRow} to write.
+   * @param writer the writer to use.
+   * @throws NullPointerException if one of the parameters is {@code null}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static void toWriter(final Stream<TSVRow> stream, final RowWriter writer)
+      throws IOException {
+    Objects.requireNonNull(stream, "Stream cannot be null");
+    Objects.requireNonNull(writer, "Writer cannot be null");
+    try {
+      stream.forEach(
+          row -> {
+            try {
+              writer.write(row);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Computes the molecular descriptors relative to the given stream of strings, in parallel, and
+   * writes them with the given {@link RowWriter} preserving the order of the stream.
+   *
+   * <p>The stream is consumed sequentially by the calling thread, every element is tagged with a
+   * sequence number and handed to a pool of {@code parallelism} threads; the computed rows are then
+   * put back in order by a {@link ReorderBuffer} holding at most {@code capacity} rows, so that the
+   * memory used does not depend on the size of the stream (the reading is suspended when the buffer
+   * is full, for instance because of a molecule that takes particularly long to compute). This is
+   * a {@link Pipeline} in ordered mode with batches of a single line. The writer is not closed by
+   * this method.
+   *
+   * @param smilesStream the stream of SMILES.
+   * @param writer the writer to use.
+   * @param parallelism the number of threads computing the descriptors.
+   * @param capacity the maximum number of rows waiting to be written.
+   * @param wrappers the supplier of the wrappers, or {@code null} to use the default ones.
+   * @throws NullPointerException if the stream or writer parameters are {@code null}.
+   * @throws IllegalArgumentException if the parallelism or the capacity are not positive.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static void toWriterOrdered(
+      final Stream<String> smilesStream,
+      final RowWriter writer,
+      final int parallelism,
+      final int capacity,
+      final Supplier<MolecularDescriptorsWrapper> wrappers)
+      throws IOException {
+    new Pipeline(wrappers)
+        .threads(parallelism)
+        .batchSize(1)
+        .queueCapacity(capacity)
+        .ordered(true)
+        .run(smilesStream, writer);
+  }
+
+  /**
+   * Computes the molecular descriptors relative to data in the given file, and writes them to the
+   * given file preserving the order of the input lines.
+   *
+   * <p>This method uses {@link #toWriterOrdered(Stream, RowWriter, int, int, Supplier)} with the
+   * default wrappers, a thread per available processor and a buffer of {@link
+   * #DEFAULT_REORDER_CAPACITY} rows per thread; the file is read with {@link #lines(String,
+   * boolean)}, displaying a progress bar.
+   *
+   * @param inPath the path of the file containing the SMILES.
+   * @param outPath the path of the file to write to.
+   * @throws NullPointerException if one of the parameters is {@code null}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static void toFileOrdered(final String inPath, final String outPath) throws IOException {
+    try (RowWriter writer = writer(outPath, numDescriptors(null), 0, false)) {
+      final int parallelism = Runtime.getRuntime().availableProcessors();
+      try (Stream<String> lines = lines(inPath, true)) {
+        toWriterOrdered(lines, writer, parallelism, DEFAULT_REORDER_CAPACITY * parallelism, null);
+      }
+    }
+  }
+
+  /**
+   * Computes the molecular descriptors relative to data in the given file with the given {@link
+   * Pipeline}, and writes them with the given {@link RowWriter}; the file is read with {@link
+   * #lines(String, boolean)}, displaying a progress bar. The writer is not closed by this method.
+   *
+   * @param inPath the path of the file containing the SMILES.
+   * @param writer the writer to use.
+   * @param pipeline the pipeline to use.
+   * @throws NullPointerException if one of the parameters is {@code null}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static void toWriter(final String inPath, final RowWriter writer, final Pipeline pipeline)
+      throws IOException {
+    try (Stream<String> lines = lines(inPath, true)) {
+      pipeline.run(lines, writer);
+    }
+  }
+
+  /**
+   * Returns the path of the file recording the column layout of the given output file.
+   *
+   * @param outPath the path of the output file.
+   * @return the path of the column layout file.
+   */
+  public static String columnsPath(final String outPath) {
+    return outPath + COLUMNS_EXTENSION;
+  }
+
+  /**
+   * Writes the column layout of the given wrapper, that is the names of the computed descriptor
+   * values, one per line, in the order they appear in every row.
+   *
+   * @param path the path of the file to write to.
+   * @param wrapper the wrapper.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static void writeColumns(final Path path, final MolecularDescriptorsWrapper wrapper)
+      throws IOException {
+    Files.write(path, wrapper.columns(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Parses a descriptor selection, given either as a comma separated list of names, or as {@code @}
+   * followed by the path of a file containing a name per line (as the ones written by {@link
+   * #writeColumns(Path, MolecularDescriptorsWrapper)}).
+   *
+   * @param spec the selection specification.
+   * @return the list of selected names.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static List<String> parseSelection(final String spec) throws IOException {
+    final Stream<String> names =
+        spec.startsWith("@")
+            ? Files.readAllLines(Paths.get(spec.substring(1)), StandardCharsets.UTF_8).stream()
+            : Arrays.stream(spec.split(","));
+    return names.map(String::strip).filter(n -> !n.isEmpty()).toList();
+  }
+
   /**
    * The command line frontend.
    *
    * <p>This class can be run with {@code --list-descriptors} or {@code -l} to list the available
    * descriptors, or with a pair of input and output files to compute the descriptors for the
-   * molecules in the input file and write them to the output file.
+   * molecules in the input file and write them to the output file; in the latter case the options
+   * {@code --precision} (or {@code -p}) followed by a number of significant digits, and {@code
+   * --float} can be used to control how descriptor values are written (see {@link #writer(String,
+   * int, int, boolean)}), {@code --ordered} (or {@code -o}) preserves the order of the input lines
+   * (see {@link #toFileOrdered(String, String)}), and {@code --cache} followed by a directory uses
+   * a persistent {@link DescriptorCache}. The options {@code --threads} (or {@code -t}) and {@code
+   * --batch-size}, followed by a number, run the computation in a {@link Pipeline} with the given
+   * number of threads and lines per batch, instead of the common fork-join pool, {@code
+   * --longest-first} runs such pipeline scheduling the most expensive molecules first (see {@link
+   * Pipeline#lookahead(int)}), and {@code --chunk-size}, followed by a number of lines, runs a
+   * resumable {@link ChunkedRun}.
+   *
+   * <p>The option {@code --descriptors} (or {@code -d}) followed by a selection (see {@link
+   * #parseSelection(String)} and {@link MolecularDescriptorsWrapper#MolecularDescriptorsWrapper(
+   * java.util.Collection)}) restricts the computed (or listed) descriptors. The names of the
+   * computed values are written, one per line, to the file given by {@link #columnsPath(String)}.
+   * Finally, {@code --timeout} and {@code --molecule-timeout}, followed by a number of milliseconds,
+   * set a {@link TimeBudget} for every descriptor and every molecule, respectively, while {@code
+   * --metrics} collects {@link DescriptorMetrics} (available through JMX during the computation)
+   * and prints them on the standard error at the end, and {@code --metrics-json} followed by a path
+   * writes them in JSON format to the given file; {@code --no-share} computes every descriptor on a
+   * copy of the molecule (see {@link MolecularDescriptorsWrapper#share(boolean)}). The {@link
+   * Failures} of the computation are summarized at the end, and {@code --rejects} followed by a
+   * path records them in the given file.
+   *
+   * <p>Instead of a pair of files, the option {@code --serve} followed by an address (see {@link
+   * DescriptorServer#address(String)}) runs a {@link DescriptorServer} with the given options (and
+   * with the number of workers given by {@code --threads}) until the JVM is terminated.
+   *
+   * <p>The option {@code --shard} followed by {@code i/n} computes just the lines of the input
+   * belonging to the given {@link Shard}, writing its metadata along with the output, while {@code
+   * --merge} followed by an output file and by the outputs of all the shards merges them (see
+   * {@link Shard#merge(List, String)}).
+   *
+   * <p>The option {@code --predict} followed by a model file (or by a file containing just a {@link
+   * TreeEnsemble}) writes, instead of the descriptor values, the retention time predicted by the
+   * model for every line, followed by the fields of the line; unless {@code --descriptors} is
+   * given, just the values used by the model are computed.
+   *
+   * <p>The input and output files can be given as {@link #STANDARD_STREAM} to read from the
+   * standard input or write to the standard output (in which case the column layout is not
+   * written); gzip compressed input is detected automatically, and output files ending with {@link
+   * #GZIP_EXTENSION} are compressed (see {@link #lines(String, boolean)} and {@link #writer(String,
+   * int, int, boolean)}).
    *
    * @param args the command line arguments.
    * @throws IOException if an I/O error occurs.
    */
   public static void main(String[] args) throws IOException {
+    final int status = run(args);
+    if (status != 0) System.exit(status);
+  }
+
+  /**
+   * Runs the command line frontend without terminating the JVM.
+   *
+   * <p>This method accepts the same arguments of {@link #main(String[])}, it is meant to be used
+   * when the library is embedded (for instance, from Python).
+   *
+   * @param args the command line arguments.
+   * @return the exit status: 0 in case of success, 1 in case of wrong arguments.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static int run(String... args) throws IOException {
 
-    final String help = "Usage: --list-descriptors | -l | <input file> <output file>";
+    final String help =
+        """
+        Usage: [--descriptors <selection>] --list-descriptors | -l | [options] <input file> <output file>
+               [options] --serve <address>
+               --merge <output file> <shard output file>...
+        Options:
+          --descriptors, -d <selection>  comma separated descriptor (or value) names, or @<file>
+          --precision, -p <digits>       maximum number of significant digits of the values
+          --float                        write the values as single precision numbers
+          --ordered, -o                  preserve the order of the input lines
+          --threads, -t <n>              number of threads computing the descriptors
+          --batch-size <n>               number of lines handed to a thread at once
+          --longest-first                compute the most expensive molecules first (unordered)
+          --chunk-size <n>               checkpoint the computation every n lines (resumable)
+          --shard <i>/<n>                compute just the i-th of n shards of the input
+          --cache <directory>            use a persistent descriptor cache
+          --timeout <ms>                 time budget for every descriptor of a molecule
+          --molecule-timeout <ms>        time budget for all the descriptors of a molecule
+          --metrics                      print per descriptor timing and failure metrics
+          --metrics-json <file>          write per descriptor metrics in JSON format
+          --rejects <file>               record the failed molecules and descriptors
+          --no-share                     compute every descriptor on a copy of the molecule
+          --serve <address>              serve requests on a port, host:port or Unix socket path
+          --predict <model>              write the retention times predicted by the model
+        Use - for the standard input or output; gzip input is detected, .gz output is compressed.\
+        """;
 
-    if (args.length == 1) {
-      System.out.println(
-          args[0].equals("--list-descriptors") || args[0].equals("-l")
-              ? new MolecularDescriptorsWrapper()
-              : help);
-      System.exit(0);
-    } else if (args.length != 2) {
+    final List<String> files = new ArrayList<>();
+    int precision = 0;
+    boolean asFloat = false;
+    boolean ordered = false;
+    int threads = 0, batchSize = 0, chunkSize = 0;
+    boolean longestFirst = false;
+    boolean list = false;
+    String cacheDir = null;
+    List<String> selection = null;
+    Duration timeout = null, moleculeTimeout = null;
+    boolean printMetrics = false;
+    String metricsJson = null;
+    String rejects = null;
+    boolean share = true;
+    String serve = null;
+    String shardSpec = null, merge = null;
+    String predict = null;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "--list-descriptors", "-l" -> list = true;
+          case "--help", "-h" -> {
+            System.out.println(help);
+            return 0;
+          }
+          case "--descriptors", "-d" -> selection = parseSelection(args[++i]);
+          case "--precision", "-p" -> precision = Integer.parseInt(args[++i]);
+          case "--float" -> asFloat = true;
+          case "--ordered", "-o" -> ordered = true;
+          case "--threads", "-t" -> threads = Integer.parseInt(args[++i]);
+          case "--batch-size" -> batchSize = Integer.parseInt(args[++i]);
+          case "--longest-first" -> longestFirst = true;
+          case "--chunk-size" -> chunkSize = Integer.parseInt(args[++i]);
+          case "--cache" -> cacheDir = args[++i];
+          case "--timeout" -> timeout = Duration.ofMillis(Long.parseLong(args[++i]));
+          case "--molecule-timeout" ->
+              moleculeTimeout = Duration.ofMillis(Long.parseLong(args[++i]));
+          case "--metrics" -> printMetrics = true;
+          case "--metrics-json" -> metricsJson = args[++i];
+          case "--rejects" -> rejects = args[++i];
+          case "--no-share" -> share = false;
+          case "--serve" -> serve = args[++i];
+          case "--shard" -> shardSpec = args[++i];
+          case "--merge" -> merge = args[++i];
+          case "--predict" -> predict = args[++i];
+          default -> files.add(args[i]);
+        }
+      }
+    } catch (IndexOutOfBoundsException | NumberFormatException e) {
+      files.clear();
+      list = false;
+    }
+    if (merge != null) {
+      if (files.isEmpty()) {
+        System.err.println(help);
+        return 1;
+      }
+      try {
+        final long rows = Shard.merge(files, merge);
+        System.err.println("Merged " + rows + " rows from " + files.size() + " shard(s)");
+        return 0;
+      } catch (IllegalArgumentException e) {
+        System.err.println(e.getMessage());
+        return 1;
+      }
+    }
+    final MolecularDescriptorsWrapper layout;
+    final TreeEnsemble ensemble;
+    final Shard shard;
+    final TimeBudget budget;
+    try {
+      if (threads < 0 || batchSize < 0 || chunkSize < 0)
+        throw new IllegalArgumentException(
+            "The number of threads, the batch size and the chunk size must be positive");
+      if (ordered && longestFirst)
+        throw new IllegalArgumentException("Longest first scheduling does not preserve the order");
+      if (chunkSize != 0 && files.contains(STANDARD_STREAM))
+        throw new IllegalArgumentException("Checkpointed runs need input and output files");
+      shard = shardSpec != null ? Shard.parse(shardSpec) : null;
+      if (shard != null && chunkSize != 0)
+        throw new IllegalArgumentException("Shards can not be checkpointed");
+      if (shard != null && files.size() == 2 && files.get(1).equals(STANDARD_STREAM))
+        throw new IllegalArgumentException("Shards need an output file");
+      if (serve != null && (chunkSize != 0 || shard != null || ordered || longestFirst))
+        throw new IllegalArgumentException(
+            "Served requests can not be checkpointed, sharded, ordered or scheduled longest first");
+      final TreeEnsemble model = predict != null ? TreeEnsemble.load(Paths.get(predict)) : null;
+      if (model != null) {
+        if (serve != null || shard != null || chunkSize != 0)
+          throw new IllegalArgumentException(
+              "Predictions can not be served, sharded or checkpointed");
+        if (files.size() == 2 && files.get(1).endsWith(NpyWriter.EXTENSION))
+          throw new IllegalArgumentException("Predictions are written in tab separated format");
+        if (selection == null && !model.columns().isEmpty()) selection = model.columns();
+      }
+      layout = new MolecularDescriptorsWrapper(selection);
+      ensemble = model != null ? model.bind(layout.columns()) : null;
+      budget =
+          timeout != null || moleculeTimeout != null
+              ? new TimeBudget(timeout, moleculeTimeout)
+              : null;
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      return 1;
+    }
+    if (list) {
+      System.out.println(layout);
+      return 0;
+    }
+    if (serve == null ? files.size() != 2 : !files.isEmpty()) {
       System.err.println(help);
-      System.exit(1);
+      return 1;
+    }
+    final List<String> selected = selection;
+    final boolean shared = share;
+    final String recorded = rejects != null ? ", recorded in " + rejects : "";
+    // a resumed checkpointed run keeps the rejects of the chunks completed by the previous runs
+    final Failures failures =
+        rejects != null
+            ? new Failures(
+                Paths.get(rejects),
+                serve == null
+                    && chunkSize != 0
+                    && Files.isDirectory(ChunkedRun.partsDir(files.get(1))))
+            : new Failures();
+    try (failures;
+        DescriptorMetrics metrics =
+            printMetrics || metricsJson != null ? new DescriptorMetrics().register() : null;
+        DescriptorCache cache =
+            cacheDir != null ? DescriptorCache.open(Paths.get(cacheDir), layout) : null;
+        RowWriter writer =
+            serve != null || chunkSize != 0
+                ? null
+                : ensemble != null
+                    ? ensemble.writer(tsvWriter(files.get(1), precision, asFloat))
+                    : writer(files.get(1), layout.numDescriptors(), precision, asFloat)) {
+      final Supplier<MolecularDescriptorsWrapper> wrappers =
+          () ->
+              new MolecularDescriptorsWrapper(selected)
+                  .cache(cache)
+                  .budget(budget)
+                  .metrics(metrics)
+                  .failures(failures)
+                  .share(shared);
+      if (serve != null) {
+        try (DescriptorServer server =
+            new DescriptorServer(DescriptorServer.address(serve), wrappers)) {
+          if (threads != 0) server.threads(threads);
+          server.start();
+          Runtime.getRuntime()
+              .addShutdownHook(
+                  new Thread(
+                      () -> {
+                        try {
+                          server.close();
+                          failures.close();
+                        } catch (IOException e) {
+                          // the JVM is exiting anyway
+                        }
+                        if (failures.unparsable() + failures.failures() > 0)
+                          System.err.println(failures + recorded);
+                      }));
+          System.err.println(
+              "Serving " + server.columns().size() + " values on " + server.localAddress());
+          server.serve();
+        }
+        return 0;
+      }
+      final Pipeline pipeline =
+          ordered || threads != 0 || batchSize != 0 || longestFirst
+              ? new Pipeline(wrappers).ordered(ordered)
+              : null;
+      if (pipeline != null) {
+        if (threads != 0) pipeline.threads(threads);
+        if (batchSize != 0) pipeline.batchSize(batchSize);
+        if (longestFirst) pipeline.lookahead(Pipeline.DEFAULT_LOOKAHEAD);
+      }
+      if (chunkSize != 0) {
+        final int skipped =
+            new ChunkedRun(files.get(0), files.get(1), layout)
+                .chunkSize(chunkSize)
+                .precision(precision)
+                .asFloat(asFloat)
+                .wrappers(wrappers)
+                .pipeline(pipeline)
+                .run();
+        if (skipped != 0)
+          System.err.println(skipped + " chunk(s) completed by a previous run have been reused");
+      } else
+        try (Stream<String> lines =
+            shard != null ? shard.lines(files.get(0), true) : lines(files.get(0), true)) {
+          if (pipeline != null) pipeline.run(lines, writer);
+          else toWriter(fromStream(lines.parallel(), null, wrappers), writer);
+        }
+      if (printMetrics) System.err.print(metrics);
+      if (metricsJson != null)
+        Files.writeString(Paths.get(metricsJson), metrics.toJson(), StandardCharsets.UTF_8);
     }
-    toFile(fromFile(args[0]), args[1]);
+    if (ensemble == null && !files.get(1).equals(STANDARD_STREAM))
+      writeColumns(Paths.get(columnsPath(files.get(1))), layout);
+    if (shard != null) shard.writeMetadata(files.get(1), layout);
+    if (budget != null && budget.timeouts() > 0)
+      System.err.println(
+          budget.timeouts() + " descriptor computation(s) abandoned for exceeding " + budget);
+    if (failures.unparsable() + failures.failures() > 0)
+      System.err.println(failures + recorded);
+    return 0;
   }
 }
@@ -21,15 +21,38 @@ along with this file.  If not, see <https://www.gnu.org/licenses/>.
 
 package it.unimi.di.jp2rt;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.DoubleStream;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.exception.InvalidSmilesException;
+import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
 import org.openscience.cdk.qsar.IMolecularDescriptor;
 import org.openscience.cdk.qsar.descriptors.molecular.ALOGPDescriptor;
 import org.openscience.cdk.qsar.descriptors.molecular.APolDescriptor;
@@ -79,6 +102,8 @@ import org.openscience.cdk.qsar.descriptors.molecular.WienerNumbersDescriptor;
 import org.openscience.cdk.qsar.descriptors.molecular.XLogPDescriptor;
 import org.openscience.cdk.qsar.descriptors.molecular.ZagrebIndexDescriptor;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmiFlavor;
+import org.openscience.cdk.smiles.SmilesGenerator;
 import org.openscience.cdk.smiles.SmilesParser;
 
 /**
@@ -89,106 +114,773 @@ public class MolecularDescriptorsWrapper implements Iterable<WrappedMolecularDes
 
   private static Logger LOG = Logger.getLogger(WrappedMolecularDescriptor.class.getSimpleName());
 
-  private final SmilesParser smilesParser = new SmilesParser(new SilentChemObjectBuilder());
+  /** The descriptors computed by default. */
+  private static final List<Class<? extends IMolecularDescriptor>> DEFAULT_DESCRIPTORS =
+      List.of(
+          AcidicGroupCountDescriptor.class,
+          ALOGPDescriptor.class,
+          AminoAcidCountDescriptor.class,
+          APolDescriptor.class,
+          AromaticAtomsCountDescriptor.class,
+          AromaticBondsCountDescriptor.class,
+          AtomCountDescriptor.class,
+          AutocorrelationDescriptorCharge.class,
+          AutocorrelationDescriptorMass.class,
+          AutocorrelationDescriptorPolarizability.class,
+          BasicGroupCountDescriptor.class,
+          BCUTDescriptor.class,
+          BondCountDescriptor.class,
+          BPolDescriptor.class,
+          CarbonTypesDescriptor.class,
+          ChiChainDescriptor.class,
+          ChiClusterDescriptor.class,
+          ChiPathClusterDescriptor.class,
+          ChiPathDescriptor.class,
+          EccentricConnectivityIndexDescriptor.class,
+          FMFDescriptor.class,
+          FractionalCSP3Descriptor.class,
+          FractionalPSADescriptor.class,
+          FragmentComplexityDescriptor.class,
+          HBondAcceptorCountDescriptor.class,
+          HBondDonorCountDescriptor.class,
+          HybridizationRatioDescriptor.class,
+          JPlogPDescriptor.class,
+          KappaShapeIndicesDescriptor.class,
+          KierHallSmartsDescriptor.class,
+          LargestChainDescriptor.class,
+          LargestPiSystemDescriptor.class,
+          MannholdLogPDescriptor.class,
+          MDEDescriptor.class,
+          PetitjeanNumberDescriptor.class,
+          PetitjeanShapeIndexDescriptor.class,
+          RotatableBondsCountDescriptor.class,
+          RuleOfFiveDescriptor.class,
+          SmallRingDescriptor.class,
+          SpiroAtomCountDescriptor.class,
+          TPSADescriptor.class,
+          VAdjMaDescriptor.class,
+          WeightDescriptor.class,
+          WeightedPathDescriptor.class,
+          WienerNumbersDescriptor.class,
+          XLogPDescriptor.class,
+          ZagrebIndexDescriptor.class);
+
+  private static final String DESCRIPTORS_PACKAGE =
+      "org.openscience.cdk.qsar.descriptors.molecular.";
+
+  /**
+   * The descriptors known not to modify the molecule they compute, that can hence share the parsed
+   * molecule instead of computing a copy of it; the list is deliberately conservative, and it is
+   * checked at runtime (see {@link #share(boolean)}).
+   */
+  private static final Set<String> READ_ONLY =
+      Set.of(
+          "AtomCountDescriptor",
+          "BondCountDescriptor",
+          "EccentricConnectivityIndexDescriptor",
+          "FragmentComplexityDescriptor",
+          "KappaShapeIndicesDescriptor",
+          "MDEDescriptor",
+          "PetitjeanNumberDescriptor",
+          "VAdjMaDescriptor",
+          "WeightDescriptor",
+          "WienerNumbersDescriptor",
+          "ZagrebIndexDescriptor");
+
+  /** The descriptors of {@link #READ_ONLY} that have been found to modify the molecule. */
+  private static final Set<String> MUTATING = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The pool computing the descriptors of the wrappers having a {@linkplain #budget(TimeBudget)
+   * time budget} (lazily created, and shared by all the wrappers); idle threads terminate after a
+   * while, so that wrappers need not be closed, and the threads of abandoned computations are not
+   * reused until they terminate.
+   */
+  private static final class Runners {
+    private static final AtomicInteger COUNT = new AtomicInteger();
+    private static final ExecutorService POOL =
+        Executors.newCachedThreadPool(
+            r -> {
+              final Thread t = new Thread(r, "jp2rt-budget-runner-" + COUNT.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+  }
+
+  /**
+   * The pool computing the descriptors of the wrappers that {@linkplain #fanOut(boolean) fan out}
+   * (lazily created, and shared by all the wrappers).
+   */
+  private static final class FanOut {
+    private static final AtomicInteger COUNT = new AtomicInteger();
+    private static final ExecutorService POOL =
+        Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            r -> {
+              final Thread t = new Thread(r, "jp2rt-fan-out-" + COUNT.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+  }
+
+  /** The minimum interval between two warnings about the failures not accounted anywhere. */
+  private static final long UNACCOUNTED_WARNING_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+  /** The failures not accounted by a {@link Failures} since the last warning. */
+  private static final AtomicLong UNACCOUNTED = new AtomicLong();
+
+  /** The time, as given by {@link System#nanoTime()}, after which a warning can be logged. */
+  private static final AtomicLong NEXT_UNACCOUNTED_WARNING = new AtomicLong(System.nanoTime());
+
+  /**
+   * The layouts of the selections seen so far, keyed by the selection (the default descriptors are
+   * keyed by {@link #DEFAULT_SELECTION}).
+   */
+  private static final Map<Object, Layout> LAYOUTS = new ConcurrentHashMap<>();
+
+  /**
+   * The key of the default descriptors in {@link #LAYOUTS}, that can't be equal to any selection
+   * (in particular, to an empty one).
+   */
+  private static final Object DEFAULT_SELECTION = new Object();
+
+  /**
+   * The flavor of the SMILES used as cache keys: canonical, but keeping the aromaticity of the
+   * parsed molecule, on which some descriptors depend (see {@link #share(boolean)}).
+   */
+  static final int CACHE_KEY_FLAVOR = SmiFlavor.Absolute | SmiFlavor.UseAromaticSymbols;
+
+  private final SmilesParser smilesParser = new SmilesParser(SilentChemObjectBuilder.getInstance());
+  private final SmilesGenerator smilesGenerator = new SmilesGenerator(CACHE_KEY_FLAVOR);
+  private final Layout layout;
   private final List<WrappedMolecularDescriptor> calculators;
-  private final int numCols;
+  private final double[] scratch;
+  private final int[] order;
+  private final boolean[] shareable;
+  private boolean share = true;
+  private boolean fanOut = false;
+  private DescriptorCache cache = null;
+  private TimeBudget budget = null;
+  private DescriptorMetrics metrics = null;
+  private Failures failures = null;
+  private TSVRow row = null;
 
   /**
-   * Creates a new {@link MolecularDescriptorsWrapper} instance.
+   * The immutable part of a wrapper, that depends only on the selection and is hence computed once
+   * and shared by all the wrappers of the same selection: the wrapped descriptor classes, the
+   * projections of the selected values and the resulting column layout.
+   *
+   * <p>Computing a layout requires instantiating the descriptors, to know the names of their
+   * values; the instances are not thrown away, but handed to the first wrapper using the layout.
+   */
+  private static final class Layout {
+    private final List<Class<? extends IMolecularDescriptor>> classes = new ArrayList<>();
+    private final List<int[]> projections = new ArrayList<>();
+    private final List<String> columns = new ArrayList<>();
+    private final int[] offsets;
+    private final int numCols;
+    private final int maxWidth;
+    private final AtomicReference<List<WrappedMolecularDescriptor>> spare;
+
+    private Layout(final Collection<String> selection) {
+      final Set<String> pending = selection == null ? null : new LinkedHashSet<>(selection);
+      final Set<String> valueNames = new HashSet<>();
+      if (pending != null) {
+        valueNames.addAll(pending);
+        for (Class<? extends IMolecularDescriptor> c : DEFAULT_DESCRIPTORS)
+          valueNames.remove(c.getSimpleName());
+      }
+      final List<WrappedMolecularDescriptor> instances = new ArrayList<>();
+      for (Class<? extends IMolecularDescriptor> c : DEFAULT_DESCRIPTORS) {
+        if (pending == null || pending.remove(c.getSimpleName())) {
+          final WrappedMolecularDescriptor wd = instantiate(c);
+          // the values of a selected class are all computed, even if also selected by name
+          if (pending != null) pending.removeAll(Arrays.asList(wd.descriptors()));
+          add(instances, wd, null);
+        } else if (!valueNames.isEmpty()) {
+          final WrappedMolecularDescriptor wd = instantiate(c);
+          final String[] names = wd.descriptors();
+          final int[] projection =
+              IntStream.range(0, names.length).filter(i -> pending.remove(names[i])).toArray();
+          if (projection.length > 0)
+            add(instances, wd, projection.length == names.length ? null : projection);
+        }
+      }
+      if (pending != null)
+        for (String name : pending) {
+          try {
+            add(
+                instances,
+                instantiate(
+                    Class.forName(DESCRIPTORS_PACKAGE + name)
+                        .asSubclass(IMolecularDescriptor.class)),
+                null);
+          } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown descriptor or value name: " + name);
+          }
+        }
+      offsets = new int[instances.size()];
+      int offset = 0, width = 0;
+      for (int i = 0; i < offsets.length; i++) {
+        offsets[i] = offset;
+        final WrappedMolecularDescriptor wd = instances.get(i);
+        final int[] projection = projections.get(i);
+        if (projection == null) {
+          offset += wd.numDescriptors();
+          columns.addAll(Arrays.asList(wd.descriptors()));
+        } else {
+          offset += projection.length;
+          for (int j : projection) columns.add(wd.descriptors()[j]);
+          width = Math.max(width, wd.numDescriptors());
+        }
+      }
+      numCols = offset;
+      maxWidth = width;
+      spare = new AtomicReference<>(instances);
+    }
+
+    private void add(
+        final List<WrappedMolecularDescriptor> instances,
+        final WrappedMolecularDescriptor wd,
+        final int[] projection) {
+      instances.add(wd);
+      classes.add(wd.descriptorClass());
+      projections.add(projection);
+    }
+
+    /** Returns new descriptor instances for a wrapper, reusing the spare ones if available. */
+    private List<WrappedMolecularDescriptor> instances() {
+      final List<WrappedMolecularDescriptor> instances = spare.getAndSet(null);
+      if (instances != null) return instances;
+      final List<WrappedMolecularDescriptor> fresh = new ArrayList<>(classes.size());
+      for (Class<? extends IMolecularDescriptor> c : classes) fresh.add(instantiate(c));
+      return fresh;
+    }
+  }
+
+  /**
+   * Creates a new {@link MolecularDescriptorsWrapper} instance computing the default descriptors.
    *
    * @throws IllegalStateException if there are problems instantiating one of the descriptors.
    */
   public MolecularDescriptorsWrapper() {
+    this(null);
+  }
+
+  /**
+   * Creates a new {@link MolecularDescriptorsWrapper} instance computing just the selected
+   * descriptors.
+   *
+   * <p>Every element of the selection can be either the (simple) class name of a descriptor, in
+   * which case all its values are computed, or the name of one of the values computed by the
+   * default descriptors, in which case just such value is part of the output (even if the whole
+   * descriptor must be computed); selecting both a descriptor and some of its values is the same
+   * as selecting just the descriptor. Class names of descriptors in the {@code
+   * org.openscience.cdk.qsar.descriptors.molecular} package not computed by default are also
+   * accepted.
+   *
+   * <p>Independently of the order of the selection, the values are always computed in the same
+   * order of the default descriptors (followed by the non default ones, in the order they are
+   * selected); {@link #columns()} returns the resulting layout.
+   *
+   * <p>Since a wrapper is usually created for every thread of a computation, the part of the
+   * wrapper that depends only on the selection (the descriptor classes and the column layout) is
+   * computed once per selection and shared among the wrappers, that instantiate just their own
+   * descriptors (CDK descriptors are not thread-safe).
+   *
+   * @param selection the names of the selected descriptors or values, or {@code null} for the
+   *     default descriptors.
+   * @throws IllegalArgumentException if some name in the selection does not correspond to a
+   *     descriptor or value.
+   * @throws IllegalStateException if there are problems instantiating one of the descriptors.
+   */
+  public MolecularDescriptorsWrapper(final Collection<String> selection) {
+    layout =
+        LAYOUTS.computeIfAbsent(
+            selection == null
+                ? DEFAULT_SELECTION
+                : Collections.unmodifiableList(new ArrayList<>(selection)),
+            s -> new Layout(selection));
+    calculators = layout.instances();
+    scratch = new double[layout.maxWidth];
+    shareable = new boolean[calculators.size()];
+    for (int i = 0; i < shareable.length; i++) {
+      final String name = calculators.get(i).name();
+      shareable[i] = READ_ONLY.contains(name) && !MUTATING.contains(name);
+    }
+    // the descriptors working on a copy are computed first, so that they copy the molecule as
+    // parsed even if a shared descriptor turns out to modify it
+    order =
+        IntStream.concat(
+                IntStream.range(0, shareable.length).filter(i -> !shareable[i]),
+                IntStream.range(0, shareable.length).filter(i -> shareable[i]))
+            .toArray();
+  }
+
+  private static WrappedMolecularDescriptor instantiate(
+      final Class<? extends IMolecularDescriptor> c) {
     try {
-      calculators =
-          Stream.of(
-                  new AcidicGroupCountDescriptor(),
-                  new ALOGPDescriptor(),
-                  new AminoAcidCountDescriptor(),
-                  new APolDescriptor(),
-                  new AromaticAtomsCountDescriptor(),
-                  new AromaticBondsCountDescriptor(),
-                  new AtomCountDescriptor(),
-                  new AutocorrelationDescriptorCharge(),
-                  new AutocorrelationDescriptorMass(),
-                  new AutocorrelationDescriptorPolarizability(),
-                  new BasicGroupCountDescriptor(),
-                  new BCUTDescriptor(),
-                  new BondCountDescriptor(),
-                  new BPolDescriptor(),
-                  new CarbonTypesDescriptor(),
-                  new ChiChainDescriptor(),
-                  new ChiClusterDescriptor(),
-                  new ChiPathClusterDescriptor(),
-                  new ChiPathDescriptor(),
-                  new EccentricConnectivityIndexDescriptor(),
-                  new FMFDescriptor(),
-                  new FractionalCSP3Descriptor(),
-                  new FractionalPSADescriptor(),
-                  new FragmentComplexityDescriptor(),
-                  new HBondAcceptorCountDescriptor(),
-                  new HBondDonorCountDescriptor(),
-                  new HybridizationRatioDescriptor(),
-                  new JPlogPDescriptor(),
-                  new KappaShapeIndicesDescriptor(),
-                  new KierHallSmartsDescriptor(),
-                  new LargestChainDescriptor(),
-                  new LargestPiSystemDescriptor(),
-                  new MannholdLogPDescriptor(),
-                  new MDEDescriptor(),
-                  new PetitjeanNumberDescriptor(),
-                  new PetitjeanShapeIndexDescriptor(),
-                  new RotatableBondsCountDescriptor(),
-                  new RuleOfFiveDescriptor(),
-                  new SmallRingDescriptor(),
-                  new SpiroAtomCountDescriptor(),
-                  new TPSADescriptor(),
-                  new VAdjMaDescriptor(),
-                  new WeightDescriptor(),
-                  new WeightedPathDescriptor(),
-                  new WienerNumbersDescriptor(),
-                  new XLogPDescriptor(),
-                  new ZagrebIndexDescriptor())
-              .map(WrappedMolecularDescriptor::new)
-              .toList();
-    } catch (CDKException e) {
-      throw new IllegalStateException("Problems instantiating descriptors", e);
-    }
-    numCols = calculators.stream().mapToInt(WrappedMolecularDescriptor::numDescriptors).sum();
+      return new WrappedMolecularDescriptor(c.getDeclaredConstructor().newInstance());
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Problems instantiating descriptor " + c.getSimpleName(), e);
+    }
+  }
+
+  /**
+   * Returns the names of the computed descriptor values, in the order they are computed.
+   *
+   * @return the (unmodifiable) list of names of the computed descriptor values.
+   */
+  public List<String> columns() {
+    return Collections.unmodifiableList(layout.columns);
+  }
+
+  /**
+   * Sets the cache used to store (and retrieve) the descriptor values.
+   *
+   * <p>Molecules are looked up in the cache by their canonical (absolute) SMILES, so that the
+   * descriptors of the same molecule are computed once even if it is written in different ways;
+   * the SMILES keep the aromaticity of the parsed molecule, so that the aromatic and the Kekulé
+   * forms of a molecule, whose descriptors can differ, are cached apart.
+   *
+   * @param cache the cache, or {@code null} to compute the descriptor values every time.
+   * @return this wrapper.
+   */
+  public MolecularDescriptorsWrapper cache(final DescriptorCache cache) {
+    this.cache = cache;
+    return this;
+  }
+
+  /**
+   * Sets the time budget for the computation of the descriptors of a molecule.
+   *
+   * <p>When a budget is set, every descriptor is computed by a thread of a pool shared by all the
+   * wrappers, while the calling thread waits for at most the remaining budget; if the budget is
+   * exceeded the computation is abandoned (the thread is interrupted, and left to terminate on its
+   * own) and the values of the descriptor are replaced with {@code Double.NaN}. Once the budget of
+   * a molecule is exhausted, or if the calling thread is interrupted, the remaining descriptors of
+   * the molecule are not computed at all; all such computations are counted by the budget as
+   * abandoned. Since their values depend on timing, the values of molecules with abandoned
+   * descriptors are not cached.
+   *
+   * @param budget the time budget, or {@code null} to compute the descriptors in the calling thread
+   *     without any limit.
+   * @return this wrapper.
+   */
+  public MolecularDescriptorsWrapper budget(final TimeBudget budget) {
+    this.budget = budget;
+    return this;
+  }
+
+  /**
+   * Sets whether the parsed molecule is shared among the descriptors that don't modify it.
+   *
+   * <p>Every descriptor is usually computed on a copy of the molecule, since many descriptors
+   * modify the molecule they compute (for instance, perceiving atom types or aromaticity); since
+   * copying the molecule is expensive, a conservative list of descriptors known not to modify it
+   * compute directly the parsed molecule. As a safety net, a cheap summary of the state of the
+   * molecule (atoms, bonds, charges, flags, atom types and properties) is compared after every
+   * shared computation: a descriptor found to modify the molecule is computed on a copy from then
+   * on (by all the wrappers) and the molecule is parsed again, so that the values of the other
+   * descriptors are not affected. Sharing is enabled by default, it can be disabled to compare the
+   * values computed in both ways.
+   *
+   * <p>The perception of the molecule (atom types, aromaticity, rings) is not performed once in
+   * advance: the descriptors that need it perceive their input on their own (with their own
+   * models) whether it has been perceived or not, while the others read the molecule as parsed
+   * (for instance, the aromaticity flags of the SMILES), so that a shared perception would save no
+   * work and change some values.
+   *
+   * @param share whether the parsed molecule is shared among the descriptors that don't modify it.
+   * @return this wrapper.
+   */
+  public MolecularDescriptorsWrapper share(final boolean share) {
+    this.share = share;
+    return this;
+  }
+
+  /**
+   * Sets whether the descriptors of a molecule are computed in parallel.
+   *
+   * <p>Usually the descriptors of a molecule are computed one after the other by the calling
+   * thread, and parallelism is obtained computing different molecules in different threads; when
+   * there are fewer molecules than processors (for instance, computing a single molecule) most
+   * processors would then be idle. A wrapper that fans out submits instead every descriptor to a
+   * pool (shared by all the wrappers) having a thread per processor, and the calling thread waits
+   * for all of them, so that the time to compute a molecule approaches that of its slowest
+   * descriptor. Since the descriptors run concurrently, every descriptor computes a copy of the
+   * molecule (see {@link #share(boolean)}); if a {@linkplain #budget(TimeBudget) time budget} is
+   * set the descriptors are computed one after the other anyway.
+   *
+   * <p>Fanning out is disabled by default; {@link #fanOut(int)} tells whether it is convenient for
+   * a batch of molecules.
+   *
+   * @param fanOut whether the descriptors of a molecule are computed in parallel.
+   * @return this wrapper.
+   */
+  public MolecularDescriptorsWrapper fanOut(final boolean fanOut) {
+    this.fanOut = fanOut;
+    return this;
+  }
+
+  /**
+   * Returns whether computing the descriptors of every molecule in parallel (see {@link
+   * #fanOut(boolean)}) is convenient for a batch of the given size, that is, if the batch has fewer
+   * molecules than the available processors.
+   *
+   * @param batchSize the number of molecules of the batch.
+   * @return whether the wrappers computing the batch should fan out.
+   */
+  public static boolean fanOut(final int batchSize) {
+    return batchSize < Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Sets the metrics where the computations of this wrapper are recorded.
+   *
+   * @param metrics the metrics, or {@code null} to disable the recording.
+   * @return this wrapper.
+   */
+  public MolecularDescriptorsWrapper metrics(final DescriptorMetrics metrics) {
+    this.metrics = metrics;
+    for (WrappedMolecularDescriptor wd : calculators) wd.metrics(metrics);
+    return this;
+  }
+
+  /**
+   * Sets where the failures of the computations of this wrapper are accounted.
+   *
+   * <p>Failures (SMILES that can't be parsed, and descriptors whose values are replaced with {@code
+   * Double.NaN}) are otherwise logged at level {@link java.util.logging.Level#FINE}, and their
+   * number (over all the wrappers) is logged at level {@link java.util.logging.Level#WARNING} at
+   * most once a minute. Failures of molecules whose values are found in the {@linkplain
+   * #cache(DescriptorCache) cache} are not accounted again.
+   *
+   * @param failures the failures, or {@code null} to disable the accounting.
+   * @return this wrapper.
+   */
+  public MolecularDescriptorsWrapper failures(final Failures failures) {
+    this.failures = failures;
+    return this;
+  }
+
+  /** Returns where the failures of the computations of this wrapper are accounted. */
+  Failures failures() {
+    return failures;
+  }
+
+  /**
+   * Returns the total number of descriptor values computed for every molecule.
+   *
+   * @return the total number of descriptor values.
+   */
+  public int numDescriptors() {
+    return layout.numCols;
   }
 
   /**
    * Computes the descriptor values for the given molecule.
    *
+   * <p>If the row already holds a descriptor array of the right size it is reused, otherwise a new
+   * one is allocated.
+   *
    * @param line the line containing the SMILES of the molecule for which to calculate the
    *     descriptor values.
    * @return the same {@link TSVRow} with the computed descriptor values set.
    */
   public TSVRow calculate(final TSVRow line) {
+    final double[] values = line.hasDescriptors() ? line.descriptors() : null;
+    row = line; // recorded along with the failures
     try {
-      final IAtomContainer mol = smilesParser.parseSmiles(line.smiles());
-      return line.descriptors(calculators.stream().flatMapToDouble(c -> c.calculate(mol)));
+      return line.descriptors(
+          calculate(
+              line.smiles(), values != null && values.length == layout.numCols ? values : null));
+    } finally {
+      row = null;
+    }
+  }
+
+  /**
+   * Computes the descriptor values for the given molecule and stores them in the given array.
+   *
+   * <p>The values of every wrapped descriptor are stored at a fixed position of the array, in the
+   * same order as returned by {@link #columns()}; apart from the (optional) allocation of the
+   * array, this method does not allocate anything beyond what is required by the CDK descriptors.
+   *
+   * @param smiles the SMILES of the molecule for which to calculate the descriptor values.
+   * @param dest the array where to store the descriptor values, or {@code null} to allocate a new
+   *     one.
+   * @return the array containing the descriptor values.
+   * @throws IllegalArgumentException if {@code dest} does not have {@link #numDescriptors()}
+   *     elements.
+   * @throws UncheckedIOException if an I/O error occurs accessing the cache.
+   */
+  public double[] calculate(final String smiles, double[] dest) {
+    final int numCols = layout.numCols;
+    if (dest == null) dest = new double[numCols];
+    else if (dest.length != numCols)
+      throw new IllegalArgumentException(
+          "The destination array must have " + numCols + " elements");
+    if (metrics != null) metrics.molecule();
+    try {
+      final IAtomContainer mol = smilesParser.parseSmiles(smiles);
+      final String key = cache != null ? canonicalSmiles(mol) : null;
+      if (key == null) calculate(smiles, mol, dest);
+      else cache.computeIfAbsent(key, dest, d -> calculate(smiles, mol, d));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     } catch (InvalidSmilesException e) {
-      LOG.warning(
-          "Could not parse the SMILES "
-              + line.smiles()
-              + " on line "
-              + line
+      if (metrics != null) metrics.parseFailure();
+      if (failures != null) failures.unparsable(row, smiles, e);
+      else unaccounted();
+      if (LOG.isLoggable(Level.FINE))
+        LOG.fine(
+            "Could not parse the SMILES "
+                + smiles
+                + ", descriptors replaced with "
+                + numCols
+                + " NaN"
+                + (numCols > 1 ? "(s)" : ""));
+      Arrays.fill(dest, Double.NaN);
+    }
+    return dest;
+  }
+
+  private boolean calculate(final String smiles, IAtomContainer mol, final double[] dest) {
+    if (fanOut && budget == null) return fanOut(smiles, mol, dest);
+    final long deadline = budget != null ? budget.deadline(System.nanoTime()) : 0;
+    boolean complete = true;
+    long state = 0;
+    boolean stateKnown = false;
+    final int[] offsets = layout.offsets;
+    for (final int i : order) {
+      final boolean shared = share && shareable[i];
+      if (shared && !stateKnown) {
+        state = state(mol);
+        stateKnown = true;
+      }
+      final int[] projection = layout.projections.get(i);
+      final double[] target = projection == null ? dest : scratch;
+      final int offset = projection == null ? offsets[i] : 0;
+      if (budget == null) {
+        final String cause = calculators.get(i).compute(mol, target, offset, !shared);
+        if (cause != null) failed(i, cause, smiles);
+      } else complete &= calculate(i, smiles, mol, !shared, target, offset, deadline);
+      if (projection != null)
+        for (int j = 0; j < projection.length; j++) dest[offsets[i] + j] = scratch[projection[j]];
+      if (shared && state(mol) != state) {
+        final String name = calculators.get(i).name();
+        LOG.warning(name + " modifies the molecule, it will be computed on a copy from now on");
+        MUTATING.add(name);
+        shareable[i] = false;
+        mol = parse(smiles);
+        state = state(mol);
+      }
+    }
+    return complete;
+  }
+
+  /**
+   * Computes the descriptors in the fan out pool, returning {@code false} if the computation has
+   * been abandoned because the calling thread has been interrupted.
+   */
+  private boolean fanOut(final String smiles, final IAtomContainer mol, final double[] dest) {
+    final List<Future<double[]>> futures = new ArrayList<>(calculators.size());
+    final String[] causes = new String[calculators.size()];
+    for (int i = 0; i < causes.length; i++) {
+      final WrappedMolecularDescriptor wd = calculators.get(i);
+      final int d = i;
+      futures.add(
+          FanOut.POOL.submit(
+              () -> {
+                final double[] values = new double[wd.numDescriptors()];
+                causes[d] = wd.compute(mol, values, 0, true);
+                return values;
+              }));
+    }
+    final int[] offsets = layout.offsets;
+    for (int i = 0; i < futures.size(); i++) {
+      final double[] values;
+      try {
+        values = futures.get(i).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        abandon(futures, i);
+        for (int j = i; j < futures.size(); j++)
+          failed(j, InterruptedException.class.getName(), smiles);
+        Arrays.fill(dest, offsets[i], layout.numCols, Double.NaN);
+        return false;
+      } catch (ExecutionException e) {
+        abandon(futures, i + 1);
+        if (e.getCause() instanceof Error error) throw error;
+        throw new IllegalStateException(e.getCause());
+      }
+      if (causes[i] != null) failed(i, causes[i], smiles);
+      final int[] projection = layout.projections.get(i);
+      if (projection == null) System.arraycopy(values, 0, dest, offsets[i], values.length);
+      else for (int j = 0; j < projection.length; j++) dest[offsets[i] + j] = values[projection[j]];
+    }
+    return true;
+  }
+
+  /**
+   * Cancels the computations starting from the given one; since the descriptor instances of the
+   * computations already started may still be in use, they are replaced.
+   */
+  private void abandon(final List<Future<double[]>> futures, final int from) {
+    for (int i = from; i < futures.size(); i++)
+      if (futures.get(i).cancel(true))
+        calculators.set(i, instantiate(calculators.get(i).descriptorClass()).metrics(metrics));
+  }
+
+  private IAtomContainer parse(final String smiles) {
+    try {
+      return smilesParser.parseSmiles(smiles);
+    } catch (InvalidSmilesException e) {
+      throw new IllegalStateException("Could not parse again the SMILES " + smiles, e);
+    }
+  }
+
+  /**
+   * Returns a summary of the state of a molecule that may be modified by a descriptor.
+   *
+   * <p>The fields are folded by hand (instead of using {@link Objects#hash(Object...)}) so that
+   * computing the summary does not allocate, since it happens for every shared descriptor.
+   */
+  private static long state(final IAtomContainer mol) {
+    long h = mol.getAtomCount();
+    h = 31 * h + mol.getBondCount();
+    h = 31 * h + mol.getLonePairCount();
+    h = 31 * h + mol.getSingleElectronCount();
+    h = 31 * h + mol.getProperties().size();
+    for (IAtom a : mol.atoms()) {
+      h = 31 * h + Objects.hashCode(a.getSymbol());
+      h = 31 * h + Objects.hashCode(a.getFormalCharge());
+      h = 31 * h + Objects.hashCode(a.getImplicitHydrogenCount());
+      h = 31 * h + Objects.hashCode(a.getAtomTypeName());
+      h = 31 * h + Objects.hashCode(a.getHybridization());
+      h = 31 * h + Objects.hashCode(a.getCharge());
+      h = 31 * h + Objects.hashCode(a.getValency());
+      h = 31 * h + Objects.hashCode(a.getMassNumber());
+      h = 31 * h + (a.isAromatic() ? 1 : 0);
+      h = 31 * h + (a.isInRing() ? 1 : 0);
+      h = 31 * h + a.getProperties().size();
+    }
+    for (IBond b : mol.bonds()) {
+      h = 31 * h + Objects.hashCode(b.getOrder());
+      h = 31 * h + Objects.hashCode(b.getStereo());
+      h = 31 * h + (b.isAromatic() ? 1 : 0);
+      h = 31 * h + (b.isInRing() ? 1 : 0);
+      h = 31 * h + b.getProperties().size();
+    }
+    return h;
+  }
+
+  /**
+   * Computes the values of the i-th descriptor within the budget, returning {@code false} if the
+   * computation has been abandoned.
+   */
+  private boolean calculate(
+      final int i,
+      final String smiles,
+      final IAtomContainer mol,
+      final boolean copy,
+      final double[] dest,
+      final int offset,
+      final long deadline) {
+    final WrappedMolecularDescriptor wd = calculators.get(i);
+    final long timeLeft = budget.timeLeft(deadline);
+    String cause = TimeoutException.class.getName();
+    if (Thread.currentThread().isInterrupted()) cause = InterruptedException.class.getName();
+    else if (timeLeft > 0) {
+      // the values are computed in a private array, so that an abandoned computation can't
+      // overwrite the destination
+      final String[] computed = new String[1];
+      final Future<double[]> future =
+          Runners.POOL.submit(
+              () -> {
+                final double[] values = new double[wd.numDescriptors()];
+                computed[0] = wd.compute(mol, values, 0, copy);
+                return values;
+              });
+      try {
+        System.arraycopy(
+            future.get(timeLeft, TimeUnit.NANOSECONDS), 0, dest, offset, wd.numDescriptors());
+        if (computed[0] != null) failed(i, computed[0], smiles);
+        return true;
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Error error) throw error;
+        throw new IllegalStateException(e.getCause());
+      } catch (InterruptedException e) {
+        // the remaining descriptors of the molecule are skipped (see above)
+        Thread.currentThread().interrupt();
+        cause = InterruptedException.class.getName();
+      } catch (TimeoutException e) {
+        // abandoned below
+      }
+      // the abandoned thread may still be using the descriptor instance, hence it is replaced
+      future.cancel(true);
+      calculators.set(i, instantiate(wd.descriptorClass()).metrics(metrics));
+    }
+    timedOut(wd);
+    failed(i, cause, smiles);
+    if (LOG.isLoggable(Level.FINE))
+      LOG.fine(
+          "Abandoned the computation of "
+              + wd.name()
               + ", descriptors replaced with "
-              + numCols
+              + wd.numDescriptors()
               + " NaN"
-              + (numCols > 1 ? "(s)" : ""));
-      return line.descriptors(DoubleStream.generate(() -> Double.NaN).limit(numCols));
+              + (wd.numDescriptors() > 1 ? "(s)" : ""));
+    Arrays.fill(dest, offset, offset + wd.numDescriptors(), Double.NaN);
+    return false;
+  }
+
+  private void failed(final int i, final String cause, final String smiles) {
+    if (failures != null) failures.failed(calculators.get(i).name(), cause, row, smiles);
+    else unaccounted();
+  }
+
+  /**
+   * Counts a failure not accounted by a {@link Failures}, logging a warning with the number of
+   * such failures if the last one has been logged long enough ago.
+   */
+  private static void unaccounted() {
+    UNACCOUNTED.incrementAndGet();
+    final long next = NEXT_UNACCOUNTED_WARNING.get();
+    final long now = System.nanoTime();
+    if (now - next < 0
+        || !NEXT_UNACCOUNTED_WARNING.compareAndSet(next, now + UNACCOUNTED_WARNING_INTERVAL))
+      return;
+    final long n = UNACCOUNTED.getAndSet(0);
+    LOG.warning(
+        n
+            + " SMILES parsing or descriptor computation(s) failed (values replaced with NaN)"
+            + " since the last warning, set the failures of the wrappers to account them");
+  }
+
+  private void timedOut(final WrappedMolecularDescriptor wd) {
+    budget.timedOut();
+    if (metrics != null) metrics.stats(wd.name()).timedOut();
+  }
+
+  private String canonicalSmiles(final IAtomContainer mol) {
+    try {
+      return smilesGenerator.create(mol);
+    } catch (CDKException | RuntimeException e) {
+      return null;
     }
   }
 
   @Override
   public String toString() {
-    int n = 1;
+    int n = 0;
     StringJoiner sj = new StringJoiner("\n", "", "");
-    for (WrappedMolecularDescriptor wd : calculators) {
-      sj.add(wd.name());
-      for (String s : wd.descriptors()) sj.add("\t" + (n++) + ": " + s);
+    final int[] offsets = layout.offsets;
+    for (int i = 0; i < offsets.length; i++) {
+      sj.add(calculators.get(i).name());
+      final int next = i + 1 < offsets.length ? offsets[i + 1] : layout.numCols;
+      while (n < next) sj.add("\t" + (n + 1) + ": " + layout.columns.get(n++));
     }
     return sj.toString();
   }
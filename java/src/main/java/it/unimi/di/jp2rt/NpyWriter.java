@@ -0,0 +1,166 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Writes the descriptor values of {@link TSVRow} instances as a binary matrix in <a
+ * href="https://numpy.org/doc/stable/reference/generated/numpy.lib.format.html">NPY format</a>.
+ *
+ * <p>The matrix is stored in row-major order as little-endian {@code float64} (or {@code float32})
+ * values, so that it can be memory mapped (for instance with {@code numpy.load(path,
+ * mmap_mode='r')}) without any parsing; the remaining fields of every row (the extra fields and the
+ * SMILES) are written, in the same order, in tab separated format to a <em>sidecar</em> file whose
+ * path is given by {@link #sidecar(String)}.
+ *
+ * <p>Since the number of rows is not known in advance, a fixed size header is reserved at the
+ * beginning of the file and filled when the writer is closed. The {@link #write(TSVRow)} method is
+ * synchronized, so that a single writer can be used as the terminal operation of a parallel stream.
+ */
+public class NpyWriter implements RowWriter {
+
+  /** The extension of the files written by this class. */
+  public static final String EXTENSION = ".npy";
+
+  /** The extension of the sidecar files written by this class. */
+  public static final String SIDECAR_EXTENSION = ".smiles.tsv";
+
+  static final int HEADER_SIZE = 128;
+
+  private final FileChannel channel;
+  private final TSVWriter sidecar;
+  private final boolean asFloat;
+  private final ByteBuffer buffer;
+  private final int numCols;
+  private long numRows = 0;
+
+  /**
+   * Creates a new {@link NpyWriter} writing to the given file (and to its sidecar); both files are
+   * created, or truncated if they already exist.
+   *
+   * @param path the path of the file to write to.
+   * @param numCols the number of descriptor values of every row (that is, the number of columns of
+   *     the matrix, even if no row is written).
+   * @param asFloat if {@code true} the values are written as {@code float32}, otherwise as {@code
+   *     float64}.
+   * @throws NullPointerException if the path parameter is {@code null}.
+   * @throws IllegalArgumentException if the number of columns is negative.
+   * @throws IOException if an I/O error occurs.
+   */
+  public NpyWriter(final Path path, final int numCols, final boolean asFloat) throws IOException {
+    Objects.requireNonNull(path, "The path parameter must not be null");
+    if (numCols < 0)
+      throw new IllegalArgumentException("The number of columns must not be negative");
+    this.numCols = numCols;
+    this.asFloat = asFloat;
+    channel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    channel.position(HEADER_SIZE);
+    sidecar = new TSVWriter(Paths.get(sidecar(path.toString())));
+    buffer =
+        ByteBuffer.allocateDirect(TSVWriter.DEFAULT_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Returns the path of the sidecar file corresponding to the given path.
+   *
+   * @param path the path of the binary file.
+   * @return the path of the sidecar file.
+   */
+  public static String sidecar(final String path) {
+    return (path.endsWith(EXTENSION) ? path.substring(0, path.length() - EXTENSION.length()) : path)
+        + SIDECAR_EXTENSION;
+  }
+
+  @Override
+  public synchronized void write(final TSVRow row) throws IOException {
+    Objects.requireNonNull(row, "The row parameter must not be null");
+    final double[] descriptors = row.descriptors();
+    if (descriptors.length != numCols)
+      throw new IllegalArgumentException(
+          "All the rows must have the same number (" + numCols + ") of descriptor values");
+    final int size = numCols * (asFloat ? Float.BYTES : Double.BYTES);
+    if (buffer.remaining() < size) flush();
+    if (buffer.remaining() < size) {
+      final ByteBuffer bb = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+      put(bb, descriptors);
+      write(bb.flip());
+    } else put(buffer, descriptors);
+    sidecar.writeFields(row);
+    numRows++;
+  }
+
+  private void put(final ByteBuffer bb, final double[] descriptors) {
+    if (asFloat) for (double d : descriptors) bb.putFloat((float) d);
+    else for (double d : descriptors) bb.putDouble(d);
+  }
+
+  private void write(final ByteBuffer bb) throws IOException {
+    while (bb.hasRemaining()) channel.write(bb);
+  }
+
+  private void flush() throws IOException {
+    write(buffer.flip());
+    buffer.clear();
+  }
+
+  static ByteBuffer header(final boolean asFloat, final long numRows, final int numCols) {
+    final StringBuilder dict =
+        new StringBuilder("{'descr': '")
+            .append(asFloat ? "<f4" : "<f8")
+            .append("', 'fortran_order': False, 'shape': (")
+            .append(numRows)
+            .append(", ")
+            .append(numCols)
+            .append("), }");
+    final int len = HEADER_SIZE - 10;
+    while (dict.length() < len - 1) dict.append(' ');
+    dict.append('\n');
+    final ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    bb.put((byte) 0x93).put("NUMPY".getBytes(StandardCharsets.US_ASCII)).put((byte) 1).put((byte) 0);
+    bb.putShort((short) len).put(dict.toString().getBytes(StandardCharsets.US_ASCII));
+    return bb.flip();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try (sidecar;
+        channel) {
+      flush();
+      channel.position(0);
+      write(header(asFloat, numRows, numCols));
+    }
+  }
+}
@@ -0,0 +1,398 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A pipeline computing the molecular descriptors of a stream of lines with a dedicated, bounded,
+ * pool of threads.
+ *
+ * <p>The pipeline is made of three stages connected by bounded queues: the calling thread reads the
+ * lines and groups them in batches, a pool of worker threads (each owning its {@link
+ * MolecularDescriptorsWrapper}) computes the descriptors of every batch, and a writer thread writes
+ * the computed rows with a {@link RowWriter}. Since every queue is bounded, a slow stage suspends
+ * the previous ones, and the memory used does not depend on the size of the input; in ordered mode
+ * the computed batches are put back in order by a {@link ReorderBuffer} before being written.
+ *
+ * <p>Contrary to parallel streams, that run in the JVM-wide common {@link
+ * java.util.concurrent.ForkJoinPool}, the number of threads used by a pipeline is under the control
+ * of the caller.
+ *
+ * <p>Since the cost of a molecule varies by orders of magnitude, a run can end with a single worker
+ * busy on a few large molecules; to avoid that, a pipeline can schedule the lines <em>longest
+ * first</em> (see {@link #lookahead(int)}): the lines are read in windows, sorted by decreasing
+ * {@linkplain #estimateCost(String) estimated cost}, and grouped in batches of similar estimated
+ * cost, so that the expensive molecules are computed first (every one in a batch of its own) and
+ * the cheap ones fill the gaps at the end, as idle workers take the next batch from the queue.
+ */
+public class Pipeline {
+
+  /** The default number of lines of every batch. */
+  public static final int DEFAULT_BATCH_SIZE = 8;
+
+  /** The default number, per worker thread, of batches waiting in every queue. */
+  public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+  /** The default number of lines read ahead when scheduling the longest lines first. */
+  public static final int DEFAULT_LOOKAHEAD = 1 << 16;
+
+  /** A batch of lines (and, once computed, of rows) tagged with its sequence number. */
+  private record Batch(long seq, List<String> lines, List<TSVRow> rows) {}
+
+  private static final Batch END = new Batch(-1, List.of(), List.of());
+
+  /** The time, in milliseconds, between two attempts of putting {@link #END} in a full queue. */
+  private static final long END_POLL_MILLIS = 100;
+
+  private final Supplier<MolecularDescriptorsWrapper> wrappers;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private int queueCapacity = -1;
+  private boolean ordered = false;
+  private int lookahead = 0;
+
+  /**
+   * Creates a new {@link Pipeline} using wrappers obtained from the given supplier.
+   *
+   * @param wrappers the supplier of the wrappers (invoked once for every worker thread), or {@code
+   *     null} to use the default ones.
+   */
+  public Pipeline(final Supplier<MolecularDescriptorsWrapper> wrappers) {
+    this.wrappers = wrappers != null ? wrappers : MolecularDescriptorsWrapper::new;
+  }
+
+  /**
+   * Sets the number of worker threads (by default, the number of available processors).
+   *
+   * @param threads the number of worker threads.
+   * @return this pipeline.
+   * @throws IllegalArgumentException if the number of threads is not positive.
+   */
+  public Pipeline threads(final int threads) {
+    if (threads <= 0) throw new IllegalArgumentException("The number of threads must be positive");
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * Sets the number of lines of every batch (by default, {@link #DEFAULT_BATCH_SIZE}); smaller
+   * batches balance better the load when the cost of the molecules is very uneven, larger ones
+   * reduce the synchronization overhead.
+   *
+   * @param batchSize the number of lines of every batch.
+   * @return this pipeline.
+   * @throws IllegalArgumentException if the batch size is not positive.
+   */
+  public Pipeline batchSize(final int batchSize) {
+    if (batchSize <= 0) throw new IllegalArgumentException("The batch size must be positive");
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of batches waiting in every queue, and (in ordered mode) in the reorder
+   * buffer; by default, it is {@link #DEFAULT_QUEUE_CAPACITY} times the number of threads.
+   *
+   * @param queueCapacity the maximum number of batches waiting in every queue.
+   * @return this pipeline.
+   * @throws IllegalArgumentException if the capacity is not positive.
+   */
+  public Pipeline queueCapacity(final int queueCapacity) {
+    if (queueCapacity <= 0) throw new IllegalArgumentException("The capacity must be positive");
+    this.queueCapacity = queueCapacity;
+    return this;
+  }
+
+  /**
+   * Sets whether the rows must be written in the same order of the lines (by default, they are
+   * written as soon as they are computed).
+   *
+   * @param ordered whether the order of the lines must be preserved.
+   * @return this pipeline.
+   */
+  public Pipeline ordered(final boolean ordered) {
+    this.ordered = ordered;
+    return this;
+  }
+
+  /**
+   * Sets the number of lines read ahead and scheduled longest first (by default, 0, that is, lines
+   * are scheduled in the order they are read); see {@link #DEFAULT_LOOKAHEAD} for a sensible value.
+   *
+   * <p>Within every window of {@code lookahead} lines, the lines are sorted by decreasing
+   * {@linkplain #estimateCost(String) estimated cost} and grouped in batches whose estimated cost
+   * is roughly the mean cost of {@linkplain #batchSize(int) a batch}. Longest first scheduling
+   * can't be used in ordered mode.
+   *
+   * @param lookahead the number of lines read ahead, or 0 to schedule the lines in order.
+   * @return this pipeline.
+   * @throws IllegalArgumentException if the lookahead is negative.
+   */
+  public Pipeline lookahead(final int lookahead) {
+    if (lookahead < 0) throw new IllegalArgumentException("The lookahead must not be negative");
+    this.lookahead = lookahead;
+    return this;
+  }
+
+  /**
+   * Estimates the cost of computing the descriptors of a line from its SMILES, without parsing it.
+   *
+   * <p>The estimate is {@code a² (1 + r)}, where {@code a} is the number of heavy atoms and {@code
+   * r} the number of ring closures (that is, half the number of ring closure labels, since every
+   * closure is labelled where the ring is opened and where it is closed): many descriptors work on
+   * the (quadratic) distance matrix of the molecule, and the perception of rings and aromaticity
+   * grows with the number of rings. The estimate is meant to be cheap (a single scan of the
+   * SMILES), not accurate, since it is used just to sort the lines.
+   *
+   * @param line the line (ending with a SMILES).
+   * @return the estimated cost.
+   */
+  public static long estimateCost(final String line) {
+    long atoms = 0, labels = 0;
+    boolean bracket = false;
+    for (int i = line.lastIndexOf('\t') + 1; i < line.length(); i++) {
+      final char c = line.charAt(i);
+      if (bracket) bracket = c != ']';
+      else if (c == '[') {
+        bracket = true;
+        atoms++;
+      } else if (c >= 'A' && c <= 'Z' || "bcnops".indexOf(c) >= 0) atoms++; // not the l of Cl
+      else if (c >= '0' && c <= '9') labels++;
+      else if (c == '%') {
+        labels++;
+        i += 2;
+      }
+    }
+    return atoms * atoms * (2 + labels) / 2;
+  }
+
+  /**
+   * Computes the descriptors of the given lines and writes them with the given writer; the stream
+   * is consumed sequentially by the calling thread, and the writer is not closed by this method.
+   *
+   * @param lines the stream of lines (each ending with a SMILES).
+   * @param writer the writer to use.
+   * @throws NullPointerException if one of the parameters is {@code null}.
+   * @throws IllegalStateException if both the ordered mode and longest first scheduling are set.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void run(final Stream<String> lines, final RowWriter writer) throws IOException {
+    Objects.requireNonNull(lines, "Stream cannot be null");
+    Objects.requireNonNull(writer, "Writer cannot be null");
+    if (ordered && lookahead > 0)
+      throw new IllegalStateException("Longest first scheduling does not preserve the order");
+    final int capacity = queueCapacity > 0 ? queueCapacity : DEFAULT_QUEUE_CAPACITY * threads;
+    final BlockingQueue<Batch> input = new ArrayBlockingQueue<>(capacity);
+    final BlockingQueue<Batch> output = new ArrayBlockingQueue<>(capacity);
+    final ReorderBuffer<Batch> reorder =
+        ordered
+            ? new ReorderBuffer<>(
+                capacity,
+                b -> {
+                  try {
+                    output.put(b);
+                  } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                  }
+                })
+            : null;
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final AtomicInteger running = new AtomicInteger(threads);
+    final Thread reader = Thread.currentThread();
+    final ExecutorService executor =
+        Executors.newFixedThreadPool(
+            threads + 1,
+            r -> {
+              final Thread t = new Thread(r, "jp2rt-pipeline");
+              t.setDaemon(true);
+              return t;
+            });
+    try {
+      final List<Future<?>> stages = new ArrayList<>();
+      for (int i = 0; i < threads; i++)
+        stages.add(
+            executor.submit(
+                () -> {
+                  try {
+                    work(input, reorder != null ? reorder::put : (seq, b) -> output.put(b));
+                  } catch (Throwable t) {
+                    fail(failure, t, reader, executor);
+                  } finally {
+                    if (running.decrementAndGet() == 0) end(output, failure);
+                  }
+                  return null;
+                }));
+      stages.add(
+          executor.submit(
+              () -> {
+                try {
+                  for (Batch b = output.take(); b != END; b = output.take())
+                    for (TSVRow row : b.rows) writer.write(row);
+                } catch (Throwable t) {
+                  fail(failure, t, reader, executor);
+                }
+                return null;
+              }));
+      try {
+        if (lookahead > 0) readLongestFirst(lines.iterator(), input, failure);
+        else read(lines.iterator(), input, reorder, failure);
+      } catch (UncheckedIOException e) {
+        fail(failure, e.getCause(), reader, executor);
+      }
+      for (int i = 0; i < threads && failure.get() == null; i++) input.put(END);
+      for (Future<?> f : stages) f.get();
+    } catch (InterruptedException e) {
+      if (failure.get() == null) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while computing descriptors", e);
+      }
+    } catch (ExecutionException e) {
+      failure.compareAndSet(null, e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    final Throwable t = failure.get();
+    if (t instanceof IOException e) throw e;
+    if (t instanceof RuntimeException e) throw e;
+    if (t instanceof Error e) throw e;
+    if (t != null) throw new IOException(t);
+  }
+
+  /**
+   * Records the first failure, stopping all the stages (including the reader, that may be waiting
+   * for room in a queue).
+   */
+  private static void fail(
+      final AtomicReference<Throwable> failure,
+      final Throwable t,
+      final Thread reader,
+      final ExecutorService executor) {
+    if (!failure.compareAndSet(null, t)) return;
+    executor.shutdownNow();
+    if (reader != Thread.currentThread()) reader.interrupt();
+  }
+
+  /**
+   * Puts the end marker in the output queue, unless the pipeline has failed.
+   *
+   * <p>The queue may be full, hence a single {@link BlockingQueue#offer(Object)} could drop the
+   * marker; on the other hand, once the pipeline has failed the writer may be gone and nobody
+   * drains the queue any more, hence a {@link BlockingQueue#put(Object)} could block forever (the
+   * interrupt sent by the shutdown may have already been consumed by the worker). The marker is
+   * thus offered repeatedly, checking for failures in between.
+   */
+  private static void end(
+      final BlockingQueue<Batch> output, final AtomicReference<Throwable> failure) {
+    try {
+      while (failure.get() == null)
+        if (output.offer(END, END_POLL_MILLIS, TimeUnit.MILLISECONDS)) return;
+    } catch (InterruptedException e) {
+      // the pipeline is being shut down
+    }
+  }
+
+  /** The destination of the batches computed by a worker. */
+  @FunctionalInterface
+  private interface BatchSink {
+    void put(long seq, Batch batch) throws IOException, InterruptedException;
+  }
+
+  private void read(
+      final Iterator<String> it,
+      final BlockingQueue<Batch> input,
+      final ReorderBuffer<Batch> reorder,
+      final AtomicReference<Throwable> failure)
+      throws InterruptedException {
+    for (long seq = 0; it.hasNext() && failure.get() == null; seq++) {
+      final List<String> lines = new ArrayList<>(batchSize);
+      while (lines.size() < batchSize && it.hasNext()) lines.add(it.next());
+      if (reorder != null) reorder.acquire();
+      input.put(new Batch(seq, lines, null));
+    }
+  }
+
+  private void readLongestFirst(
+      final Iterator<String> it,
+      final BlockingQueue<Batch> input,
+      final AtomicReference<Throwable> failure)
+      throws InterruptedException {
+    final List<String> window = new ArrayList<>();
+    long seq = 0;
+    while (it.hasNext() && failure.get() == null) {
+      window.clear();
+      while (window.size() < lookahead && it.hasNext()) window.add(it.next());
+      final long[] cost = new long[window.size()];
+      double total = 0;
+      for (int i = 0; i < cost.length; i++) total += cost[i] = estimateCost(window.get(i));
+      final int[] order =
+          IntStream.range(0, cost.length)
+              .boxed()
+              .sorted(Comparator.comparingLong((Integer i) -> cost[i]).reversed())
+              .mapToInt(Integer::intValue)
+              .toArray();
+      final double budget = total * batchSize / cost.length;
+      List<String> batch = new ArrayList<>();
+      double batchCost = 0;
+      for (int i : order) {
+        batch.add(window.get(i));
+        batchCost += cost[i];
+        if (batchCost >= budget) {
+          input.put(new Batch(seq++, batch, null));
+          batch = new ArrayList<>();
+          batchCost = 0;
+        }
+      }
+      if (!batch.isEmpty()) input.put(new Batch(seq++, batch, null));
+    }
+  }
+
+  private void work(final BlockingQueue<Batch> input, final BatchSink sink)
+      throws IOException, InterruptedException {
+    final MolecularDescriptorsWrapper wrapper = wrappers.get();
+    for (Batch b = input.take(); b != END; b = input.take()) {
+      final List<TSVRow> rows = new ArrayList<>(b.lines.size());
+      for (String line : b.lines) rows.add(wrapper.calculate(new TSVRow(line)));
+      sink.put(b.seq, new Batch(b.seq, null, rows));
+    }
+  }
+}
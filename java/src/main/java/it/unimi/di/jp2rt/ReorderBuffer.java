@@ -0,0 +1,118 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A bounded buffer that receives items tagged with a sequence number, in any order, and hands them
+ * to a sink in sequence order.
+ *
+ * <p>The producer must call {@link #acquire()} before dispatching every new sequence number (that
+ * must be assigned consecutively starting from 0), and the item must then be passed to {@link
+ * #put(long, Object)} (possibly by another thread); {@link #acquire()} blocks as long as {@code
+ * capacity} items are dispatched but not yet handed to the sink, hence the buffer never holds more
+ * than {@code capacity} items.
+ *
+ * @param <T> the type of the items.
+ */
+public class ReorderBuffer<T> {
+
+  /**
+   * A sink receiving the items in sequence order.
+   *
+   * @param <T> the type of the items.
+   */
+  @FunctionalInterface
+  public interface Sink<T> {
+    /**
+     * Receives the next item.
+     *
+     * @param item the item.
+     * @throws IOException if an I/O error occurs.
+     */
+    void accept(T item) throws IOException;
+  }
+
+  private final Object[] slots;
+  private final boolean[] full;
+  private final Semaphore permits;
+  private final Sink<T> sink;
+  private long next = 0;
+
+  /**
+   * Creates a new {@link ReorderBuffer}.
+   *
+   * @param capacity the maximum number of items held by the buffer.
+   * @param sink the sink receiving the items in sequence order.
+   * @throws IllegalArgumentException if the capacity is not positive.
+   * @throws NullPointerException if the sink is {@code null}.
+   */
+  public ReorderBuffer(final int capacity, final Sink<T> sink) {
+    if (capacity <= 0) throw new IllegalArgumentException("The capacity must be positive");
+    slots = new Object[capacity];
+    full = new boolean[capacity];
+    permits = new Semaphore(capacity);
+    this.sink = Objects.requireNonNull(sink, "The sink must not be null");
+  }
+
+  /**
+   * Waits until there is room for a new sequence number.
+   *
+   * @throws InterruptedException if the current thread is interrupted while waiting.
+   */
+  public void acquire() throws InterruptedException {
+    permits.acquire();
+  }
+
+  /**
+   * Puts an item in the buffer, handing to the sink all the items that are now in sequence.
+   *
+   * <p>A {@code null} item is allowed, it fills its position in the sequence but it is not handed
+   * to the sink.
+   *
+   * @param seq the sequence number of the item.
+   * @param item the item.
+   * @throws IOException if the sink throws an exception.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized void put(final long seq, final T item) throws IOException {
+    final int slot = (int) (seq % slots.length);
+    slots[slot] = item;
+    full[slot] = true;
+    int released = 0;
+    try {
+      for (int i = (int) (next % slots.length); full[i]; i = (int) (next % slots.length)) {
+        final T t = (T) slots[i];
+        slots[i] = null;
+        full[i] = false;
+        next++;
+        released++;
+        if (t != null) sink.accept(t);
+      }
+    } finally {
+      permits.release(released);
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A sink for {@link TSVRow} instances.
+ *
+ * <p>Implementations must allow concurrent invocations of {@link #write(TSVRow)}, so that a single
+ * writer can be used as the terminal operation of a parallel stream.
+ */
+public interface RowWriter extends Closeable {
+
+  /**
+   * Writes the given row.
+   *
+   * @param row the row to write.
+   * @throws NullPointerException if the row parameter is {@code null}.
+   * @throws IOException if an I/O error occurs.
+   */
+  void write(TSVRow row) throws IOException;
+}
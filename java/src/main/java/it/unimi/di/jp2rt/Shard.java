@@ -0,0 +1,471 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPOutputStream;
+import me.tongfei.progressbar.ProgressBar;
+import me.tongfei.progressbar.ProgressBarBuilder;
+
+/**
+ * A shard of an input file, that is the part of its lines assigned to one of {@code n} independent
+ * processes (possibly on different nodes) computing the descriptors of the whole file.
+ *
+ * <p>Shards are numbered from 1 to {@code n}. The lines of an uncompressed file are split by
+ * <em>byte range</em>: the {@code i}-th shard contains the lines starting in the {@code i}-th of
+ * {@code n} equal ranges of bytes of the file, so that every process reads just its part of the
+ * file, and concatenating the (ordered) outputs of the shards gives the lines in input order. The
+ * lines of compressed files, and of the standard input, are instead split by a stable hash of
+ * their content, so that every process reads the whole input.
+ *
+ * <p>After the computation a small metadata file (whose path is given by {@link
+ * #metadataPath(String)}) records the shard, the input (and, for a file, its last modification
+ * time), the descriptors and the number of computed rows; the outputs of all the shards can then
+ * be combined by {@link #merge(List, String)}, that uses the metadata to check that no shard, nor
+ * row, is missing, and that all the shards have been computed on the same version of the input.
+ */
+public class Shard {
+
+  /** The extension of the files containing the metadata of a shard output. */
+  public static final String EXTENSION = ".shard";
+
+  private static final String VERSION_KEY = "JP2RT-Shard-Version";
+  private static final String VERSION = "1";
+  private static final Pattern NPY_HEADER =
+      Pattern.compile("'descr': '([^']*)'.*'shape': \\((\\d+), (\\d+)\\)");
+
+  private final int index;
+  private final int count;
+  private final AtomicLong rows = new AtomicLong();
+  private final AtomicLong inputLines = new AtomicLong();
+  private String input;
+  private long inputSize = -1;
+  private long inputModified = -1;
+  private long start;
+  private long end;
+
+  /**
+   * Creates a new shard.
+   *
+   * @param index the index of the shard, between 1 and {@code count} (both included).
+   * @param count the number of shards.
+   * @throws IllegalArgumentException if the index is not between 1 and {@code count}.
+   */
+  public Shard(final int index, final int count) {
+    if (count <= 0 || index < 1 || index > count)
+      throw new IllegalArgumentException("The shard must be between 1 and " + count);
+    this.index = index;
+    this.count = count;
+  }
+
+  /**
+   * Returns the shard denoted by the given specification, of the form {@code i/n}.
+   *
+   * @param spec the shard specification.
+   * @return the shard.
+   * @throws IllegalArgumentException if the specification is malformed.
+   */
+  public static Shard parse(final String spec) {
+    final String[] parts = spec.split("/");
+    try {
+      if (parts.length == 2)
+        return new Shard(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException("The shard must be given as i/n, not " + spec);
+  }
+
+  /**
+   * Returns the path of the file containing the metadata of the given shard output.
+   *
+   * @param outPath the path of the output file of a shard.
+   * @return the path of the metadata file.
+   */
+  public static String metadataPath(final String outPath) {
+    return outPath + EXTENSION;
+  }
+
+  @Override
+  public String toString() {
+    return index + "/" + count;
+  }
+
+  /**
+   * Returns the stream of the lines of the given file (or of the standard input, if the path is
+   * {@link MolecularDescriptorsCalculator#STANDARD_STREAM}) belonging to this shard.
+   *
+   * <p>The returned stream must be closed; its lines are counted, so that the metadata written by
+   * {@link #writeMetadata(String, MolecularDescriptorsWrapper)} refers to the last stream returned.
+   *
+   * @param inPath the path of the file, or {@link MolecularDescriptorsCalculator#STANDARD_STREAM}.
+   * @param progress whether a progress bar should be displayed while the stream is consumed.
+   * @return the stream of lines of this shard.
+   * @throws NullPointerException if the path parameter is {@code null}.
+   * @throws IllegalArgumentException if the file does not exist or is not readable.
+   * @throws IOException if an I/O error occurs.
+   */
+  public Stream<String> lines(final String inPath, final boolean progress) throws IOException {
+    Objects.requireNonNull(inPath, "Input file cannot be null");
+    rows.set(0);
+    inputLines.set(0);
+    if (!inPath.equals(MolecularDescriptorsCalculator.STANDARD_STREAM)) {
+      final Path p = Paths.get(inPath);
+      if (!(p.toFile().isFile() && p.toFile().canRead()))
+        throw new IllegalArgumentException("Input file does not exist or is not readable");
+      input = p.getFileName().toString();
+      inputModified = Files.getLastModifiedTime(p).toMillis();
+      if (!compressed(p)) {
+        inputSize = Files.size(p);
+        start = inputSize * (index - 1) / count;
+        end = inputSize * index / count;
+        final Stream<String> lines = range(p);
+        return progress
+            ? ProgressBar.wrap(lines, new ProgressBarBuilder().setTaskName("Computing " + this))
+                .onClose(lines::close)
+            : lines;
+      }
+    } else {
+      input = inPath;
+      inputModified = -1;
+    }
+    inputSize = -1;
+    return MolecularDescriptorsCalculator.lines(inPath, progress)
+        .filter(
+            line -> {
+              inputLines.incrementAndGet();
+              if (!selects(line)) return false;
+              rows.incrementAndGet();
+              return true;
+            });
+  }
+
+  private boolean selects(final String line) {
+    final int h = line.hashCode() * 0x9E3779B9; // String.hashCode() is part of its specification
+    return Math.floorMod(h ^ (h >>> 16), count) == index - 1;
+  }
+
+  private static boolean compressed(final Path p) throws IOException {
+    try (InputStream in = Files.newInputStream(p)) {
+      return in.read() == 0x1f && in.read() == 0x8b;
+    }
+  }
+
+  private Stream<String> range(final Path p) throws IOException {
+    final FileChannel channel = FileChannel.open(p, StandardOpenOption.READ);
+    final InputStream in =
+        new BufferedInputStream(Channels.newInputStream(channel.position(Math.max(start - 1, 0))));
+    final Spliterator<String> spliterator =
+        new Spliterators.AbstractSpliterator<String>(
+            Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+          private long pos = Math.max(start - 1, 0);
+          private byte[] line = new byte[256];
+          private boolean started = start == 0;
+
+          @Override
+          public boolean tryAdvance(final Consumer<? super String> action) {
+            try {
+              if (!started) { // the line containing the first byte belongs to the previous shard
+                started = true;
+                int b;
+                do {
+                  b = in.read();
+                  pos++;
+                } while (b != -1 && b != '\n');
+              }
+              if (pos >= end) return false;
+              int n = 0, b;
+              while ((b = in.read()) != -1) {
+                pos++;
+                if (b == '\n') break;
+                if (n == line.length) line = Arrays.copyOf(line, 2 * n);
+                line[n++] = (byte) b;
+              }
+              if (b == -1 && n == 0) {
+                pos = end;
+                return false;
+              }
+              if (n > 0 && line[n - 1] == '\r') n--;
+              rows.incrementAndGet();
+              action.accept(new String(line, 0, n, StandardCharsets.UTF_8));
+              return true;
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+        };
+    return StreamSupport.stream(spliterator, false)
+        .onClose(
+            () -> {
+              try {
+                channel.close();
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+  }
+
+  /**
+   * Writes the metadata of the output of this shard.
+   *
+   * @param outPath the path of the output file of this shard.
+   * @param layout a wrapper computing the same descriptors of the ones used for the computation.
+   * @throws IllegalStateException if no lines have been read from this shard.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void writeMetadata(final String outPath, final MolecularDescriptorsWrapper layout)
+      throws IOException {
+    if (input == null) throw new IllegalStateException("No lines have been read from the shard");
+    final List<String> metadata = new ArrayList<>();
+    metadata.add(VERSION_KEY + ": " + VERSION);
+    metadata.add("Shard: " + this);
+    metadata.add("Input: " + input);
+    if (inputModified >= 0) metadata.add("Input-Modified: " + inputModified);
+    metadata.add("Descriptors: " + DescriptorCache.fingerprint(layout));
+    if (inputSize >= 0) {
+      metadata.add("Input-Size: " + inputSize);
+      metadata.add("Range: " + start + " " + end);
+    } else metadata.add("Input-Lines: " + inputLines.get());
+    metadata.add("Rows: " + rows.get());
+    Files.write(Paths.get(metadataPath(outPath)), metadata, StandardCharsets.UTF_8);
+  }
+
+  private static Map<String, String> readMetadata(final String outPath) throws IOException {
+    final Path path = Paths.get(metadataPath(outPath));
+    if (!Files.isReadable(path))
+      throw new IllegalArgumentException("Missing shard metadata " + path);
+    final Map<String, String> metadata = new HashMap<>();
+    for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+      final int colon = line.indexOf(": ");
+      if (colon > 0) metadata.put(line.substring(0, colon), line.substring(colon + 2));
+    }
+    if (!VERSION.equals(metadata.get(VERSION_KEY)))
+      throw new IllegalArgumentException("Invalid shard metadata " + path);
+    return metadata;
+  }
+
+  /**
+   * Merges the outputs of all the shards of an input file in a single output file.
+   *
+   * <p>The shard outputs can be given in any order, and are merged in shard order; before merging,
+   * this method checks that all the shards are present, that they have been computed for the same
+   * input (with the same last modification time, if it is a file) and descriptors (with the same
+   * column layout) and, for byte range shards, that their ranges cover the whole input, or, for
+   * hash shards, that they add up to the lines of the input.
+   * While merging, it checks that every shard output contains the number of rows recorded in its
+   * metadata. The outputs must be all tab separated (possibly compressed), in which case the
+   * output is compressed if its path ends with {@link
+   * MolecularDescriptorsCalculator#GZIP_EXTENSION}, or all binary (see {@link NpyWriter}), in which
+   * case the output path must have the same extension. The column layout of the shards (if
+   * present) is copied to the one of the output.
+   *
+   * @param shardPaths the paths of the output files of the shards.
+   * @param outPath the path of the merged output file.
+   * @return the number of rows of the merged output file.
+   * @throws IllegalArgumentException if the shards are not consistent or complete.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static long merge(final List<String> shardPaths, final String outPath)
+      throws IOException {
+    Objects.requireNonNull(outPath, "Output file cannot be null");
+    if (shardPaths.isEmpty()) throw new IllegalArgumentException("No shards to merge");
+    final int count = parse(readMetadata(shardPaths.get(0)).get("Shard")).count;
+    final String[] paths = new String[count];
+    final List<Map<String, String>> metadata = new ArrayList<>(Collections.nCopies(count, null));
+    for (String path : shardPaths) {
+      final Map<String, String> m = readMetadata(path);
+      final Shard shard = parse(m.get("Shard"));
+      if (shard.count != count)
+        throw new IllegalArgumentException("The shard " + path + " belongs to a different split");
+      if (paths[shard.index - 1] != null)
+        throw new IllegalArgumentException(
+            "The shard " + shard + " is given twice: " + paths[shard.index - 1] + ", " + path);
+      paths[shard.index - 1] = path;
+      metadata.set(shard.index - 1, m);
+    }
+    for (int i = 0; i < count; i++)
+      if (paths[i] == null)
+        throw new IllegalArgumentException("The shard " + (i + 1) + "/" + count + " is missing");
+    final Map<String, String> first = metadata.get(0);
+    for (String key :
+        List.of("Input", "Input-Modified", "Descriptors", "Input-Size", "Input-Lines"))
+      for (Map<String, String> m : metadata)
+        if (!Objects.equals(m.get(key), first.get(key)))
+          throw new IllegalArgumentException(
+              "The shards have been computed with a different "
+                  + (key.equals("Input-Modified") ? "input version" : key.toLowerCase()));
+    final long[] expected = new long[count];
+    long total = 0;
+    for (int i = 0; i < count; i++) {
+      expected[i] = Long.parseLong(metadata.get(i).get("Rows"));
+      total += expected[i];
+    }
+    if (first.containsKey("Input-Size")) {
+      long pos = 0;
+      for (Map<String, String> m : metadata) {
+        final String[] range = m.get("Range").split(" ");
+        if (Long.parseLong(range[0]) != pos) pos = -1;
+        else pos = Long.parseLong(range[1]);
+      }
+      if (pos != Long.parseLong(first.get("Input-Size")))
+        throw new IllegalArgumentException("The byte ranges of the shards do not cover the input");
+    } else if (total != Long.parseLong(first.get("Input-Lines")))
+      throw new IllegalArgumentException(
+          "The shards contain " + total + " rows instead of " + first.get("Input-Lines"));
+
+    List<String> columns = null;
+    for (int i = 0; i < count; i++) {
+      final Path p = Paths.get(MolecularDescriptorsCalculator.columnsPath(paths[i]));
+      final List<String> c =
+          Files.exists(p) ? Files.readAllLines(p, StandardCharsets.UTF_8) : null;
+      if (i > 0 && !Objects.equals(c, columns))
+        throw new IllegalArgumentException(
+            "The column layout of the shard " + paths[i] + " differs");
+      columns = c;
+    }
+
+    final boolean binary = paths[0].endsWith(NpyWriter.EXTENSION);
+    for (String path : paths)
+      if (path.endsWith(NpyWriter.EXTENSION) != binary)
+        throw new IllegalArgumentException("The shards must be all binary or all tab separated");
+    if (outPath.endsWith(NpyWriter.EXTENSION) != binary)
+      throw new IllegalArgumentException("The output must have the same format of the shards");
+    try {
+      if (binary) mergeNpy(paths, expected, outPath);
+      else mergeText(paths, expected, outPath);
+    } catch (IllegalArgumentException e) {
+      Files.deleteIfExists(Paths.get(outPath));
+      throw e;
+    }
+    if (columns != null)
+      Files.write(
+          Paths.get(MolecularDescriptorsCalculator.columnsPath(outPath)),
+          columns,
+          StandardCharsets.UTF_8);
+    return total;
+  }
+
+  private static long copy(final InputStream in, final OutputStream out) throws IOException {
+    final byte[] buffer = new byte[1 << 16];
+    long lines = 0;
+    for (int n; (n = in.read(buffer)) > 0; ) {
+      for (int i = 0; i < n; i++) if (buffer[i] == '\n') lines++;
+      out.write(buffer, 0, n);
+    }
+    return lines;
+  }
+
+  private static void check(final String path, final long rows, final long expected) {
+    if (rows != expected)
+      throw new IllegalArgumentException(
+          "The shard " + path + " contains " + rows + " rows instead of " + expected);
+  }
+
+  private static void mergeText(final String[] paths, final long[] expected, final String outPath)
+      throws IOException {
+    final Path out = Paths.get(outPath);
+    try (OutputStream os =
+        outPath.endsWith(MolecularDescriptorsCalculator.GZIP_EXTENSION)
+            ? new GZIPOutputStream(Files.newOutputStream(out), 1 << 16)
+            : Files.newOutputStream(out)) {
+      for (int i = 0; i < paths.length; i++)
+        try (InputStream in =
+            MolecularDescriptorsCalculator.decompress(Files.newInputStream(Paths.get(paths[i])))) {
+          check(paths[i], copy(in, os), expected[i]);
+        }
+    }
+  }
+
+  private static void mergeNpy(final String[] paths, final long[] expected, final String outPath)
+      throws IOException {
+    String descr = null;
+    int numCols = -1;
+    final long[] offsets = new long[paths.length];
+    for (int i = 0; i < paths.length; i++)
+      try (FileChannel channel = FileChannel.open(Paths.get(paths[i]), StandardOpenOption.READ)) {
+        final ByteBuffer prefix = ByteBuffer.allocate(10).order(ByteOrder.LITTLE_ENDIAN);
+        while (prefix.hasRemaining()) if (channel.read(prefix) < 0) break;
+        final int len = prefix.getShort(8) & 0xffff;
+        final ByteBuffer dict = ByteBuffer.allocate(len);
+        while (dict.hasRemaining()) if (channel.read(dict) < 0) break;
+        final Matcher m =
+            NPY_HEADER.matcher(new String(dict.array(), StandardCharsets.US_ASCII));
+        if (prefix.hasRemaining() || dict.hasRemaining() || !m.find())
+          throw new IllegalArgumentException("The shard " + paths[i] + " is not a valid NPY file");
+        if (descr == null) {
+          descr = m.group(1);
+          numCols = Integer.parseInt(m.group(3));
+        } else if (!descr.equals(m.group(1)) || numCols != Integer.parseInt(m.group(3)))
+          throw new IllegalArgumentException("The shards have different data types or shapes");
+        check(paths[i], Long.parseLong(m.group(2)), expected[i]);
+        offsets[i] = 10 + len;
+      }
+    long total = 0;
+    for (long e : expected) total += e;
+    try (FileChannel out =
+        FileChannel.open(
+            Paths.get(outPath),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      final ByteBuffer header = NpyWriter.header(descr.equals("<f4"), total, numCols);
+      while (header.hasRemaining()) out.write(header);
+      for (int i = 0; i < paths.length; i++)
+        try (FileChannel in = FileChannel.open(Paths.get(paths[i]), StandardOpenOption.READ)) {
+          final long size = in.size();
+          for (long pos = offsets[i]; pos < size; )
+            pos += in.transferTo(pos, size - pos, out);
+        }
+    }
+    final String[] sidecars = new String[paths.length];
+    for (int i = 0; i < paths.length; i++) sidecars[i] = NpyWriter.sidecar(paths[i]);
+    mergeText(sidecars, expected, NpyWriter.sidecar(outPath));
+  }
+}
@@ -0,0 +1,343 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import static java.lang.Math.multiplyHigh;
+
+import java.math.BigInteger;
+
+/**
+ * Formats {@code double} and {@code float} values as the shortest decimal that rounds back to the
+ * same value, writing the ASCII characters directly in a byte array.
+ *
+ * <p>The conversion follows the <em>Schubfach</em> algorithm by Raffaello Giulietti (the one adopted
+ * by {@link Double#toString(double)} since JDK 19), while the layout of the produced characters is
+ * the same of {@link Double#toString(double)}: plain notation for magnitudes in [10<sup>-3</sup>,
+ * 10<sup>7</sup>), computerized scientific notation otherwise.
+ */
+final class ShortestDecimal {
+
+  /** The maximum number of bytes written by a single invocation of a {@code write} method. */
+  static final int MAX_CHARS = 26;
+
+  private static final int D_P = 53;
+  private static final int D_Q_MIN = -1074;
+  private static final long D_C_MIN = 1L << (D_P - 1);
+  private static final int D_C_TINY = 3;
+  private static final long D_T_MASK = D_C_MIN - 1;
+
+  private static final int F_P = 24;
+  private static final int F_Q_MIN = -149;
+  private static final int F_C_MIN = 1 << (F_P - 1);
+  private static final int F_C_TINY = 8;
+  private static final int F_T_MASK = F_C_MIN - 1;
+
+  private static final long MASK_63 = (1L << 63) - 1;
+  private static final long MASK_32 = (1L << 32) - 1;
+
+  private static final int K_MIN = -324;
+  private static final int K_MAX = 292;
+
+  /** The 126-bit approximations of the powers of ten, as pairs of 63-bit halves. */
+  private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+  static {
+    final BigInteger mask63 = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+    for (int k = K_MIN; k <= K_MAX; k++) {
+      final int e = -k;
+      final int shift = 125 - flog2pow10(e);
+      BigInteger g;
+      if (e >= 0) {
+        g = BigInteger.TEN.pow(e);
+        g = shift >= 0 ? g.shiftLeft(shift) : g.shiftRight(-shift);
+      } else g = BigInteger.ONE.shiftLeft(shift).divide(BigInteger.TEN.pow(-e));
+      g = g.add(BigInteger.ONE);
+      G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+      G[2 * (k - K_MIN) + 1] = g.and(mask63).longValue();
+    }
+  }
+
+  private static final long[] POW10 = new long[19];
+
+  static {
+    POW10[0] = 1;
+    for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+  }
+
+  private static final byte[] NAN = {'N', 'a', 'N'};
+  private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+
+  private ShortestDecimal() {}
+
+  private static int flog10pow2(int e) {
+    return (int) (e * 661_971_961_083L >> 41);
+  }
+
+  private static int flog10threeQuartersPow2(int e) {
+    return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+  }
+
+  private static int flog2pow10(int e) {
+    return (int) (e * 913_124_641_741L >> 38);
+  }
+
+  private static long g1(int k) {
+    return G[2 * (k - K_MIN)];
+  }
+
+  private static long g0(int k) {
+    return G[2 * (k - K_MIN) + 1];
+  }
+
+  /**
+   * Writes the shortest decimal representation of the given {@code double}.
+   *
+   * @param v the value to write.
+   * @param digits the maximum number of significant digits, or 0 for no limit.
+   * @param buf the destination array.
+   * @param pos the position in {@code buf} of the first character to write.
+   * @return the position in {@code buf} following the last written character.
+   */
+  static int write(final double v, final int digits, final byte[] buf, int pos) {
+    final long bits = Double.doubleToRawLongBits(v);
+    final long t = bits & D_T_MASK;
+    final int bq = (int) (bits >>> (D_P - 1)) & 0x7ff;
+    if (bq == 0x7ff) return special(t != 0, bits < 0, buf, pos);
+    if (bits < 0) buf[pos++] = '-';
+    if (bq != 0) {
+      final int mq = -D_Q_MIN + 1 - bq;
+      final long c = D_C_MIN | t;
+      if (0 < mq & mq < D_P) {
+        final long f = c >> mq;
+        if (f << mq == c) return chars(f, 0, digits, buf, pos);
+      }
+      return decimal(-mq, c, 0, digits, buf, pos);
+    }
+    if (t != 0)
+      return t < D_C_TINY
+          ? decimal(D_Q_MIN, 10 * t, -1, digits, buf, pos)
+          : decimal(D_Q_MIN, t, 0, digits, buf, pos);
+    return zero(buf, pos);
+  }
+
+  /**
+   * Writes the shortest decimal representation of the given {@code float}.
+   *
+   * @param v the value to write.
+   * @param digits the maximum number of significant digits, or 0 for no limit.
+   * @param buf the destination array.
+   * @param pos the position in {@code buf} of the first character to write.
+   * @return the position in {@code buf} following the last written character.
+   */
+  static int write(final float v, final int digits, final byte[] buf, int pos) {
+    final int bits = Float.floatToRawIntBits(v);
+    final int t = bits & F_T_MASK;
+    final int bq = (bits >>> (F_P - 1)) & 0xff;
+    if (bq == 0xff) return special(t != 0, bits < 0, buf, pos);
+    if (bits < 0) buf[pos++] = '-';
+    if (bq != 0) {
+      final int mq = -F_Q_MIN + 1 - bq;
+      final int c = F_C_MIN | t;
+      if (0 < mq & mq < F_P) {
+        final int f = c >> mq;
+        if (f << mq == c) return chars(f, 0, digits, buf, pos);
+      }
+      return decimal(-mq, c, 0, digits, buf, pos);
+    }
+    if (t != 0)
+      return t < F_C_TINY
+          ? decimal(F_Q_MIN, 10 * t, -1, digits, buf, pos)
+          : decimal(F_Q_MIN, t, 0, digits, buf, pos);
+    return zero(buf, pos);
+  }
+
+  private static int decimal(
+      final int q, final long c, final int dk, final int digits, final byte[] buf, final int pos) {
+    final int out = (int) c & 1;
+    final long cb = c << 2;
+    final long cbr = cb + 2;
+    final long cbl;
+    final int k;
+    if (c != D_C_MIN | q == D_Q_MIN) {
+      cbl = cb - 2;
+      k = flog10pow2(q);
+    } else {
+      cbl = cb - 1;
+      k = flog10threeQuartersPow2(q);
+    }
+    final int h = q + flog2pow10(-k) + 2;
+    final long g1 = g1(k);
+    final long g0 = g0(k);
+    final long vb = rop(g1, g0, cb << h);
+    final long vbl = rop(g1, g0, cbl << h);
+    final long vbr = rop(g1, g0, cbr << h);
+    final long s = vb >> 2;
+    if (s >= 100) {
+      final long sp10 = 10 * multiplyHigh(s, 115_292_150_460_684_698L << 4);
+      final long tp10 = sp10 + 10;
+      final boolean upin = vbl + out <= sp10 << 2;
+      final boolean wpin = (tp10 << 2) + out <= vbr;
+      if (upin != wpin) return chars(upin ? sp10 : tp10, k, digits, buf, pos);
+    }
+    final long t = s + 1;
+    final boolean uin = vbl + out <= s << 2;
+    final boolean win = (t << 2) + out <= vbr;
+    if (uin != win) return chars(uin ? s : t, k + dk, digits, buf, pos);
+    final long cmp = vb - (s + t << 1);
+    return chars(cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk, digits, buf, pos);
+  }
+
+  private static int decimal(
+      final int q, final int c, final int dk, final int digits, final byte[] buf, final int pos) {
+    final int out = c & 1;
+    final long cb = (long) c << 2;
+    final long cbr = cb + 2;
+    final long cbl;
+    final int k;
+    if (c != F_C_MIN | q == F_Q_MIN) {
+      cbl = cb - 2;
+      k = flog10pow2(q);
+    } else {
+      cbl = cb - 1;
+      k = flog10threeQuartersPow2(q);
+    }
+    final int h = q + flog2pow10(-k) + 33;
+    final long g = g1(k) + 1;
+    final int vb = rop(g, cb << h);
+    final int vbl = rop(g, cbl << h);
+    final int vbr = rop(g, cbr << h);
+    final int s = vb >> 2;
+    if (s >= 100) {
+      final int sp10 = 10 * (int) (s * 1_717_986_919L >>> 34);
+      final int tp10 = sp10 + 10;
+      final boolean upin = vbl + out <= sp10 << 2;
+      final boolean wpin = (tp10 << 2) + out <= vbr;
+      if (upin != wpin) return chars(upin ? sp10 : tp10, k, digits, buf, pos);
+    }
+    final int t = s + 1;
+    final boolean uin = vbl + out <= s << 2;
+    final boolean win = (t << 2) + out <= vbr;
+    if (uin != win) return chars(uin ? s : t, k + dk, digits, buf, pos);
+    final int cmp = vb - (s + t << 1);
+    return chars(cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk, digits, buf, pos);
+  }
+
+  private static long rop(final long g1, final long g0, final long cp) {
+    final long x1 = multiplyHigh(g0, cp);
+    final long y0 = g1 * cp;
+    final long y1 = multiplyHigh(g1, cp);
+    final long z = (y0 >>> 1) + x1;
+    final long vbp = y1 + (z >>> 63);
+    return vbp | (z & MASK_63) + MASK_63 >>> 63;
+  }
+
+  private static int rop(final long g, final long cp) {
+    final long x1 = multiplyHigh(g, cp);
+    final long vbp = x1 >>> 31;
+    return (int) (vbp | (x1 & MASK_32) + MASK_32 >>> 32);
+  }
+
+  private static int length(final long f) {
+    int len = 1;
+    while (len < POW10.length && f >= POW10[len]) len++;
+    return len;
+  }
+
+  /** Writes the (positive) decimal f &times; 10<sup>e</sup>, rounded to the given digits. */
+  private static int chars(long f, int e, final int digits, final byte[] buf, int pos) {
+    int len = length(f);
+    if (digits > 0 && len > digits) {
+      final long p = POW10[len - digits];
+      final long r = f % p;
+      f /= p;
+      if (2 * r > p || 2 * r == p && (f & 1) != 0) f++;
+      e += len - digits;
+      len = length(f);
+    }
+    while (len > 1 && f % 10 == 0) {
+      f /= 10;
+      e++;
+      len--;
+    }
+    final int exp = e + len - 1;
+    if (-3 <= exp && exp < 7) {
+      if (exp < 0) {
+        buf[pos++] = '0';
+        buf[pos++] = '.';
+        for (int i = -1; i > exp; i--) buf[pos++] = '0';
+        return digits(f, len, buf, pos);
+      }
+      if (len <= exp + 1) {
+        pos = digits(f, len, buf, pos);
+        for (int i = len; i <= exp; i++) buf[pos++] = '0';
+        buf[pos++] = '.';
+        buf[pos++] = '0';
+        return pos;
+      }
+      final long p = POW10[len - exp - 1];
+      pos = digits(f / p, exp + 1, buf, pos);
+      buf[pos++] = '.';
+      return digits(f % p, len - exp - 1, buf, pos);
+    }
+    final long p = POW10[len - 1];
+    buf[pos++] = (byte) ('0' + f / p);
+    buf[pos++] = '.';
+    if (len > 1) pos = digits(f % p, len - 1, buf, pos);
+    else buf[pos++] = '0';
+    buf[pos++] = 'E';
+    int x = exp;
+    if (x < 0) {
+      buf[pos++] = '-';
+      x = -x;
+    }
+    if (x >= 100) buf[pos++] = (byte) ('0' + x / 100);
+    if (x >= 10) buf[pos++] = (byte) ('0' + x / 10 % 10);
+    buf[pos++] = (byte) ('0' + x % 10);
+    return pos;
+  }
+
+  /** Writes exactly {@code len} digits of {@code f}, padding with leading zeros. */
+  private static int digits(long f, final int len, final byte[] buf, final int pos) {
+    for (int i = pos + len - 1; i >= pos; i--) {
+      buf[i] = (byte) ('0' + f % 10);
+      f /= 10;
+    }
+    return pos + len;
+  }
+
+  private static int zero(final byte[] buf, int pos) {
+    buf[pos++] = '0';
+    buf[pos++] = '.';
+    buf[pos++] = '0';
+    return pos;
+  }
+
+  private static int special(final boolean nan, final boolean negative, final byte[] buf, int pos) {
+    if (nan) {
+      System.arraycopy(NAN, 0, buf, pos, NAN.length);
+      return pos + NAN.length;
+    }
+    if (negative) buf[pos++] = '-';
+    System.arraycopy(INFINITY, 0, buf, pos, INFINITY.length);
+    return pos + INFINITY.length;
+  }
+}
@@ -24,14 +24,12 @@ package it.unimi.di.jp2rt;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
-import java.util.stream.Collectors;
-import java.util.stream.DoubleStream;
 
 /** A mutable object representing a line of a <em>tab separated format</em> file. */
 public class TSVRow {
   private final String[] extra;
   private final String smiles;
-  private DoubleStream descriptors = null;
+  private double[] descriptors = null;
 
   /**
    * Creates a new {@link TSVRow} from the given line.
@@ -69,35 +67,48 @@ public class TSVRow {
     return smiles;
   }
 
+  /**
+   * Returns whether the descriptor values for this row have been set.
+   *
+   * @return {@code true} if the descriptor values have been set.
+   */
+  public boolean hasDescriptors() {
+    return descriptors != null;
+  }
+
   /**
    * Returns the descriptor values for this row.
    *
+   * <p>The returned array is not a copy, changes to it are reflected in this row.
+   *
    * @return the descriptor values for this row.
    * @throws IllegalStateException if no descriptors have been set.
    */
   public double[] descriptors() {
     if (descriptors == null) throw new IllegalStateException("No descriptors have been set");
-    return descriptors.toArray();
+    return descriptors;
   }
 
   /**
    * Sets the descriptor values for this row.
    *
+   * <p>The array is not copied, so it should not be modified after being passed to this method.
+   *
    * @param values the descriptor values.
    * @return this row.
    * @throws NullPointerException if the values parameter is null.
    */
-  public TSVRow descriptors(DoubleStream values) {
+  public TSVRow descriptors(double[] values) {
     this.descriptors = Objects.requireNonNull(values, "The values parameter must not be null");
     return this;
   }
 
   @Override
   public String toString() {
-    return (extra.length > 0 ? String.join("\t", extra) + "\t" : "")
-        + smiles
-        + (descriptors != null
-            ? "\t" + descriptors.mapToObj(Double::toString).collect(Collectors.joining("\t"))
-            : "");
+    final StringBuilder sb = new StringBuilder();
+    for (String e : extra) sb.append(e).append('\t');
+    sb.append(smiles);
+    if (descriptors != null) for (double d : descriptors) sb.append('\t').append(d);
+    return sb.toString();
   }
 }
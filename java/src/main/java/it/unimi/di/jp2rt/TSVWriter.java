@@ -0,0 +1,225 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Writes {@link TSVRow} instances in <em>tab separated format</em> to a {@link
+ * WritableByteChannel}.
+ *
+ * <p>Rows are formatted directly in a reusable byte buffer (descriptor values are written as the
+ * shortest decimal that rounds back to the same value), that is written to the channel only when
+ * full; the {@link #write(TSVRow)} method is synchronized, so that a single writer can be used as
+ * the terminal operation of a parallel stream.
+ */
+public class TSVWriter implements RowWriter {
+
+  /** The default size (in bytes) of the buffer. */
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+  private final WritableByteChannel channel;
+  private byte[] buffer;
+  private int pos = 0;
+  private int precision = 0;
+  private boolean asFloat = false;
+
+  /**
+   * Creates a new {@link TSVWriter} writing to the given channel.
+   *
+   * @param channel the channel to write to.
+   * @param bufferSize the size (in bytes) of the buffer.
+   * @throws NullPointerException if the channel parameter is {@code null}.
+   * @throws IllegalArgumentException if the buffer size is not positive.
+   */
+  public TSVWriter(final WritableByteChannel channel, final int bufferSize) {
+    this.channel = Objects.requireNonNull(channel, "The channel parameter must not be null");
+    if (bufferSize <= 0) throw new IllegalArgumentException("The buffer size must be positive");
+    buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Creates a new {@link TSVWriter} writing to the given file (that is created, or truncated if it
+   * already exists).
+   *
+   * @param path the path of the file to write to.
+   * @throws IOException if an I/O error occurs.
+   */
+  public TSVWriter(final Path path) throws IOException {
+    this(
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING),
+        DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Sets the maximum number of significant digits of the written descriptor values.
+   *
+   * <p>Values are rounded (half even) starting from their shortest decimal representation.
+   *
+   * @param digits the number of significant digits, or 0 to write the shortest representation.
+   * @return this writer.
+   * @throws IllegalArgumentException if the number of digits is not in the range [0, 17].
+   */
+  public TSVWriter precision(final int digits) {
+    if (digits < 0 || digits > 17)
+      throw new IllegalArgumentException("The number of digits must be between 0 and 17");
+    precision = digits;
+    return this;
+  }
+
+  /**
+   * Sets whether the descriptor values are converted to {@code float} before being written.
+   *
+   * @param asFloat if {@code true} the values are written as the shortest decimal that rounds back
+   *     to the same {@code float}.
+   * @return this writer.
+   */
+  public TSVWriter asFloat(final boolean asFloat) {
+    this.asFloat = asFloat;
+    return this;
+  }
+
+  /**
+   * Writes the given row, followed by a newline.
+   *
+   * @param row the row to write.
+   * @throws NullPointerException if the row parameter is {@code null}.
+   * @throws IOException if an I/O error occurs.
+   */
+  @Override
+  public void write(final TSVRow row) throws IOException {
+    write(row, true);
+  }
+
+  /**
+   * Writes the given row, followed by a newline, omitting the descriptor values.
+   *
+   * @param row the row to write.
+   * @throws NullPointerException if the row parameter is {@code null}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void writeFields(final TSVRow row) throws IOException {
+    write(row, false);
+  }
+
+  /**
+   * Writes the given value, followed by the fields of the given row (omitting the descriptor
+   * values) and by a newline.
+   *
+   * <p>The value is written with the same precision of the descriptor values; this method is used
+   * to write predictions (see {@link TreeEnsemble#writer(TSVWriter)}).
+   *
+   * @param value the value to write before the fields of the row.
+   * @param row the row to write.
+   * @throws NullPointerException if the row parameter is {@code null}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void write(final double value, final TSVRow row) throws IOException {
+    write(true, value, row, false);
+  }
+
+  private void write(final TSVRow row, final boolean withDescriptors) throws IOException {
+    write(false, 0, row, withDescriptors);
+  }
+
+  private synchronized void write(
+      final boolean prefixed, final double prefix, final TSVRow row, final boolean withDescriptors)
+      throws IOException {
+    Objects.requireNonNull(row, "The row parameter must not be null");
+    final double[] descriptors =
+        withDescriptors && row.hasDescriptors() ? row.descriptors() : null;
+    int size = 3 * row.smiles().length() + 1;
+    if (prefixed) size += ShortestDecimal.MAX_CHARS + 1;
+    for (String e : row.extra()) size += 3 * e.length() + 1;
+    if (descriptors != null) size += descriptors.length * (ShortestDecimal.MAX_CHARS + 1);
+    if (pos + size > buffer.length) {
+      flush();
+      if (size > buffer.length) buffer = new byte[size];
+    }
+    if (prefixed) {
+      pos =
+          asFloat
+              ? ShortestDecimal.write((float) prefix, precision, buffer, pos)
+              : ShortestDecimal.write(prefix, precision, buffer, pos);
+      buffer[pos++] = '\t';
+    }
+    for (String e : row.extra()) {
+      pos = encode(e, buffer, pos);
+      buffer[pos++] = '\t';
+    }
+    pos = encode(row.smiles(), buffer, pos);
+    if (descriptors != null)
+      for (double d : descriptors) {
+        buffer[pos++] = '\t';
+        pos =
+            asFloat
+                ? ShortestDecimal.write((float) d, precision, buffer, pos)
+                : ShortestDecimal.write(d, precision, buffer, pos);
+      }
+    buffer[pos++] = '\n';
+  }
+
+  private static int encode(final String s, final byte[] buf, int pos) {
+    final int len = s.length();
+    for (int i = 0; i < len; i++) {
+      final char c = s.charAt(i);
+      if (c >= 0x80) {
+        final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(b, 0, buf, pos - i, b.length);
+        return pos - i + b.length;
+      }
+      buf[pos++] = (byte) c;
+    }
+    return pos;
+  }
+
+  /**
+   * Writes the content of the buffer to the channel.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  public synchronized void flush() throws IOException {
+    final ByteBuffer bb = ByteBuffer.wrap(buffer, 0, pos);
+    while (bb.hasRemaining()) channel.write(bb);
+    pos = 0;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      channel.close();
+    }
+  }
+}
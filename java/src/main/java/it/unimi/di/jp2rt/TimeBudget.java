@@ -0,0 +1,116 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A time budget for the computation of the descriptors of a molecule.
+ *
+ * <p>The budget limits both the time spent computing every single descriptor and the overall time
+ * spent computing all the descriptors of a molecule; a descriptor exceeding its budget is abandoned
+ * and its values are replaced with {@code Double.NaN}, as if its computation failed (see {@link
+ * MolecularDescriptorsWrapper#budget(TimeBudget)}).
+ *
+ * <p>A single instance is meant to be shared by all the {@link MolecularDescriptorsWrapper}
+ * instances used in a computation, so that it counts the overall number of abandoned computations;
+ * this class is thread-safe.
+ */
+public class TimeBudget {
+
+  private final long descriptorNanos;
+  private final long moleculeNanos;
+  private final LongAdder timeouts = new LongAdder();
+
+  /**
+   * Creates a new {@link TimeBudget}.
+   *
+   * @param descriptor the maximum time allowed for the computation of a single descriptor, or
+   *     {@code null} for no limit.
+   * @param molecule the maximum time allowed for the computation of all the descriptors of a
+   *     molecule, or {@code null} for no limit.
+   * @throws IllegalArgumentException if one of the durations is not positive.
+   */
+  public TimeBudget(final Duration descriptor, final Duration molecule) {
+    descriptorNanos = nanos(descriptor);
+    moleculeNanos = nanos(molecule);
+  }
+
+  private static long nanos(final Duration duration) {
+    if (duration == null) return Long.MAX_VALUE;
+    if (duration.isNegative() || duration.isZero())
+      throw new IllegalArgumentException("The time budget must be positive");
+    try {
+      return duration.toNanos();
+    } catch (ArithmeticException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  /**
+   * Returns the deadline, in terms of {@link System#nanoTime()}, for the computation of a molecule
+   * started at the given time.
+   *
+   * @param start the start time of the computation of the molecule.
+   * @return the deadline, or {@link Long#MAX_VALUE} if there is no limit.
+   */
+  long deadline(final long start) {
+    return moleculeNanos == Long.MAX_VALUE ? Long.MAX_VALUE : start + moleculeNanos;
+  }
+
+  /**
+   * Returns the time left to compute a descriptor, given the deadline of the molecule.
+   *
+   * @param deadline the deadline returned by {@link #deadline(long)}.
+   * @return the time left, in nanoseconds (possibly non positive).
+   */
+  long timeLeft(final long deadline) {
+    return deadline == Long.MAX_VALUE
+        ? descriptorNanos
+        : Math.min(descriptorNanos, deadline - System.nanoTime());
+  }
+
+  /** Records that a descriptor computation has been abandoned. */
+  void timedOut() {
+    timeouts.increment();
+  }
+
+  /**
+   * Returns the number of descriptor computations abandoned (or skipped) so far because they
+   * exceeded the budget.
+   *
+   * @return the number of abandoned descriptor computations.
+   */
+  public long timeouts() {
+    return timeouts.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "TimeBudget[descriptor="
+        + (descriptorNanos == Long.MAX_VALUE ? "unlimited" : Duration.ofNanos(descriptorNanos))
+        + ", molecule="
+        + (moleculeNanos == Long.MAX_VALUE ? "unlimited" : Duration.ofNanos(moleculeNanos))
+        + "]";
+  }
+}
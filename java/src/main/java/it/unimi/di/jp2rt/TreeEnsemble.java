@@ -0,0 +1,335 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * An ensemble of regression trees, exported by the Python package from a model estimated with
+ * {@code simple_ensemble_model_estimate}, that predicts the retention time directly from a row of
+ * descriptor values.
+ *
+ * <p>The ensemble reproduces the whole model pipeline: the columns dropped during the estimation
+ * (because they were entirely missing) are ignored, missing values are replaced with the training
+ * means, the remaining values are standardized and converted to {@code float} (as done by
+ * scikit-learn before walking its trees), and the predictions of the trees are either averaged (for
+ * random forests and extremely randomized trees) or added, scaled by the learning rate, to the
+ * initial prediction (for gradient boosting). The predictions agree with the ones of scikit-learn
+ * up to floating point rounding, since the trees may be summed in a different order.
+ *
+ * <p>The trees are stored as flat arrays of nodes, as in the following (little-endian) format:
+ *
+ * <ul>
+ *   <li>the magic bytes {@code JP2RTTE1};
+ *   <li>the number of column names, followed by the names (each as an {@code int32} length and
+ *       UTF-8 bytes), possibly none if the model does not record them;
+ *   <li>the number of values of the input rows;
+ *   <li>the number {@code k} of used values, followed by {@code k} {@code int32} column indices and
+ *       by three arrays of {@code k} {@code float64}, the values replacing missing ones, the means
+ *       and the scales;
+ *   <li>the kind of ensemble ({@code 0} for averaging, {@code 1} for boosting), followed by the
+ *       initial prediction and the learning rate, as {@code float64};
+ *   <li>the number {@code t} of trees, followed by {@code t} {@code int32} indices of their roots;
+ *   <li>the number {@code n} of nodes, followed by an {@code int32} array with the feature tested
+ *       by every node (-1 for leaves), a {@code float64} array of thresholds, two {@code int32}
+ *       arrays with the indices of the left and right children, and a {@code float64} array of
+ *       values (used by leaves only).
+ * </ul>
+ *
+ * <p>A node sends to the left child the rows whose tested feature is less than or equal to the
+ * threshold. The file can be stored by itself, or as the {@link #ENTRY} entry of a model file.
+ * Instances are immutable, and thread-safe.
+ */
+public class TreeEnsemble {
+
+  /** The name of the entry of a model file containing the ensemble. */
+  public static final String ENTRY = "trees.bin";
+
+  private static final byte[] MAGIC = "JP2RTTE1".getBytes(StandardCharsets.US_ASCII);
+  private static final int AVERAGE = 0;
+  private static final int BOOSTING = 1;
+
+  private final List<String> columns;
+  private final int numFeatures;
+  private final int[] inputs;
+  private final double[] fill;
+  private final double[] mean;
+  private final double[] scale;
+  private final int kind;
+  private final double base;
+  private final double learningRate;
+  private final int[] roots;
+  private final int[] feature;
+  private final double[] threshold;
+  private final int[] left;
+  private final int[] right;
+  private final double[] value;
+
+  private TreeEnsemble(final ByteBuffer bb) {
+    final byte[] magic = new byte[MAGIC.length];
+    bb.get(magic);
+    if (!Arrays.equals(magic, MAGIC)) throw new IllegalArgumentException("Invalid tree ensemble");
+    final int numColumns = bb.getInt();
+    final List<String> names = new ArrayList<>(numColumns);
+    for (int i = 0; i < numColumns; i++) {
+      final byte[] name = new byte[bb.getInt()];
+      bb.get(name);
+      names.add(new String(name, StandardCharsets.UTF_8));
+    }
+    columns = Collections.unmodifiableList(names);
+    numFeatures = bb.getInt();
+    if (numColumns != 0 && numColumns != numFeatures)
+      throw new IllegalArgumentException("Invalid tree ensemble, wrong number of column names");
+    final int k = bb.getInt();
+    inputs = ints(bb, k);
+    fill = doubles(bb, k);
+    mean = doubles(bb, k);
+    scale = doubles(bb, k);
+    kind = bb.getInt();
+    if (kind != AVERAGE && kind != BOOSTING)
+      throw new IllegalArgumentException("Invalid tree ensemble, unknown kind " + kind);
+    base = bb.getDouble();
+    learningRate = bb.getDouble();
+    roots = ints(bb, bb.getInt());
+    final int n = bb.getInt();
+    feature = ints(bb, n);
+    threshold = doubles(bb, n);
+    left = ints(bb, n);
+    right = ints(bb, n);
+    value = doubles(bb, n);
+    if (bb.hasRemaining())
+      throw new IllegalArgumentException("Invalid tree ensemble, trailing data");
+    for (int i : inputs)
+      if (i < 0 || i >= numFeatures)
+        throw new IllegalArgumentException("Invalid tree ensemble, column out of range");
+    for (int r : roots)
+      if (r < 0 || r >= n) throw new IllegalArgumentException("Invalid tree ensemble, bad root");
+    for (int i = 0; i < n; i++)
+      if (feature[i] >= 0
+          && (feature[i] >= k || left[i] <= i || left[i] >= n || right[i] <= i || right[i] >= n))
+        throw new IllegalArgumentException("Invalid tree ensemble, bad node " + i);
+  }
+
+  /** Returns a copy of the given ensemble reading the used values at the given positions. */
+  private TreeEnsemble(final TreeEnsemble e, final List<String> columns, final int[] inputs) {
+    this.columns = columns;
+    numFeatures = columns.size();
+    this.inputs = inputs;
+    fill = e.fill;
+    mean = e.mean;
+    scale = e.scale;
+    kind = e.kind;
+    base = e.base;
+    learningRate = e.learningRate;
+    roots = e.roots;
+    feature = e.feature;
+    threshold = e.threshold;
+    left = e.left;
+    right = e.right;
+    value = e.value;
+  }
+
+  private static int[] ints(final ByteBuffer bb, final int n) {
+    final int[] a = new int[n];
+    bb.asIntBuffer().get(a);
+    bb.position(bb.position() + n * Integer.BYTES);
+    return a;
+  }
+
+  private static double[] doubles(final ByteBuffer bb, final int n) {
+    final double[] a = new double[n];
+    bb.asDoubleBuffer().get(a);
+    bb.position(bb.position() + n * Double.BYTES);
+    return a;
+  }
+
+  /**
+   * Parses a tree ensemble.
+   *
+   * @param bytes the ensemble, in the format described above.
+   * @return the ensemble.
+   * @throws IllegalArgumentException if the bytes do not contain a valid ensemble.
+   */
+  public static TreeEnsemble parse(final byte[] bytes) {
+    try {
+      return new TreeEnsemble(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN));
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      throw new IllegalArgumentException("Invalid tree ensemble, truncated data");
+    }
+  }
+
+  /**
+   * Loads a tree ensemble from a file, that can be either a model file (containing the {@link
+   * #ENTRY} entry) or a file containing just the ensemble.
+   *
+   * @param path the path of the file.
+   * @return the ensemble.
+   * @throws IllegalArgumentException if the file does not contain a valid ensemble.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static TreeEnsemble load(final Path path) throws IOException {
+    Objects.requireNonNull(path, "The path must not be null");
+    final byte[] bytes;
+    try (InputStream in = Files.newInputStream(path)) {
+      bytes = in.readNBytes(MAGIC.length);
+    }
+    if (Arrays.equals(bytes, MAGIC)) return parse(Files.readAllBytes(path));
+    try (ZipFile zip = new ZipFile(path.toFile())) {
+      for (ZipEntry entry : Collections.list(zip.entries()))
+        if (entry.getName().endsWith("/" + ENTRY))
+          try (InputStream in = zip.getInputStream(entry)) {
+            return parse(in.readAllBytes());
+          }
+    } catch (ZipException e) {
+      // not a model file either
+    }
+    throw new IllegalArgumentException("No tree ensemble in " + path);
+  }
+
+  /**
+   * Returns the names of the values of the rows expected by this ensemble.
+   *
+   * @return the (unmodifiable) list of the names of the values, empty if the model did not record
+   *     them.
+   */
+  public List<String> columns() {
+    return columns;
+  }
+
+  /**
+   * Returns the number of values of the rows expected by this ensemble.
+   *
+   * @return the number of values of the rows expected by this ensemble.
+   */
+  public int numFeatures() {
+    return numFeatures;
+  }
+
+  /**
+   * Returns the number of trees of this ensemble.
+   *
+   * @return the number of trees of this ensemble.
+   */
+  public int numTrees() {
+    return roots.length;
+  }
+
+  /**
+   * Returns an ensemble equivalent to this one, but predicting rows with the given layout.
+   *
+   * <p>The values used by the ensemble are looked up by name in the layout, that can hence contain
+   * them in any order (and contain other values as well); if the model did not record the names of
+   * its values, the layout must have exactly the expected number of values, in the same order.
+   *
+   * @param layout the names of the values of the rows that will be predicted (for instance, {@link
+   *     MolecularDescriptorsWrapper#columns()}).
+   * @return an ensemble predicting rows with the given layout.
+   * @throws IllegalArgumentException if some value used by the ensemble is missing from the layout.
+   */
+  public TreeEnsemble bind(final List<String> layout) {
+    Objects.requireNonNull(layout, "The layout must not be null");
+    if (columns.isEmpty()) {
+      if (layout.size() != numFeatures)
+        throw new IllegalArgumentException(
+            "The model expects " + numFeatures + " values, not " + layout.size());
+      return new TreeEnsemble(this, List.copyOf(layout), inputs);
+    }
+    final Map<String, Integer> index = new HashMap<>();
+    for (int i = 0; i < layout.size(); i++) index.putIfAbsent(layout.get(i), i);
+    final int[] bound = new int[inputs.length];
+    for (int i = 0; i < inputs.length; i++) {
+      final Integer j = index.get(columns.get(inputs[i]));
+      if (j == null)
+        throw new IllegalArgumentException(
+            "Missing descriptor value: " + columns.get(inputs[i]));
+      bound[i] = j;
+    }
+    return new TreeEnsemble(this, List.copyOf(layout), bound);
+  }
+
+  /**
+   * Predicts the value of a row.
+   *
+   * <p>This method does not allocate, and can be invoked concurrently.
+   *
+   * @param row the values of the row.
+   * @return the predicted value.
+   * @throws IllegalArgumentException if the row does not have {@link #numFeatures()} values.
+   */
+  public double predict(final double[] row) {
+    if (row.length != numFeatures)
+      throw new IllegalArgumentException("The row must have " + numFeatures + " values");
+    double sum = kind == BOOSTING ? base : 0;
+    for (final int root : roots) {
+      int node = root;
+      for (int f = feature[node]; f >= 0; f = feature[node])
+        node = input(row, f) <= threshold[node] ? left[node] : right[node];
+      sum += kind == BOOSTING ? learningRate * value[node] : value[node];
+    }
+    return kind == BOOSTING ? sum : sum / roots.length;
+  }
+
+  /** Returns the f-th preprocessed value of a row, as compared by scikit-learn trees. */
+  private float input(final double[] row, final int f) {
+    final double v = row[inputs[f]];
+    return (float) (((Double.isNaN(v) ? fill[f] : v) - mean[f]) / scale[f]);
+  }
+
+  /**
+   * Returns a writer that, for every row, writes the predicted value followed by the fields of the
+   * row (omitting its descriptor values), in tab separated format.
+   *
+   * @param out the writer to write to, that is closed when the returned writer is closed.
+   * @return the writer.
+   */
+  public RowWriter writer(final TSVWriter out) {
+    Objects.requireNonNull(out, "The writer must not be null");
+    return new RowWriter() {
+      @Override
+      public void write(final TSVRow row) throws IOException {
+        out.write(predict(row.descriptors()), row);
+      }
+
+      @Override
+      public void close() throws IOException {
+        out.close();
+      }
+    };
+  }
+}
@@ -21,12 +21,12 @@ along with this file.  If not, see <https://www.gnu.org/licenses/>.
 
 package it.unimi.di.jp2rt;
 
+import java.util.Arrays;
 import java.util.Objects;
-import java.util.function.Function;
 import java.util.function.IntToDoubleFunction;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.DoubleStream;
-import java.util.stream.IntStream;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.qsar.DescriptorValue;
 import org.openscience.cdk.qsar.IMolecularDescriptor;
@@ -47,8 +47,9 @@ public class WrappedMolecularDescriptor {
   private static Logger LOG = Logger.getLogger(WrappedMolecularDescriptor.class.getSimpleName());
 
   private final IMolecularDescriptor descriptor;
-  private final Function<IDescriptorResult, DoubleStream> resultToStream;
+  private final ResultWriter resultWriter;
   private final int numDescriptors;
+  private DescriptorMetrics.Stats stats = null;
 
   /**
    * Creates a new {@link WrappedMolecularDescriptor} wrapping the given {@link
@@ -58,20 +59,20 @@ public class WrappedMolecularDescriptor {
    */
   public WrappedMolecularDescriptor(IMolecularDescriptor descriptor) {
     this.descriptor = Objects.requireNonNull(descriptor);
-    descriptor.initialise(new SilentChemObjectBuilder());
+    descriptor.initialise(SilentChemObjectBuilder.getInstance());
     numDescriptors = descriptor.getDescriptorResultType().length();
-    resultToStream =
+    resultWriter =
         switch (descriptor.getDescriptorResultType().getClass().getSimpleName()) {
           case "BooleanResult", "BooleanResultType" ->
-              r -> DoubleStream.of(((BooleanResult) r).booleanValue() ? 1.0 : 0.0);
+              (r, dest, offset) -> dest[offset] = ((BooleanResult) r).booleanValue() ? 1.0 : 0.0;
           case "IntegerResult", "IntegerResultType" ->
-              r -> DoubleStream.of(((IntegerResult) r).intValue());
+              (r, dest, offset) -> dest[offset] = ((IntegerResult) r).intValue();
           case "DoubleResult", "DoubleResultType" ->
-              r -> DoubleStream.of(((DoubleResult) r).doubleValue());
+              (r, dest, offset) -> dest[offset] = ((DoubleResult) r).doubleValue();
           case "IntegerArrayResult", "IntegerArrayResultType" ->
-              r -> getAll(i -> ((IntegerArrayResult) r).get(i));
+              (r, dest, offset) -> getAll(i -> ((IntegerArrayResult) r).get(i), dest, offset);
           case "DoubleArrayResult", "DoubleArrayResultType" ->
-              r -> getAll(i -> ((DoubleArrayResult) r).get(i));
+              (r, dest, offset) -> getAll(i -> ((DoubleArrayResult) r).get(i), dest, offset);
           default ->
               throw new IllegalStateException(
                   "Don't know how to handle the "
@@ -81,44 +82,127 @@ public class WrappedMolecularDescriptor {
         };
   }
 
-  private DoubleStream getAll(IntToDoubleFunction f) {
-    return IntStream.range(0, numDescriptors)
-        .mapToDouble(
-            i -> {
-              try {
-                return f.applyAsDouble(i);
-              } catch (RuntimeException e) {
-                LOG.warning(
-                    "Ignoring exception during get of "
-                        + name()
-                        + ", descriptor replaced with NaN");
-                return Double.NaN;
-              }
-            });
+  /** Copies the values of a descriptor result in an array, starting at a given offset. */
+  @FunctionalInterface
+  private interface ResultWriter {
+    void write(IDescriptorResult result, double[] dest, int offset);
+  }
+
+  private void getAll(IntToDoubleFunction f, double[] dest, int offset) {
+    for (int i = 0; i < numDescriptors; i++) {
+      try {
+        dest[offset + i] = f.applyAsDouble(i);
+      } catch (RuntimeException e) {
+        if (LOG.isLoggable(Level.FINE))
+          LOG.fine("Ignoring exception during get of " + name() + ", descriptor replaced with NaN");
+        dest[offset + i] = Double.NaN;
+      }
+    }
   }
 
   /**
    * Calculates the descriptor values for the given molecule.
    *
+   * <p>This is a convenience method that allocates a new array for every invocation, use {@link
+   * #calculate(IAtomContainer, double[], int)} to avoid allocations.
+   *
    * @param mol the molecule for which to calculate the descriptor values.
    * @return a {@link DoubleStream} containing the descriptor values.
    */
   public DoubleStream calculate(final IAtomContainer mol) {
+    final double[] values = new double[numDescriptors];
+    calculate(mol, values, 0);
+    return DoubleStream.of(values);
+  }
+
+  /**
+   * Calculates the descriptor values for the given molecule and stores them in the given array.
+   *
+   * <p>The {@link #numDescriptors()} values are stored in consecutive positions of {@code dest},
+   * starting at {@code offset}; values that can't be computed are replaced with {@code
+   * Double.NaN}.
+   *
+   * @param mol the molecule for which to calculate the descriptor values.
+   * @param dest the array where to store the descriptor values.
+   * @param offset the position in {@code dest} of the first descriptor value.
+   * @throws ArrayIndexOutOfBoundsException if {@code dest} has less than {@code offset +
+   *     numDescriptors()} elements.
+   */
+  public void calculate(final IAtomContainer mol, final double[] dest, final int offset) {
+    calculate(mol, dest, offset, true);
+  }
+
+  /**
+   * Calculates the descriptor values for the given molecule, possibly without copying it, and
+   * stores them in the given array.
+   *
+   * <p>This method behaves as {@link #calculate(IAtomContainer, double[], int)}, but if {@code
+   * copy} is {@code false} the descriptor computes directly the given molecule; this avoids the
+   * cost of a copy, but it is safe only if the descriptor does not modify the molecule.
+   *
+   * @param mol the molecule for which to calculate the descriptor values.
+   * @param dest the array where to store the descriptor values.
+   * @param offset the position in {@code dest} of the first descriptor value.
+   * @param copy whether the descriptor must compute a copy of the molecule.
+   * @throws ArrayIndexOutOfBoundsException if {@code dest} has less than {@code offset +
+   *     numDescriptors()} elements.
+   */
+  public void calculate(
+      final IAtomContainer mol, final double[] dest, final int offset, final boolean copy) {
+    compute(mol, dest, offset, copy);
+  }
+
+  /**
+   * Calculates the descriptor values as {@link #calculate(IAtomContainer, double[], int,
+   * boolean)}, returning the cause of a failure.
+   *
+   * @return {@code null} if the descriptor values have been computed, otherwise the name of the
+   *     class of the exception thrown by the descriptor, or {@link Failures#NO_VALUE} if the
+   *     descriptor returned no value.
+   */
+  String compute(
+      final IAtomContainer mol, final double[] dest, final int offset, final boolean copy) {
     IDescriptorResult res = null;
+    String cause = Failures.NO_VALUE;
+    final long start = stats != null ? System.nanoTime() : 0;
+    long cloned = start;
     try {
-      final DescriptorValue val = descriptor.calculate(mol.clone());
+      final IAtomContainer target = copy ? mol.clone() : mol;
+      if (stats != null && copy) cloned = System.nanoTime();
+      final DescriptorValue val = descriptor.calculate(target);
       if (val != null) res = val.getValue();
     } catch (CloneNotSupportedException | RuntimeException | StackOverflowError e) {
-      LOG.warning(
-          "Ignoring exception during clone/calculate/getValue of "
-              + name()
-              + ", descriptors replaced with "
-              + numDescriptors
-              + " NaN"
-              + (numDescriptors > 1 ? "(s)" : ""));
+      cause = e.getClass().getName();
+      // failures are accounted by the wrapper, see Failures
+      if (LOG.isLoggable(Level.FINE))
+        LOG.fine(
+            "Ignoring exception during clone/calculate/getValue of "
+                + name()
+                + ", descriptors replaced with "
+                + numDescriptors
+                + " NaN"
+                + (numDescriptors > 1 ? "(s)" : ""));
+    }
+    if (res == null) Arrays.fill(dest, offset, offset + numDescriptors, Double.NaN);
+    else resultWriter.write(res, dest, offset);
+    if (stats != null) {
+      final long end = System.nanoTime();
+      int nans = 0;
+      for (int i = offset; i < offset + numDescriptors; i++) if (Double.isNaN(dest[i])) nans++;
+      stats.record(copy ? cloned - start : -1, end - cloned, res == null, nans);
     }
-    if (res == null) return DoubleStream.generate(() -> Double.NaN).limit(numDescriptors);
-    return resultToStream.apply(res);
+    return res == null ? cause : null;
+  }
+
+  /**
+   * Sets the metrics where the computations of this descriptor are recorded.
+   *
+   * @param metrics the metrics, or {@code null} to disable the recording.
+   * @return this wrapped descriptor.
+   */
+  public WrappedMolecularDescriptor metrics(final DescriptorMetrics metrics) {
+    stats = metrics != null ? metrics.stats(name()) : null;
+    return this;
   }
 
   /**
@@ -130,6 +214,15 @@ public class WrappedMolecularDescriptor {
     return descriptor.getClass().getSimpleName();
   }
 
+  /**
+   * Returns the class of the wrapped descriptor.
+   *
+   * @return the class of the wrapped descriptor.
+   */
+  public Class<? extends IMolecularDescriptor> descriptorClass() {
+    return descriptor.getClass();
+  }
+
   /**
    * Returns the names of the wrapped descriptor's computed values.
    *
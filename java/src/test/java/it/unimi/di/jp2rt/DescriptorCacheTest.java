@@ -0,0 +1,156 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DescriptorCacheTest {
+
+  private static final String FINGERPRINT = "test";
+  private static final int N = 3;
+
+  @TempDir Path dir;
+
+  private DescriptorCache open() throws IOException {
+    return new DescriptorCache(dir, FINGERPRINT, N, DescriptorCache.DEFAULT_MEMORY_SIZE);
+  }
+
+  private Path file() {
+    return dir.resolve(FINGERPRINT + ".cache");
+  }
+
+  private static double[] fill(final double v, final double[] dest) {
+    for (int i = 0; i < dest.length; i++) dest[i] = v + i;
+    return dest;
+  }
+
+  /** Appends a record as another process sharing the file would. */
+  private void append(final String key, final double v) throws IOException {
+    final byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer bb =
+        ByteBuffer.allocate(Integer.BYTES + k.length + N * Double.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    bb.putInt(k.length).put(k);
+    for (double d : fill(v, new double[N])) bb.putDouble(d);
+    bb.flip();
+    try (FileChannel channel = FileChannel.open(file(), StandardOpenOption.APPEND)) {
+      while (bb.hasRemaining()) channel.write(bb);
+    }
+  }
+
+  @Test
+  void valuesSurviveReopening() throws IOException {
+    try (DescriptorCache cache = open()) {
+      cache.computeIfAbsent("CCO", new double[N], d -> fill(1, d) != null);
+    }
+    try (DescriptorCache cache = open()) {
+      assertEquals(1, cache.size());
+      final double[] dest = new double[N];
+      cache.computeIfAbsent(
+          "CCO",
+          dest,
+          d -> {
+            throw new AssertionError("Cached values computed again");
+          });
+      assertArrayEquals(fill(1, new double[N]), dest);
+    }
+  }
+
+  @Test
+  void partialRecordsAreDropped() throws IOException {
+    try (DescriptorCache cache = open()) {
+      cache.computeIfAbsent("CCO", new double[N], d -> fill(1, d) != null);
+    }
+    final long size = Files.size(file());
+    Files.write(file(), new byte[] {42, 0, 0, 0, 'C'}, StandardOpenOption.APPEND);
+    try (DescriptorCache cache = open()) {
+      assertEquals(1, cache.size());
+      assertEquals(size, Files.size(file()));
+    }
+  }
+
+  @Test
+  void recordsAppendedByOthersAreNotOverwritten() throws IOException {
+    try (DescriptorCache cache = open()) {
+      cache.computeIfAbsent("C", new double[N], d -> fill(1, d) != null);
+      append("CC", 2);
+      append("CCC", 3);
+      // not known to this instance, hence computed, but not stored again
+      cache.computeIfAbsent("CC", new double[N], d -> fill(2, d) != null);
+      cache.computeIfAbsent("CCCC", new double[N], d -> fill(4, d) != null);
+      assertEquals(4, cache.size());
+    }
+    try (DescriptorCache cache = open()) {
+      assertEquals(4, cache.size());
+      for (int i = 1; i <= 4; i++) {
+        final double[] dest = new double[N];
+        cache.computeIfAbsent(
+            "C".repeat(i),
+            dest,
+            d -> {
+              throw new AssertionError("Cached values computed again");
+            });
+        assertArrayEquals(fill(i, new double[N]), dest);
+      }
+    }
+    // the header, and every record just once
+    final int keys = 1 + 2 + 3 + 4;
+    assertEquals(
+        "JP2RTDC1".length() + Integer.BYTES + 4 * (Integer.BYTES + N * Double.BYTES) + keys,
+        Files.size(file()));
+  }
+
+  @Test
+  void aromaticAndKekuleSpellingsAreCachedApart() throws IOException {
+    // the aromatic atom count depends on the flags set by the parser, not just on the molecule
+    final List<String> selection = List.of("AromaticAtomsCountDescriptor");
+    final MolecularDescriptorsWrapper uncached = new MolecularDescriptorsWrapper(selection);
+    final String aromatic = "c1ccccc1", kekule = "C1=CC=CC=C1";
+    assertFalse(
+        Arrays.equals(uncached.calculate(aromatic, null), uncached.calculate(kekule, null)));
+    for (final List<String> order : List.of(List.of(aromatic, kekule), List.of(kekule, aromatic)))
+      try (DescriptorCache cache = DescriptorCache.open(dir.resolve(order.get(0)), uncached)) {
+        final MolecularDescriptorsWrapper cached =
+            new MolecularDescriptorsWrapper(selection).cache(cache);
+        // the second time the values come from the cache
+        for (int rep = 0; rep < 2; rep++)
+          for (final String smiles : order)
+            assertArrayEquals(
+                uncached.calculate(smiles, null), cached.calculate(smiles, null), smiles);
+      }
+  }
+}
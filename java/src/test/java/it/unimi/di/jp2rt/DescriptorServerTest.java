@@ -0,0 +1,104 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class DescriptorServerTest {
+
+  private static final List<String> SELECTION = List.of("AtomCountDescriptor");
+
+  private static ByteBuffer read(final SocketChannel channel, final int n) throws IOException {
+    final ByteBuffer bb = ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+    while (bb.hasRemaining()) if (channel.read(bb) < 0) throw new IOException("Closed");
+    return bb.flip();
+  }
+
+  private static int request(final SocketChannel channel, final String request)
+      throws IOException {
+    final byte[] payload = request.getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer bb =
+        ByteBuffer.allocate(Integer.BYTES + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+    bb.putInt(payload.length).put(payload).flip();
+    while (bb.hasRemaining()) channel.write(bb);
+    return read(channel, Integer.BYTES).getInt();
+  }
+
+  private static String message(final SocketChannel channel) throws IOException {
+    final int length = read(channel, Integer.BYTES).getInt();
+    return StandardCharsets.UTF_8.decode(read(channel, length)).toString();
+  }
+
+  @Test
+  void oversizedRequestsGetAnError() throws IOException {
+    try (DescriptorServer server =
+        new DescriptorServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                () -> new MolecularDescriptorsWrapper(SELECTION))
+            .threads(2)
+            .warmup(0)
+            .start()) {
+      final Thread serving =
+          new Thread(
+              () -> {
+                try {
+                  server.serve();
+                } catch (IOException e) {
+                  throw new IllegalStateException(e);
+                }
+              });
+      serving.setDaemon(true);
+      serving.start();
+      try (SocketChannel channel = SocketChannel.open(server.localAddress())) {
+        final int numCols = server.columns().size();
+        assertEquals(String.join("\n", server.columns()), message(channel));
+        final String tooMany =
+            String.join(
+                "\n", Collections.nCopies(DescriptorServer.MAX_REQUEST_MOLECULES + 1, "CCO"));
+        assertEquals(-1, request(channel, tooMany));
+        assertTrue(message(channel).contains(" molecules"));
+        // the connection is still usable
+        assertEquals(2, request(channel, "CCO\nC"));
+        final double[] values = new double[2 * numCols];
+        read(channel, values.length * Double.BYTES).asDoubleBuffer().get(values);
+        final double[] expected = new double[2 * numCols];
+        final MolecularDescriptorsWrapper wrapper = new MolecularDescriptorsWrapper(SELECTION);
+        System.arraycopy(wrapper.calculate("CCO", null), 0, expected, 0, numCols);
+        System.arraycopy(wrapper.calculate("C", null), 0, expected, numCols, numCols);
+        assertArrayEquals(expected, values);
+      }
+    }
+  }
+}
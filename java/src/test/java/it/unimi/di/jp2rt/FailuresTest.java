@@ -0,0 +1,89 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FailuresTest {
+
+  private static final String INVALID = "C!C";
+  private static final List<String> SELECTION = List.of("AtomCountDescriptor");
+
+  @TempDir Path dir;
+
+  @Test
+  void appendingKeepsTheEarlierRecords() throws IOException {
+    final Path rejects = dir.resolve("rejects.tsv");
+    try (Failures failures = new Failures(rejects)) {
+      failures.unparsable(null, "first", new IllegalArgumentException());
+    }
+    try (Failures failures = new Failures(rejects, true)) {
+      failures.unparsable(null, "second", new IllegalArgumentException());
+      assertEquals(1, failures.unparsable());
+    }
+    final List<String> lines = Files.readAllLines(rejects, StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(0).endsWith("\tfirst"));
+    assertTrue(lines.get(1).endsWith("\tsecond"));
+    try (Failures failures = new Failures(rejects)) {
+      failures.unparsable(null, "third", new IllegalArgumentException());
+    }
+    assertEquals(1, Files.readAllLines(rejects, StandardCharsets.UTF_8).size());
+  }
+
+  @Test
+  void arrayComputationsAccountTheirFailures() {
+    final int numCols = new MolecularDescriptorsWrapper(SELECTION).numDescriptors();
+    final MolecularDescriptorsWrapper[] wrapper = new MolecularDescriptorsWrapper[1];
+    // few molecules are computed by a single wrapper fanning out, many by the common pool
+    for (final int n : new int[] {1, 1000}) {
+      final String[] smiles = new String[n];
+      Arrays.fill(smiles, "CCO");
+      smiles[n / 2] = INVALID;
+      final ByteBuffer dest =
+          ByteBuffer.allocateDirect(n * numCols * Double.BYTES).order(ByteOrder.nativeOrder());
+      final Failures failures = new Failures();
+      MolecularDescriptorsCalculator.compute(
+          smiles,
+          dest,
+          () -> wrapper[0] = new MolecularDescriptorsWrapper(SELECTION),
+          failures);
+      assertEquals(1, failures.unparsable());
+      assertTrue(Double.isNaN(dest.asDoubleBuffer().get(n / 2 * numCols)));
+      // the wrappers, reused by later computations, do not keep the failures
+      assertNull(wrapper[0].failures());
+    }
+  }
+}
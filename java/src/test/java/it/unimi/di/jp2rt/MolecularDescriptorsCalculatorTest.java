@@ -0,0 +1,84 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MolecularDescriptorsCalculatorTest {
+
+  private static final List<String> SELECTION = List.of("AtomCountDescriptor", "ALOGPDescriptor");
+  private static final String[] SMILES = {"CCO", "c1ccccc1O", "C!C", "CC(=O)Oc1ccccc1C(=O)O"};
+
+  @TempDir Path dir;
+
+  @Test
+  void selectionsAreComputedAsByTheirWrappers() {
+    final MolecularDescriptorsWrapper wrapper = new MolecularDescriptorsWrapper(SELECTION);
+    final int numCols = wrapper.numDescriptors();
+    assertEquals(numCols, MolecularDescriptorsCalculator.numDescriptors(SELECTION));
+    // a few molecules are computed by a single wrapper fanning out, many by the common pool
+    for (final int n : new int[] {1, SMILES.length * 100}) {
+      final String[] smiles = new String[n];
+      for (int i = 0; i < n; i++) smiles[i] = SMILES[i % SMILES.length];
+      // repeated calls reuse the wrappers of the selection
+      for (int rep = 0; rep < 2; rep++) {
+        final ByteBuffer dest =
+            ByteBuffer.allocateDirect(n * numCols * Double.BYTES).order(ByteOrder.nativeOrder());
+        MolecularDescriptorsCalculator.computeSelection(smiles, dest, SELECTION, null);
+        final double[] row = new double[numCols];
+        for (int i = 0; i < n; i++) {
+          dest.asDoubleBuffer().get(i * numCols, row);
+          assertArrayEquals(wrapper.calculate(smiles[i], null), row, smiles[i]);
+        }
+      }
+    }
+  }
+
+  @Test
+  void serveRejectsBatchOptions() throws IOException {
+    final String rejects = dir.resolve("rejects.tsv").toString();
+    for (final List<String> options :
+        List.of(
+            List.of("--chunk-size", "10", "--rejects", rejects),
+            List.of("--shard", "1/2"),
+            List.of("--ordered"),
+            List.of("--longest-first"))) {
+      final List<String> args = new ArrayList<>(options);
+      args.addAll(List.of("--serve", dir.resolve("jp2rt.sock").toString()));
+      assertEquals(
+          1, MolecularDescriptorsCalculator.run(args.toArray(String[]::new)), options.toString());
+    }
+    assertFalse(Files.exists(Path.of(rejects)));
+  }
+}
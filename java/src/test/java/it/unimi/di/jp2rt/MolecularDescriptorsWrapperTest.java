@@ -0,0 +1,112 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MolecularDescriptorsWrapperTest {
+
+  private static final List<String> SELECTION = List.of("AtomCountDescriptor", "ALOGPDescriptor");
+
+  /** Molecules with aromatic (and Kekulé) rings, charges, stereo, salts, and invalid SMILES. */
+  private static final List<String> SMILES =
+      List.of(
+          "CCO",
+          "CC(=O)Oc1ccccc1C(=O)O",
+          "CN1C=NC2=C1C(=O)N(C(=O)N2C)C",
+          "CC(C)Cc1ccc(cc1)C(C)C(=O)O",
+          "C1=CC=CC=C1",
+          "c1ccc2ccccc2c1",
+          "C[N+](C)(C)CC(=O)[O-]",
+          "C[C@H](N)C(=O)O",
+          "[Na+].[Cl-]",
+          "C1CC2(C1)CCC2",
+          "not a SMILES");
+
+  @Test
+  void sharingComputesTheSameValuesAsCopying() {
+    final MolecularDescriptorsWrapper copying = new MolecularDescriptorsWrapper().share(false);
+    final MolecularDescriptorsWrapper sharing = new MolecularDescriptorsWrapper().share(true);
+    for (int round = 0; round < 2; round++)
+      for (String smiles : SMILES)
+        assertArrayEquals(
+            copying.calculate(smiles, null), sharing.calculate(smiles, null), smiles);
+  }
+
+  @Test
+  void emptySelectionDoesNotAffectTheDefaultLayout() {
+    final MolecularDescriptorsWrapper empty = new MolecularDescriptorsWrapper(List.of());
+    assertEquals(0, empty.numDescriptors());
+    final MolecularDescriptorsWrapper defaults = new MolecularDescriptorsWrapper();
+    assertTrue(defaults.numDescriptors() > 0);
+    assertEquals(defaults.columns(), new MolecularDescriptorsWrapper(null).columns());
+    assertEquals(0, new MolecularDescriptorsWrapper(List.of()).numDescriptors());
+  }
+
+  @Test
+  void valueNamesOfSelectedClassesAreNotSelectedTwice() {
+    final List<String> columns = new MolecularDescriptorsWrapper(SELECTION).columns();
+    final String value =
+        new MolecularDescriptorsWrapper(List.of("ALOGPDescriptor")).columns().get(0);
+    for (final List<String> selection :
+        List.of(
+            List.of("AtomCountDescriptor", "ALOGPDescriptor", value),
+            List.of(value, "AtomCountDescriptor", "ALOGPDescriptor")))
+      assertEquals(
+          columns, new MolecularDescriptorsWrapper(selection).columns(), selection.toString());
+  }
+
+  @Test
+  void interruptedComputationsAreCountedAsAbandoned() {
+    final TimeBudget budget = new TimeBudget(Duration.ofMinutes(1), null);
+    final Failures failures = new Failures();
+    final MolecularDescriptorsWrapper wrapper =
+        new MolecularDescriptorsWrapper(SELECTION).budget(budget).failures(failures);
+    Thread.currentThread().interrupt();
+    try {
+      for (double v : wrapper.calculate("CCO", null)) assertTrue(Double.isNaN(v));
+    } finally {
+      assertTrue(Thread.interrupted());
+    }
+    assertEquals(SELECTION.size(), budget.timeouts());
+    assertEquals(SELECTION.size(), failures.failures());
+  }
+
+  @Test
+  void budgetRunnersAreShared() {
+    final TimeBudget budget = new TimeBudget(Duration.ofMinutes(1), null);
+    for (int i = 0; i < 100; i++)
+      new MolecularDescriptorsWrapper(SELECTION).budget(budget).calculate("CCO", null);
+    final long runners =
+        Thread.getAllStackTraces().keySet().stream()
+            .filter(t -> t.getName().startsWith("jp2rt-budget-runner"))
+            .count();
+    assertTrue(runners < 10, runners + " runner threads for sequential computations");
+    assertEquals(0, budget.timeouts());
+  }
+}
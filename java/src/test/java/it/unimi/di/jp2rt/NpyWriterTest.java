@@ -0,0 +1,59 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class NpyWriterTest {
+
+  @TempDir Path dir;
+
+  private static byte[] bytes(final ByteBuffer bb) {
+    final byte[] b = new byte[bb.remaining()];
+    bb.get(b);
+    return b;
+  }
+
+  @Test
+  void emptyMatricesKeepTheirColumns() throws IOException {
+    final Path path = dir.resolve("empty.npy");
+    new NpyWriter(path, 3, false).close();
+    assertArrayEquals(bytes(NpyWriter.header(false, 0, 3)), Files.readAllBytes(path));
+  }
+
+  @Test
+  void rowsOfTheWrongWidthAreRejected() throws IOException {
+    try (NpyWriter writer = new NpyWriter(dir.resolve("rows.npy"), 3, false)) {
+      final TSVRow row = new TSVRow("CCO");
+      row.descriptors(new double[2]);
+      assertThrows(IllegalArgumentException.class, () -> writer.write(row));
+    }
+  }
+}
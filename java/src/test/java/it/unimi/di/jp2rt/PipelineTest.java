@@ -0,0 +1,113 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+
+class PipelineTest {
+
+  private static final List<String> SELECTION = List.of("AtomCountDescriptor");
+
+  private static Stream<String> lines(final int n) {
+    return Stream.generate(() -> "CCO").limit(n);
+  }
+
+  private static long pipelineThreads() {
+    return Thread.getAllStackTraces().keySet().stream()
+        .filter(t -> t.getName().equals("jp2rt-pipeline"))
+        .count();
+  }
+
+  @Test
+  void failingWriterEndsTheRun() {
+    final RowWriter full =
+        new RowWriter() {
+          @Override
+          public void write(final TSVRow row) throws IOException {
+            throw new IOException("No space left on device");
+          }
+
+          @Override
+          public void close() {}
+        };
+    for (boolean ordered : new boolean[] {false, true}) {
+      // a tiny queue and many lines, so that the workers are blocked on the full output queue
+      final Pipeline pipeline =
+          new Pipeline(() -> new MolecularDescriptorsWrapper(SELECTION))
+              .threads(4)
+              .batchSize(1)
+              .queueCapacity(1)
+              .ordered(ordered);
+      final IOException e =
+          assertTimeoutPreemptively(
+              Duration.ofSeconds(30),
+              () -> assertThrows(IOException.class, () -> pipeline.run(lines(10_000), full)));
+      assertEquals("No space left on device", e.getMessage());
+      // no worker is left blocked on the output queue
+      assertTimeoutPreemptively(
+          Duration.ofSeconds(30),
+          () -> {
+            while (pipelineThreads() > 0) Thread.sleep(10);
+          });
+    }
+  }
+
+  @Test
+  void everyLineIsWritten() throws IOException {
+    final AtomicInteger written = new AtomicInteger();
+    final RowWriter counter =
+        new RowWriter() {
+          @Override
+          public void write(final TSVRow row) {
+            written.incrementAndGet();
+          }
+
+          @Override
+          public void close() {}
+        };
+    new Pipeline(() -> new MolecularDescriptorsWrapper(SELECTION))
+        .threads(4)
+        .batchSize(1)
+        .queueCapacity(1)
+        .run(lines(1_000), counter);
+    assertEquals(1_000, written.get());
+  }
+
+  @Test
+  void estimateCostCountsEveryRingOnce() {
+    assertEquals(4, Pipeline.estimateCost("ethane\tCC"));
+    assertEquals(4, Pipeline.estimateCost("[13CH3][2H]"));
+    assertEquals(6 * 6 * 2, Pipeline.estimateCost("c1ccccc1"));
+    assertEquals(10 * 10 * 3, Pipeline.estimateCost("c1ccc2ccccc2c1"));
+    assertEquals(3 * 3 * 2, Pipeline.estimateCost("C%10CC%10"));
+    assertEquals(3 * 3, Pipeline.estimateCost("ClCBr"));
+  }
+}
@@ -0,0 +1,126 @@
+/*
+
+Copyright 2024 Marianna Iorio, Sonia Maffioli, Massimo Santini, Matteo Simone
+
+This file is part of "jp²rt".
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package it.unimi.di.jp2rt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ShardTest {
+
+  private static final String[] SMILES = {"CCO", "c1ccccc1O", "CC(=O)Oc1ccccc1C(=O)O", "C", "N#N"};
+  private static final int LINES = 200, SHARDS = 3;
+
+  @TempDir Path dir;
+
+  private Path input(final String name, final boolean compressed) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < LINES; i++)
+      sb.append(i).append('\t').append(SMILES[i % SMILES.length]).append('\n');
+    final Path p = dir.resolve(name);
+    try (OutputStream os =
+        compressed ? new GZIPOutputStream(Files.newOutputStream(p)) : Files.newOutputStream(p)) {
+      os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    return p;
+  }
+
+  private static void compute(final Path in, final Path out, final String... options)
+      throws IOException {
+    final List<String> args = new ArrayList<>(List.of("--descriptors", "AtomCountDescriptor"));
+    args.addAll(List.of(options));
+    args.addAll(List.of(in.toString(), out.toString()));
+    assertEquals(0, MolecularDescriptorsCalculator.run(args.toArray(String[]::new)));
+  }
+
+  private List<String> shards(final Path in) throws IOException {
+    final List<String> outputs = new ArrayList<>();
+    // in reverse order, as merging must not depend on the order of the shards
+    for (int i = SHARDS; i > 0; i--) {
+      final Path out = dir.resolve("out-" + i + ".tsv");
+      compute(in, out, "--ordered", "--shard", i + "/" + SHARDS);
+      outputs.add(out.toString());
+    }
+    return outputs;
+  }
+
+  private List<String> merged(final Path in) throws IOException {
+    final Path merged = dir.resolve("merged.tsv");
+    assertEquals(LINES, Shard.merge(shards(in), merged.toString()));
+    return Files.readAllLines(merged);
+  }
+
+  private List<String> unsharded(final Path in) throws IOException {
+    final Path out = dir.resolve("unsharded.tsv");
+    compute(in, out, "--ordered");
+    return Files.readAllLines(out);
+  }
+
+  @Test
+  void rangeShardsMergeToTheUnshardedOutput() throws IOException {
+    final Path in = input("in.tsv", false);
+    // byte ranges follow the input order
+    assertEquals(unsharded(in), merged(in));
+  }
+
+  @Test
+  void hashShardsMergeToTheUnshardedOutput() throws IOException {
+    final Path in = input("in.tsv.gz", true);
+    final List<String> expected = new ArrayList<>(unsharded(in)), actual = merged(in);
+    expected.sort(null);
+    actual.sort(null);
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  void shardsOfDifferentVersionsOfTheInputAreNotMerged() throws IOException {
+    final Path in = input("in.tsv", false);
+    final List<String> outputs = shards(in);
+    // recompute the last shard (the first output) after the input has been touched
+    final long modified = Files.getLastModifiedTime(in).toMillis();
+    Files.setLastModifiedTime(in, FileTime.fromMillis(modified + 1000));
+    compute(in, Path.of(outputs.get(0)), "--shard", SHARDS + "/" + SHARDS);
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> Shard.merge(outputs, dir.resolve("merged.tsv").toString()));
+  }
+
+  @Test
+  void missingShardsAreNotMerged() throws IOException {
+    final List<String> outputs = shards(input("in.tsv", false));
+    outputs.remove(1);
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> Shard.merge(outputs, dir.resolve("merged.tsv").toString()));
+  }
+}
@@ -6,17 +6,27 @@ HAS_PLOT = (find_spec('matplotlib') is not None) and (find_spec('seaborn') is no
 
 from jp2rt.java import (  # noqa: E402
   add_descriptors_via_tsv,
+  compute_and_predict,
   compute_descriptors,
+  compute_descriptors_array,
   compute_single_descriptor,
+  create_cds_archive,
   descriptors,
+  merge_shards,
+  serve,
 )
 from jp2rt.ml import (  # noqa: E402
   evaluate_model,
+  export_tree_ensemble,
   list_ensemble_models,
+  load_columns,
   load_descriptors,
   load_model,
+  load_model_columns,
   load_retention_times,
   save_model,
+  select_columns,
+  simple_ensemble_model,
   simple_ensemble_model_estimate,
 )
 
@@ -24,12 +34,22 @@ __all__ = [
   '__version__',
   'add_descriptors_via_tsv',
   'descriptors',
+  'merge_shards',
   'compute_single_descriptor',
   'compute_descriptors',
+  'compute_descriptors_array',
+  'compute_and_predict',
+  'create_cds_archive',
+  'serve',
   'save_model',
   'load_model',
+  'export_tree_ensemble',
+  'load_model_columns',
   'load_descriptors',
+  'load_columns',
+  'select_columns',
   'load_retention_times',
+  'simple_ensemble_model',
   'simple_ensemble_model_estimate',
   'list_ensemble_models',
   'evaluate_model',
@@ -0,0 +1,82 @@
+import socket
+import struct
+
+import numpy as np
+
+ERROR = -1  # the number of rows of an error response
+
+
+class DescriptorClient:
+  """A client of a resident descriptor server (see :func:`jp2rt.java.serve`).
+
+  The client keeps its connection open, so that every request just pays the cost of
+  computing the descriptors; it can be used as a context manager, closing the
+  connection on exit. A client must not be shared among threads.
+
+  Args:
+    address (:obj:`str` or :obj:`int`): The address of the server, as given to
+      :func:`jp2rt.java.serve`.
+    timeout (:obj:`float`, optional): The timeout, in seconds, of the socket operations.
+      Defaults to ``None`` (no timeout).
+  """
+
+  def __init__(self, address, timeout=None):
+    address = str(address)
+    host, _, port = address.rpartition(':')
+    if port.isdigit():
+      self._socket = socket.create_connection((host or 'localhost', int(port)), timeout)
+    else:
+      self._socket = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+      self._socket.settimeout(timeout)
+      self._socket.connect(address)
+    self.columns = self._read(self._read_length()).decode('utf-8').split('\n')
+
+  def _read(self, n):
+    buf = bytearray(n)
+    view = memoryview(buf)
+    while view:
+      read = self._socket.recv_into(view)
+      if read == 0:
+        raise ConnectionError('The server closed the connection')
+      view = view[read:]
+    return buf
+
+  def _read_length(self):
+    return struct.unpack('<i', self._read(4))[0]
+
+  def compute(self, smiles):
+    """Computes the descriptor values of the given molecules.
+
+    Args:
+      smiles (:obj:`list` of :obj:`str`): The SMILES of the molecules.
+
+    Returns:
+      :obj:`numpy.array`: the descriptor values, a row per molecule, with a column
+      for every name in :attr:`columns`; molecules whose SMILES cannot be parsed have
+      all their values set to NaN.
+
+    Raises:
+      ValueError: If some SMILES is empty or contains a newline, or if the server
+        refuses the request (for instance, because it has too many molecules).
+    """
+    if any(not s or '\n' in s for s in smiles):
+      raise ValueError('SMILES must not be empty or contain newlines')
+    payload = '\n'.join(smiles).encode('utf-8')
+    self._socket.sendall(struct.pack('<i', len(payload)) + payload)
+    n = self._read_length()
+    if n == ERROR:
+      raise ValueError(self._read(self._read_length()).decode('utf-8'))
+    values = self._read(n * len(self.columns) * 8)
+    if n != len(smiles):
+      raise ConnectionError(f'The server returned {n} rows for {len(smiles)} molecules')
+    return np.frombuffer(values, dtype='<f8').reshape(n, len(self.columns))
+
+  def close(self):
+    """Closes the connection."""
+    self._socket.close()
+
+  def __enter__(self):
+    return self
+
+  def __exit__(self, exc_type, exc_value, traceback):
+    self.close()
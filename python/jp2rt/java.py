@@ -1,14 +1,64 @@
 import importlib.resources
+import os
+import subprocess
+import sys
+import warnings
 from collections import OrderedDict
+from pathlib import Path
+from tempfile import TemporaryDirectory
 
+import jpype
+import numpy as np
 from scyjava import config, jimport, to_python
 
 JP2RT_REF = ref = importlib.resources.files('jp2rt') / 'lib.jar'
 
+CDS_DUMP_ENV = 'JP2RT_CDS_DUMP'
+CDS_TRAINING_SMILES = (
+  'CCO',
+  'c1ccccc1',
+  'CC(=O)Oc1ccccc1C(=O)O',
+  'CN1C=NC2=C1C(=O)N(C(=O)N2C)C',
+  'CC(C)Cc1ccc(cc1)C(C)C(=O)O',
+  'CC(N)C(=O)NC(C)C(=O)NC(C)C(=O)NC(C)C(=O)O',
+  'OC[C@H]1O[C@@H](O)[C@H](O)[C@@H](O)[C@@H]1O',
+  'not a SMILES',
+)
+
+_cds_configured = False
+
+
+def cds_archive_path(jar):
+  """Returns the path of the class data sharing archive of the given jar.
+
+  Args:
+    jar (:obj:`str`): Path to the jar.
+
+  Returns:
+    :obj:`pathlib.Path`: the path of the archive, having the ``.jsa`` extension.
+  """
+  return Path(jar).with_suffix('.jsa')
+
+
+def _configure_cds(jar):
+  # the options are read just when the JVM starts
+  global _cds_configured
+  if _cds_configured or jpype.isJVMStarted():
+    return
+  _cds_configured = True
+  dump = os.environ.get(CDS_DUMP_ENV)
+  if dump:
+    config.add_option(f'-XX:ArchiveClassesAtExit={dump}')
+  elif cds_archive_path(jar).is_file():
+    config.add_option(f'-XX:SharedArchiveFile={cds_archive_path(jar)}')
+
 
 class JavaLib:
   """
   A context manager allowing to import and use Java classes.
+
+  If the JVM is not yet started and the class data sharing archive created by
+  :func:`create_cds_archive` is present, the JVM is started using it.
   """
 
   def __init__(self) -> None:
@@ -16,6 +66,7 @@ class JavaLib:
 
   def __enter__(self):
     path = self._cm.__enter__()
+    _configure_cds(path)
     config.add_classpath(str(path))
     return lambda name: jimport(name) if '.' in name else jimport('it.unimi.di.jp2rt.' + name)
 
@@ -23,7 +74,24 @@ class JavaLib:
     return self._cm.__exit__(exc_type, exc_value, traceback)
 
 
-def add_descriptors_via_tsv(src, dst):
+def add_descriptors_via_tsv(
+  src,
+  dst,
+  ordered=False,
+  cache=None,
+  descriptors=None,
+  timeout=None,
+  molecule_timeout=None,
+  metrics=False,
+  metrics_json=None,
+  share=True,
+  threads=None,
+  batch_size=None,
+  chunk_size=None,
+  shard=None,
+  longest_first=False,
+  rejects=None,
+):
   """Add molecular descriptors given the SMILES.
 
   The input file must be in tab separated format, must not have an header, and the
@@ -33,10 +101,191 @@ def add_descriptors_via_tsv(src, dst):
   Args:
     src (:obj:`str`): Path to the tab separated values file containing the SMILES.
     dst (:obj:`str`): Path to the tab separated values file to write the molecular descriptors.
+    ordered (:obj:`bool`, optional): Whether the rows of the output file must be in the same
+      order of the input file. Defaults to ``False``.
+    cache (:obj:`str`, optional): Path to a directory where to keep a persistent cache of the
+      descriptor values (indexed by canonical SMILES). Defaults to ``None`` (no cache).
+    descriptors (:obj:`list` of :obj:`str`, optional): The names of the descriptor classes, or of
+      the single values, to compute. Defaults to ``None`` (all the known descriptors).
+    timeout (:obj:`int`, optional): The maximum time, in milliseconds, allowed to compute a
+      single descriptor of a molecule; descriptors exceeding it are abandoned and their values
+      replaced with NaN. Defaults to ``None`` (no limit).
+    molecule_timeout (:obj:`int`, optional): The maximum time, in milliseconds, allowed to
+      compute all the descriptors of a molecule. Defaults to ``None`` (no limit).
+    metrics (:obj:`bool`, optional): Whether to print per descriptor timing and failure metrics
+      at the end of the computation. Defaults to ``False``.
+    metrics_json (:obj:`str`, optional): Path to a file where to write the per descriptor metrics
+      in JSON format. Defaults to ``None`` (metrics not written).
+    share (:obj:`bool`, optional): Whether the descriptors known not to modify the molecule
+      compute the parsed molecule directly, instead of a copy of it. Defaults to ``True``.
+    threads (:obj:`int`, optional): The number of threads computing the descriptors; if given
+      (or if ``batch_size`` is given), the computation runs in a dedicated pool of threads
+      with bounded queues, instead of the JVM-wide common pool. Defaults to ``None``.
+    batch_size (:obj:`int`, optional): The number of lines handed to a thread at once.
+      Defaults to ``None`` (a small number of lines).
+    chunk_size (:obj:`int`, optional): If given, the input is processed in chunks of this
+      number of lines, every completed chunk is saved in a directory having the path of
+      ``dst`` followed by the ``.parts`` extension, and running again the computation with
+      the same arguments skips the chunks already completed. Defaults to ``None``.
+    shard (:obj:`str`, optional): If given, as ``i/n``, just the lines of the ``i``-th of ``n``
+      shards of the input are computed, so that independent processes can each take a part of
+      it; their outputs can be combined with :func:`merge_shards`. Defaults to ``None``.
+    longest_first (:obj:`bool`, optional): Whether the most expensive molecules (as estimated
+      from their SMILES) are computed first, so that the computation does not end with a
+      single thread busy on a few large molecules; it can't be used with ``ordered``.
+      Defaults to ``False``.
+    rejects (:obj:`str`, optional): Path to a tab separated values file where to record the
+      failures (the failed descriptor, or ``SmilesParser``, and the exception class, followed by
+      the input line); when a computation in chunks is resumed, the failures are appended to
+      the ones recorded by the previous runs. Defaults to ``None`` (failures just summarized
+      at the end).
+
+  The names of the computed values are written, one per line, to a file having the path of
+  ``dst`` followed by the ``.columns`` extension (see :func:`jp2rt.ml.load_columns`).
+  """
+  args = []
+  if descriptors is not None:
+    args.extend(['--descriptors', ','.join(descriptors)])
+  if ordered:
+    args.append('--ordered')
+  if cache is not None:
+    args.extend(['--cache', str(cache)])
+  if timeout is not None:
+    args.extend(['--timeout', str(timeout)])
+  if molecule_timeout is not None:
+    args.extend(['--molecule-timeout', str(molecule_timeout)])
+  if metrics:
+    args.append('--metrics')
+  if metrics_json is not None:
+    args.extend(['--metrics-json', str(metrics_json)])
+  if not share:
+    args.append('--no-share')
+  if threads is not None:
+    args.extend(['--threads', str(threads)])
+  if batch_size is not None:
+    args.extend(['--batch-size', str(batch_size)])
+  if chunk_size is not None:
+    args.extend(['--chunk-size', str(chunk_size)])
+  if shard is not None:
+    args.extend(['--shard', str(shard)])
+  if longest_first:
+    args.append('--longest-first')
+  if rejects is not None:
+    args.extend(['--rejects', str(rejects)])
+  args.extend([str(src), str(dst)])
+  with JavaLib() as jl:
+    MDC = jl('MolecularDescriptorsCalculator')
+    if MDC.run(*args) != 0:
+      raise ValueError(f'Invalid arguments: {args}')
+
+
+def compute_and_predict(
+  model,
+  src,
+  dst,
+  ordered=False,
+  cache=None,
+  timeout=None,
+  molecule_timeout=None,
+  threads=None,
+  batch_size=None,
+):
+  """Predicts the retention times given the SMILES, without writing the descriptor values.
+
+  The descriptor values needed by the model are computed and passed directly to the
+  ensemble of trees of the model, evaluated by the Java library, so that no descriptor
+  file is written (and read back). The output file contains, for every line of the input
+  file, the predicted retention time followed by the fields of the line (as the output of
+  the ``predict-rt`` command).
+
+  Args:
+    model (:obj:`str`): Path to a model file saved along with its trees (see
+      :func:`jp2rt.ml.save_model`), or to a file containing just the trees exported by
+      :func:`jp2rt.ml.export_tree_ensemble`.
+    src (:obj:`str`): Path to the tab separated values file containing the SMILES.
+    dst (:obj:`str`): Path to the tab separated values file to write the predictions.
+    ordered (:obj:`bool`, optional): Whether the rows of the output file must be in the same
+      order of the input file. Defaults to ``False``.
+    cache (:obj:`str`, optional): Path to a directory where to keep a persistent cache of the
+      descriptor values. Defaults to ``None`` (no cache).
+    timeout (:obj:`int`, optional): The maximum time, in milliseconds, allowed to compute a
+      single descriptor of a molecule. Defaults to ``None`` (no limit).
+    molecule_timeout (:obj:`int`, optional): The maximum time, in milliseconds, allowed to
+      compute all the descriptors of a molecule. Defaults to ``None`` (no limit).
+    threads (:obj:`int`, optional): The number of threads computing the descriptors.
+      Defaults to ``None``.
+    batch_size (:obj:`int`, optional): The number of lines handed to a thread at once.
+      Defaults to ``None`` (a small number of lines).
+  """
+  args = ['--predict', str(model)]
+  if ordered:
+    args.append('--ordered')
+  if cache is not None:
+    args.extend(['--cache', str(cache)])
+  if timeout is not None:
+    args.extend(['--timeout', str(timeout)])
+  if molecule_timeout is not None:
+    args.extend(['--molecule-timeout', str(molecule_timeout)])
+  if threads is not None:
+    args.extend(['--threads', str(threads)])
+  if batch_size is not None:
+    args.extend(['--batch-size', str(batch_size)])
+  args.extend([str(src), str(dst)])
+  with JavaLib() as jl:
+    MDC = jl('MolecularDescriptorsCalculator')
+    if MDC.run(*args) != 0:
+      raise ValueError(f'Invalid arguments: {args}')
+
+
+def merge_shards(dst, srcs):
+  """Merges the outputs of all the shards of an input file in a single file.
+
+  Before merging, checks that all the shards are present, that they have been computed
+  for the same input and with the same column layout, and that no row is missing.
+
+  Args:
+    dst (:obj:`str`): Path to the merged file.
+    srcs (:obj:`list` of :obj:`str`): Paths to the outputs of the shards, in any order.
   """
   with JavaLib() as jl:
     MDC = jl('MolecularDescriptorsCalculator')
-    MDC.toFile(MDC.fromFile(src), dst)
+    if MDC.run('--merge', str(dst), *[str(src) for src in srcs]) != 0:
+      raise ValueError('The shards can not be merged')
+
+
+def serve(address, threads=None, descriptors=None, timeout=None, share=True):
+  """Runs a resident descriptor server, until the process is terminated.
+
+  The server computes the descriptors of the batches of SMILES sent by the clients (see
+  :class:`jp2rt.client.DescriptorClient`), so that the JVM start up and the CDK
+  initialization are paid just once.
+
+  Args:
+    address (:obj:`str`): A port number (on the loopback interface), a ``host:port`` pair,
+      or otherwise the path of a Unix domain socket.
+    threads (:obj:`int`, optional): The number of worker threads computing the descriptors.
+      Defaults to ``None`` (the number of available processors).
+    descriptors (:obj:`list` of :obj:`str`, optional): The names of the descriptor classes, or of
+      the single values, to compute. Defaults to ``None`` (all the known descriptors).
+    timeout (:obj:`int`, optional): The maximum time, in milliseconds, allowed to compute a
+      single descriptor of a molecule. Defaults to ``None`` (no limit).
+    share (:obj:`bool`, optional): Whether the descriptors known not to modify the molecule
+      compute the parsed molecule directly, instead of a copy of it. Defaults to ``True``.
+  """
+  args = []
+  if descriptors is not None:
+    args.extend(['--descriptors', ','.join(descriptors)])
+  if threads is not None:
+    args.extend(['--threads', str(threads)])
+  if timeout is not None:
+    args.extend(['--timeout', str(timeout)])
+  if not share:
+    args.append('--no-share')
+  args.extend(['--serve', str(address)])
+  with JavaLib() as jl:
+    MDC = jl('MolecularDescriptorsCalculator')
+    if MDC.run(*args) != 0:
+      raise ValueError(f'Invalid arguments: {args}')
 
 
 def descriptors():
@@ -63,12 +312,53 @@ def compute_descriptors(smiles):
 
   Returns:
     :obj:`list` of :obj:`float`: the descriptor values.
+
+  Warns:
+    RuntimeWarning: If the SMILES can't be parsed or some descriptor fails (as
+      :func:`compute_descriptors_array`).
+  """
+  return compute_descriptors_array([smiles])[0].tolist()
+
+
+def compute_descriptors_array(smiles, descriptors=None):
+  """
+  Computes, in parallel, the descriptor values for the given SMILES.
+
+  The values are written by the Java library directly in the memory of the returned
+  array, so that the molecules cross the boundary between Python and Java just once.
+
+  Args:
+    smiles (:obj:`list` of :obj:`str`): The SMILES of the molecules of which the
+      descriptors should be computed.
+    descriptors (:obj:`list` of :obj:`str`, optional): The names of the descriptor classes, or of
+      the single values, to compute. Defaults to ``None`` (all the known descriptors).
+
+  Returns:
+    :obj:`numpy.array`: the descriptor values, a row per molecule (molecules whose SMILES
+    cannot be parsed have all their values set to NaN).
+
+  Warns:
+    RuntimeWarning: If some SMILES can't be parsed or some descriptor fails (so that its
+      values are replaced with NaN), summarizing the number of failures by descriptor.
   """
+  smiles = list(smiles)
   with JavaLib() as jl:
-    TSVRow = jl('TSVRow')
-    MolecularDescriptorsWrapper = jl('MolecularDescriptorsWrapper')
-    tsv_line = MolecularDescriptorsWrapper().calculate(TSVRow(smiles))
-    return [float(_) for _ in tsv_line.descriptors()]
+    MDC = jl('MolecularDescriptorsCalculator')
+    selection = None
+    if descriptors is not None:
+      selection = jl('java.util.ArrayList')()
+      for d in descriptors:
+        selection.add(d)
+    # the Java library keeps the descriptors of every selection, so that they are not created anew
+    X = np.empty((len(smiles), MDC.numDescriptors(selection)), dtype=np.float64)
+    if X.size == 0:
+      return X
+    buffer = jpype.nio.convertToDirectBuffer(X).order(jl('java.nio.ByteOrder').nativeOrder())
+    failures = jl('Failures')()
+    MDC.computeSelection(jpype.JArray(jpype.JString)(smiles), buffer, selection, failures)
+    if failures.unparsable() + failures.failures() > 0:
+      warnings.warn(str(failures.toString()), RuntimeWarning, stacklevel=2)
+    return X
 
 
 def compute_single_descriptor(name, smiles):
@@ -92,3 +382,46 @@ def compute_single_descriptor(name, smiles):
     mol = smilesParser.parseSmiles(smiles)
     ds = wd.calculate(mol)
     return [float(_) for _ in ds.toArray()]
+
+
+def create_cds_archive():
+  """
+  Creates a class data sharing archive for the Java library.
+
+  The archive records the classes loaded (and verified) by the JVM while computing the
+  descriptors of a few molecules, so that the following processes starting the JVM (see
+  :class:`JavaLib`) map them from the archive instead of loading them from the jar, spending
+  less time before computing the first molecule.
+
+  The archive is created by a separate Python process and written alongside the jar of the
+  library (that must hence be writable); it is valid just for the JVM that created it, hence
+  it must be created again if a different JVM is used (otherwise the JVM prints a warning and
+  ignores it).
+
+  Returns:
+    :obj:`pathlib.Path`: the path of the archive.
+  """
+  with importlib.resources.as_file(JP2RT_REF) as jar:
+    archive = cds_archive_path(jar)
+    partial = archive.with_suffix('.jsa.tmp')
+    partial.unlink(missing_ok=True)
+    subprocess.run(
+      [sys.executable, '-c', 'from jp2rt.java import _cds_training; _cds_training()'],
+      env={**os.environ, CDS_DUMP_ENV: str(partial)},
+      check=True,
+    )
+    if not partial.is_file():
+      raise RuntimeError('The JVM did not write the class data sharing archive')
+    # processes starting meanwhile see either no archive or the complete one
+    os.replace(partial, archive)
+    return archive
+
+
+def _cds_training():
+  # the archive is written by the JVM when this process exits
+  with TemporaryDirectory() as tmp:
+    src = Path(tmp) / 'training.tsv'
+    src.write_text(''.join(f'{i}\t{s}\n' for i, s in enumerate(CDS_TRAINING_SMILES)))
+    for ordered in (False, True):
+      add_descriptors_via_tsv(src, Path(tmp) / 'training+descriptors.tsv', ordered=ordered)
+    compute_descriptors_array(CDS_TRAINING_SMILES)
@@ -1,6 +1,15 @@
+import gzip
 import importlib
 import io
+import multiprocessing
+import os
+import pickle
+import struct
+import tempfile
 import zipfile
+from collections import deque
+from concurrent.futures import ProcessPoolExecutor
+from itertools import islice
 from pathlib import Path
 
 from jp2rt import HAS_PLOT
@@ -13,77 +22,429 @@ import joblib
 import numpy as np
 from packaging.version import Version, parse
 from scipy.stats.mstats import mquantiles
+from sklearn.base import clone
 from sklearn.compose import ColumnTransformer
+from sklearn.dummy import DummyRegressor
 from sklearn.impute import SimpleImputer
-from sklearn.metrics import PredictionErrorDisplay
-from sklearn.model_selection import cross_val_predict, cross_validate
+from sklearn.metrics import PredictionErrorDisplay, r2_score, root_mean_squared_error
+from sklearn.model_selection import KFold
 from sklearn.pipeline import make_pipeline
 from sklearn.preprocessing import StandardScaler
 from tabulate import tabulate
 
 from jp2rt import __version__
 
-MANIFEST_VERSION = Version('1.0')
+MANIFEST_VERSION = Version('1.1')
 JP2RT_VERSION = parse(__version__)
 MANIFEST = f'Manifest-Version: {MANIFEST_VERSION}\nJP2RT-Version: {JP2RT_VERSION}\n'
 ENSEMBLE_REGRESSOR_MODULE = importlib.import_module('sklearn.ensemble')
+NPY_SUFFIX = '.npy'
+NPY_SIDECAR_SUFFIX = '.smiles.tsv'
+COLUMNS_SUFFIX = '.columns'
+GZIP_SUFFIX = '.gz'
+TREES_ENTRY = 'trees.bin'
+TREES_MAGIC = b'JP2RTTE1'
+TREES_SUFFIX = '.trees'
+DEFAULT_CHUNK_SIZE = 10_000
+MODEL_ENTRY = 'model.pickle'
+ARRAYS_DIR = 'arrays'
+ARRAY_ALIGNMENT = 64
+MIN_MAPPED_BYTES = 4096
+ALIGNMENT_EXTRA_ID = 0xD935  # the extra field id used by zipalign for padding
 
 
-def save_model(model, path):
+class _ModelPickler(pickle.Pickler):
+  """Pickles a model writing its large numeric arrays as separate entries of a zip file."""
+
+  def __init__(self, file, zf, prefix):
+    super().__init__(file, protocol=pickle.HIGHEST_PROTOCOL)
+    self.zf = zf
+    self.prefix = prefix
+    self.arrays = {}  # the ids of the written arrays (kept alive by the model) to their persistent ids
+
+  def persistent_id(self, obj):
+    if not isinstance(obj, np.ndarray) or obj.dtype.hasobject or obj.nbytes < MIN_MAPPED_BYTES:
+      return None
+    if id(obj) in self.arrays:
+      return self.arrays[id(obj)]
+    fortran_order = obj.flags.f_contiguous and not obj.flags.c_contiguous
+    data = np.ascontiguousarray(obj.T if fortran_order else obj).reshape(-1).view(np.uint8)
+    name = f'{self.prefix}/{ARRAYS_DIR}/{len(self.arrays)}.bin'
+    _write_aligned(self.zf, name, data)
+    self.arrays[id(obj)] = ('array', name, obj.dtype, obj.shape, fortran_order)
+    return self.arrays[id(obj)]
+
+
+def _write_aligned(zf, name, data):
+  """Writes an uncompressed entry whose data starts at a multiple of ARRAY_ALIGNMENT."""
+  info = zipfile.ZipInfo(name)
+  info.compress_type = zipfile.ZIP_STORED
+  info.file_size = data.nbytes
+  header = zipfile.sizeFileHeader + len(name.encode('utf-8')) + 4
+  if data.nbytes * 1.05 > zipfile.ZIP64_LIMIT:  # as zipfile, that adds the zip64 extra field
+    header += 20
+  padding = -(zf.fp.tell() + header) % ARRAY_ALIGNMENT
+  info.extra = struct.pack('<HH', ALIGNMENT_EXTRA_ID, padding) + bytes(padding)
+  with zf.open(info, 'w') as ouf:
+    ouf.write(data)
+
+
+class _ModelUnpickler(pickle.Unpickler):
+  """Unpickles a model pickled by _ModelPickler, memory mapping its arrays if required."""
+
+  def __init__(self, file, zf, path, mmap_mode):
+    super().__init__(file)
+    self.zf = zf
+    self.path = path
+    self.mmap_mode = mmap_mode
+    self.arrays = {}
+
+  def persistent_load(self, pid):
+    kind, name, dtype, shape, fortran_order = pid
+    if kind != 'array':
+      raise pickle.UnpicklingError(f'Invalid model file, unknown persistent id: {kind}')
+    if name not in self.arrays:
+      self.arrays[name] = self._load_array(name, dtype, shape, 'F' if fortran_order else 'C')
+    return self.arrays[name]
+
+  def _load_array(self, name, dtype, shape, order):
+    info = self.zf.getinfo(name)
+    if self.mmap_mode is None:
+      return np.frombuffer(bytearray(self.zf.read(info)), dtype=dtype).reshape(shape, order=order)
+    if info.compress_type != zipfile.ZIP_STORED:
+      raise ValueError(f'Invalid model file, compressed array {name}')
+    self.zf.fp.seek(info.header_offset)
+    header = self.zf.fp.read(zipfile.sizeFileHeader)
+    name_length, extra_length = struct.unpack('<HH', header[26:30])
+    offset = info.header_offset + zipfile.sizeFileHeader + name_length + extra_length
+    mapped = np.memmap(self.path, dtype=dtype, mode=self.mmap_mode, offset=offset, shape=shape, order=order)
+    return mapped.view(np.ndarray)
+
+
+def save_model(model, path, columns=None):
   """
   Saves a model to a file.
 
   Args:
     model (:obj:`sklearn.base.BaseEstimator`): The model to save.
     path (:obj:`str`): The path of the file to save the model to.
+    columns (:obj:`list` of :obj:`str`, optional): The names of the descriptor values the model
+      has been estimated on (see :func:`load_columns`). Defaults to ``None`` (not recorded).
   Returns:
     :obj:`int`: The number of bytes written to the file.
+
+  If the model is an ensemble of trees supported by :func:`export_tree_ensemble`, the
+  exported ensemble is saved with it, so that the Java library can use the model directly
+  (see :func:`jp2rt.java.compute_and_predict`); the model is saved anyway if it can't be
+  exported.
+
+  The numeric arrays of the model larger than :data:`MIN_MAPPED_BYTES` are stored apart
+  from the (compressed) pickled model, uncompressed and aligned to :data:`ARRAY_ALIGNMENT`
+  bytes, so that :func:`load_model` can memory map them.
+
+  The file is written in full under a temporary name and then renamed, so that an existing
+  file is replaced only once the model has been saved, and processes that have loaded (and
+  hence memory mapped) the previous file are not affected.
   """
   if not isinstance(path, Path):
     path = Path(path)
-  mbuf = io.BytesIO()
-  joblib.dump(model, mbuf)
-  mbuf.flush()
-  zbuf = io.BytesIO()
-  with zipfile.ZipFile(zbuf, 'a', zipfile.ZIP_DEFLATED, True) as ouf:
-    ouf.writestr(f'{path.stem}/MANIFEST.txt', MANIFEST.encode('utf-8'))
-    ouf.writestr(f'{path.stem}/model.joblib', mbuf.getvalue())
-  return path.with_suffix('.jp2rt').write_bytes(zbuf.getvalue())
+  try:
+    trees = export_tree_ensemble(model, columns)
+  except Exception:  # the export is optional, and must not prevent saving the model
+    trees = None
+  dst = path.with_suffix('.jp2rt')
+  # the model is written to a temporary file then renamed, so that a failure does not leave a
+  # broken file, and processes that have memory mapped the previous file keep reading it
+  fd, tmp = tempfile.mkstemp(prefix=f'.{dst.name}.', dir=dst.parent)
+  try:
+    with os.fdopen(fd, 'wb') as raw, zipfile.ZipFile(raw, 'w', zipfile.ZIP_DEFLATED, True) as ouf:
+      ouf.writestr(f'{path.stem}/MANIFEST.txt', MANIFEST.encode('utf-8'))
+      mbuf = io.BytesIO()
+      _ModelPickler(mbuf, ouf, path.stem).dump(model)
+      ouf.writestr(f'{path.stem}/{MODEL_ENTRY}', mbuf.getvalue())
+      if columns is not None:
+        ouf.writestr(f'{path.stem}/columns.txt', ''.join(f'{c}\n' for c in columns).encode('utf-8'))
+      if trees is not None:
+        ouf.writestr(f'{path.stem}/{TREES_ENTRY}', trees)
+    os.chmod(tmp, 0o666 & ~_umask())
+    os.replace(tmp, dst)
+  except BaseException:
+    Path(tmp).unlink(missing_ok=True)
+    raise
+  return dst.stat().st_size
+
 
+def _umask():
+  """Returns the current umask (that can't be read without setting it)."""
+  umask = os.umask(0)
+  os.umask(umask)
+  return umask
 
-def load_model(path):
+
+def load_model(path, mmap_mode='r'):
   """
   Loads a model from a file.
 
   Args:
     path (:obj:`str`): The path of the file to load the model from.
+    mmap_mode (:obj:`str`, optional): How the arrays stored apart from the pickled model (see
+      :func:`save_model`) are memory mapped, as in :class:`numpy.memmap`; ``'r'`` maps them
+      read only (so that processes loading the same model share their pages), ``'c'`` maps
+      them copy on write, and ``None`` reads them in memory. Defaults to ``'r'``.
   Returns:
     :obj:`sklearn.base.BaseEstimator`: The loaded model.
+
+  Models saved by previous versions (whose manifest version is 1.0) are read in memory.
   """
   if not isinstance(path, Path):
     path = Path(path)
-  zbuf = io.BytesIO(path.with_suffix('.jp2rt').read_bytes())
-  with zipfile.ZipFile(zbuf, 'r') as inf:
+  src = path.with_suffix('.jp2rt')
+  with zipfile.ZipFile(src, 'r') as inf:
     manifest = inf.read(f'{path.stem}/MANIFEST.txt').decode('utf-8')
-    with inf.open(f'{path.stem}/model.joblib') as mbuf:
-      model = joblib.load(mbuf)
-  manifest = dict(line.strip().split(': ') for line in manifest.splitlines() if line)
-  if 'Manifest-Version' not in manifest:
-    raise ValueError('Invalid model file, manifest missing Manifest-Version')
-  if parse(manifest['Manifest-Version']) > MANIFEST_VERSION:
-    raise ValueError('Invalid model file, manifest version too high')
-  if 'JP2RT-Version' not in manifest:
-    raise ValueError('Invalid model file, manifest missing JP2RT-Version')
-  if parse(manifest['JP2RT-Version']) > JP2RT_VERSION:
-    raise ValueError('Invalid model file, jp2rt version too high')
-  return model
+    manifest = dict(line.strip().split(': ') for line in manifest.splitlines() if line)
+    if 'Manifest-Version' not in manifest:
+      raise ValueError('Invalid model file, manifest missing Manifest-Version')
+    if parse(manifest['Manifest-Version']) > MANIFEST_VERSION:
+      raise ValueError('Invalid model file, manifest version too high')
+    if 'JP2RT-Version' not in manifest:
+      raise ValueError('Invalid model file, manifest missing JP2RT-Version')
+    if parse(manifest['JP2RT-Version']) > JP2RT_VERSION:
+      raise ValueError('Invalid model file, jp2rt version too high')
+    if f'{path.stem}/{MODEL_ENTRY}' not in inf.namelist():
+      with inf.open(f'{path.stem}/model.joblib') as mbuf:
+        return joblib.load(mbuf)
+    mbuf = io.BytesIO(inf.read(f'{path.stem}/{MODEL_ENTRY}'))
+    return _ModelUnpickler(mbuf, inf, src, mmap_mode).load()
+
+
+def load_model_columns(path):
+  """
+  Loads the names of the descriptor values a model has been estimated on.
+
+  Args:
+    path (:obj:`str`): The path of the model file.
+  Returns:
+    :obj:`list` of :obj:`str`: The names of the descriptor values, or ``None`` if they have
+    not been recorded with the model.
+  """
+  if not isinstance(path, Path):
+    path = Path(path)
+  with zipfile.ZipFile(path.with_suffix('.jp2rt'), 'r') as inf:
+    try:
+      columns = inf.read(f'{path.stem}/columns.txt').decode('utf-8')
+    except KeyError:
+      return None
+  return columns.splitlines()
+
+
+def has_tree_ensemble(path):
+  """
+  Returns whether a model file contains an exported ensemble of trees.
+
+  Args:
+    path (:obj:`str`): The path of the model file.
+  Returns:
+    :obj:`bool`: ``True`` if the model has been saved along with its exported trees (see
+    :func:`export_tree_ensemble`).
+  """
+  if not isinstance(path, Path):
+    path = Path(path)
+  with zipfile.ZipFile(path.with_suffix('.jp2rt'), 'r') as inf:
+    return f'{path.stem}/{TREES_ENTRY}' in inf.namelist()
+
+
+def _tree_preprocessing(steps, n_features):
+  """Returns the used columns, filling values, means and scales of the preprocessing steps."""
+  kept = np.arange(n_features)
+  fill = np.full(n_features, np.nan)
+  mean, scale = np.zeros(n_features), np.ones(n_features)
+  kinds = (ColumnTransformer, SimpleImputer, StandardScaler)
+  seen = 0
+  for step in steps:
+    pos = next((i for i, kind in enumerate(kinds) if isinstance(step, kind)), -1)
+    if pos < seen:  # every step at most once, and in the order of the estimated models
+      raise ValueError(f'Unsupported preprocessing step: {step}')
+    seen = pos + 1
+    if isinstance(step, ColumnTransformer):
+      passthrough = []
+      for _, transformer, cols in step.transformers_:
+        if isinstance(transformer, str) and transformer == 'passthrough':
+          passthrough.extend(np.arange(n_features)[cols].tolist())
+        elif not (isinstance(transformer, str) and transformer == 'drop'):
+          raise ValueError(f'Unsupported column transformer: {transformer}')
+      kept, fill = kept[passthrough], fill[passthrough]
+      mean, scale = mean[passthrough], scale[passthrough]
+    elif isinstance(step, SimpleImputer):
+      missing = step.missing_values
+      if step.strategy == 'constant' or not (isinstance(missing, float) and np.isnan(missing)):
+        raise ValueError('Just imputers of missing (NaN) values with statistics are supported')
+      if np.isnan(step.statistics_).any():
+        raise ValueError('Unsupported imputer, some features are dropped')
+      fill = step.statistics_
+    else:
+      if step.with_mean:
+        mean = step.mean_
+      if step.with_std:
+        scale = step.scale_
+  return kept, fill, mean, scale
+
+
+def export_tree_ensemble(model, columns=None):
+  """Exports an ensemble of trees in the flat format evaluated by the Java library.
+
+  The supported models are the ones estimated by :func:`simple_ensemble_model_estimate`
+  with the ``RandomForest``, ``ExtraTrees`` and ``GradientBoosting`` regressors (that is,
+  pipelines made of the supported preprocessing steps followed by the regressor, and
+  gradient boosting starting from a constant prediction); the exported ensemble evaluates
+  the whole pipeline, and its predictions agree with the ones of the model up to floating
+  point rounding (the trees are summed in a possibly different order).
+
+  Args:
+    model (:obj:`sklearn.base.BaseEstimator`): The model to export.
+    columns (:obj:`list` of :obj:`str`, optional): The names of the descriptor values the model
+      has been estimated on. Defaults to ``None`` (not recorded).
+  Returns:
+    :obj:`bytes`: The exported ensemble (see the ``TreeEnsemble`` Java class for the format).
+  Raises:
+    ValueError: If the model is not a supported ensemble of trees.
+  """
+  steps = [step for _, step in model.steps] if hasattr(model, 'steps') else [model]
+  regressor = steps[-1]
+  averaging = (
+    ENSEMBLE_REGRESSOR_MODULE.RandomForestRegressor,
+    ENSEMBLE_REGRESSOR_MODULE.ExtraTreesRegressor,
+  )
+  if isinstance(regressor, averaging):
+    kind, base, learning_rate = 0, 0.0, 1.0
+    trees = [estimator.tree_ for estimator in regressor.estimators_]
+  elif isinstance(regressor, ENSEMBLE_REGRESSOR_MODULE.GradientBoostingRegressor):
+    kind, learning_rate = 1, regressor.learning_rate
+    if isinstance(regressor.init_, str) and regressor.init_ == 'zero':
+      base = 0.0
+    elif isinstance(regressor.init_, DummyRegressor):
+      base = float(np.ravel(regressor.init_.constant_)[0])
+    else:
+      raise ValueError(f'Unsupported initial estimator: {type(regressor.init_).__name__}')
+    trees = [estimator.tree_ for estimator in regressor.estimators_[:, 0]]
+  else:
+    raise ValueError(f'Unsupported regressor: {type(regressor).__name__}')
+  n_features = steps[0].n_features_in_
+  if columns is not None and len(columns) != n_features:
+    raise ValueError(f'The model expects {n_features} values, not {len(columns)}')
+  kept, fill, mean, scale = _tree_preprocessing(steps[:-1], n_features)
+  if regressor.n_features_in_ != len(kept):
+    raise ValueError('The preprocessing steps do not match the regressor')
+  roots = np.cumsum([0] + [tree.node_count for tree in trees])
+
+  def nodes(f, dtype):
+    return np.concatenate([f(t, r) for t, r in zip(trees, roots)]).astype(dtype).tobytes()
+
+  def child(children):
+    return lambda t, r: np.where(t.children_left == -1, 0, getattr(t, children) + r)
+
+  names = [c.encode('utf-8') for c in columns or []]
+  return b''.join(
+    [
+      TREES_MAGIC,
+      struct.pack('<i', len(names)),
+      *(struct.pack('<i', len(name)) + name for name in names),
+      struct.pack('<ii', n_features, len(kept)),
+      kept.astype('<i4').tobytes(),
+      *(np.asarray(a).astype('<f8').tobytes() for a in (fill, mean, scale)),
+      struct.pack('<idd', kind, base, learning_rate),
+      struct.pack('<i', len(trees)),
+      roots[:-1].astype('<i4').tobytes(),
+      struct.pack('<i', roots[-1]),
+      nodes(lambda t, _: np.where(t.children_left == -1, -1, t.feature), '<i4'),
+      nodes(lambda t, _: t.threshold, '<f8'),
+      nodes(child('children_left'), '<i4'),
+      nodes(child('children_right'), '<i4'),
+      nodes(lambda t, _: t.value.reshape(t.node_count), '<f8'),
+    ]
+  )
+
+
+def load_columns(path):
+  """Loads the names of the descriptor values of a descriptors file.
+
+  The names are read from the file, written by the Java library along with the
+  descriptors, having the path of the descriptors file followed by the ``.columns``
+  extension.
+
+  Args:
+    path (:obj:`str`): The path of the descriptors file.
+
+  Returns:
+    :obj:`list` of :obj:`str`: the names of the descriptor values, or ``None`` if the
+    column layout file does not exist.
+  """
+  path = Path(str(path) + COLUMNS_SUFFIX)
+  if not path.exists():
+    return None
+  return path.read_text(encoding='utf-8').splitlines()
+
+
+def select_columns(X, columns, selection):
+  """Selects (and reorders) the columns of a descriptor matrix by name.
+
+  Args:
+    X (:obj:`numpy.array`): The descriptor values.
+    columns (:obj:`list` of :obj:`str`): The names of the columns of ``X``.
+    selection (:obj:`list` of :obj:`str`): The names of the columns to select.
+
+  Returns:
+    :obj:`numpy.array`: the selected descriptor values.
+  """
+  index = {c: i for i, c in enumerate(columns)}
+  missing = [c for c in selection if c not in index]
+  if missing:
+    raise ValueError(f'Missing descriptor values: {", ".join(missing)}')
+  selected = [index[c] for c in selection]
+  if selected == list(range(X.shape[1])):
+    return X
+  return X[:, selected]
+
+
+def rows_path(path):
+  """Returns the path of the tab separated file containing the non descriptor fields.
+
+  For descriptors stored in binary (``.npy``) format, the other fields of every row
+  (that is, the fields preceding the descriptors, SMILES included) are stored in a
+  *sidecar* tab separated file; for descriptors stored in tab separated format, this
+  is the file itself.
+
+  Args:
+    path (:obj:`str`): The path of the descriptors file.
+
+  Returns:
+    :obj:`pathlib.Path`: the path of the file containing the non descriptor fields.
+  """
+  path = Path(path)
+  if path.suffix == NPY_SUFFIX:
+    return path.with_suffix(NPY_SIDECAR_SUFFIX)
+  return path
+
+
+def open_text(path):
+  """Opens a text file for reading, decompressing it if it has the ``.gz`` extension.
+
+  Args:
+    path (:obj:`str`): The path of the file.
+
+  Returns:
+    :obj:`io.TextIOBase`: the opened file.
+  """
+  if Path(path).suffix == GZIP_SUFFIX:
+    return gzip.open(path, 'rt', encoding='utf-8')
+  return open(path, encoding='utf-8')
 
 
 def load_retention_times(path):
   """Loads retention times values from a file and returns them as a numpy array.
 
   The input file must be in tab separated format, must not have an header, and the
-  retention time must be the first field on every row.
+  retention time must be the first field on every row; if the file has the ``.npy``
+  extension the retention times are read from its sidecar file (see :func:`rows_path`).
 
   Args:
     path (:obj:`str`): The path of the tab separated file to read.
@@ -91,7 +452,7 @@ def load_retention_times(path):
   Returns:
     :obj:`numpy.array`: the retention times values.
   """
-  return np.genfromtxt(path, delimiter='\t', comments=None, usecols=(0,))
+  return np.genfromtxt(rows_path(path), delimiter='\t', comments=None, usecols=(0,))
 
 
 def load_descriptors(path):
@@ -99,7 +460,11 @@ def load_descriptors(path):
 
   The input file must be in tab separated format, must not have an header, and the
   descriptors must be the last fields of every row and must be preceded by a non
-  numeric field (for instance a SMILES) on every row.
+  numeric field (for instance a SMILES) on every row; the file is decompressed if it
+  has the ``.gz`` extension.
+
+  If the file has the ``.npy`` extension it is assumed to be written by the Java
+  library in binary format and it is memory mapped (read only) without any parsing.
 
   Args:
     path (:obj:`str`): The path of the tab separated file to read.
@@ -107,16 +472,136 @@ def load_descriptors(path):
   Returns:
     :obj:`numpy.array`: the descriptor values.
   """
-  with open(path) as inf:
+  if Path(path).suffix == NPY_SUFFIX:
+    return np.load(path, mmap_mode='r')
+  with open_text(path) as inf:
     first_line = inf.readline()
-  fields = first_line.split('\t')
-  n_fields = len(fields)
+  n_fields = len(first_line.split('\t'))
+  n_descriptors = count_descriptors(first_line)
+  return np.genfromtxt(path, delimiter='\t', comments=None, usecols=range(n_fields - n_descriptors, n_fields))
+
+
+def count_descriptors(line):
+  """Returns the number of descriptor values of a line of a descriptors file.
+
+  Args:
+    line (:obj:`str`): A line of a tab separated descriptors file (see :func:`load_descriptors`).
+
+  Returns:
+    :obj:`int`: the number of numeric fields at the end of the line (the first field of the
+    line is never counted).
+  """
+  fields = line.rstrip('\n').split('\t')
   for n_descriptors, field in enumerate(reversed(fields)):  # noqa: B007
     try:
       float(field)
     except ValueError:
-      break
-  return np.genfromtxt(path, delimiter='\t', comments=None, usecols=range(n_fields - n_descriptors, n_fields))
+      return n_descriptors
+  return len(fields) - 1
+
+
+class _ChunkPredictor:
+  """Predicts the retention times of the chunks of lines of a descriptors file."""
+
+  def __init__(self, model, src):
+    self.model = load_model(model)
+    self.model_columns = load_model_columns(model)
+    self.columns = load_columns(src)
+    self.X = load_descriptors(src) if Path(src).suffix == NPY_SUFFIX else None
+
+  def __call__(self, start, lines):
+    if self.X is not None:
+      X = self.X[start : start + len(lines)]
+    else:
+      n_descriptors = count_descriptors(lines[0])
+      X = np.array([line.rstrip('\n').split('\t')[-n_descriptors:] for line in lines], dtype=np.float64)
+    if self.model_columns is not None and self.columns is not None:
+      X = select_columns(X, self.columns, self.model_columns)
+    return self.model.predict(X)
+
+
+_predictor = None
+
+
+def _init_predictor(model, src):
+  global _predictor  # noqa: PLW0603
+  _predictor = _ChunkPredictor(model, src)
+
+
+def _set_predictor(predictor):
+  global _predictor  # noqa: PLW0603
+  _predictor = predictor
+
+
+def _predict_chunk(start, lines):
+  return _predictor(start, lines)
+
+
+def predict_file(model, src, dst, chunk_size=DEFAULT_CHUNK_SIZE, n_jobs=1):
+  """Predicts the retention times of the molecules of a descriptors file.
+
+  The file is read (just once) in chunks of lines, every chunk is parsed, predicted and
+  appended to the output before the next one is read, so that the memory used does not
+  depend on the size of the file. Every line of the output contains the predicted
+  retention time, followed by the corresponding line of ``src`` (or of its sidecar file,
+  see :func:`rows_path`).
+
+  If both the model and ``src`` record the names of their descriptor values, just the
+  values used by the model are selected from ``src``.
+
+  Args:
+    model (:obj:`str`): The path of the model file.
+    src (:obj:`str`): The path of the descriptors file (see :func:`load_descriptors`).
+    dst (:obj:`str`): The path of the tab separated output file.
+    chunk_size (:obj:`int`, optional): The number of lines of every chunk. Defaults to
+      :data:`DEFAULT_CHUNK_SIZE`.
+    n_jobs (:obj:`int`, optional): The number of processes predicting the chunks in parallel;
+      where processes can be forked, the model is loaded once by the calling process and
+      inherited by the others (sharing its memory), otherwise every process loads the model,
+      sharing just its memory mapped arrays (see :func:`load_model`). At most two chunks per
+      process are kept in memory, and the output preserves the order of the input. Defaults
+      to 1 (the chunks are predicted by the calling process).
+
+  Returns:
+    :obj:`int`: the number of predicted molecules.
+  """
+  n_rows = 0
+  with open_text(rows_path(src)) as inf, open(dst, 'w') as ouf:
+
+    def chunks():
+      start = 0
+      while lines := list(islice(inf, chunk_size)):
+        yield start, lines
+        start += len(lines)
+
+    def write(lines, y):
+      nonlocal n_rows
+      for line, rt in zip(lines, y, strict=True):
+        ouf.write(f'{rt}\t{line}')
+      n_rows += len(lines)
+
+    if n_jobs == 1:
+      predictor = _ChunkPredictor(model, src)
+      for start, lines in chunks():
+        write(lines, predictor(start, lines))
+      return n_rows
+    if 'fork' in multiprocessing.get_all_start_methods():
+      # the arguments of the initializer of forked processes are inherited, not pickled
+      context = multiprocessing.get_context('fork')
+      initializer, initargs = _set_predictor, (_ChunkPredictor(model, src),)
+    else:
+      context, initializer, initargs = None, _init_predictor, (model, src)
+    with ProcessPoolExecutor(n_jobs, context, initializer, initargs) as executor:
+      pending = deque()
+      for start, lines in chunks():
+        if len(pending) == 2 * n_jobs:
+          done, future = pending.popleft()
+          write(done, future.result())
+        pending.append((lines, executor.submit(_predict_chunk, start, lines)))
+      while pending:
+        lines, future = pending.popleft()
+        write(lines, future.result())
+  return n_rows
 
 
 def list_ensemble_models():
@@ -133,16 +618,15 @@ def list_ensemble_models():
   return sorted(res)
 
 
-def simple_ensemble_model_estimate(regressor_name, X, y):
+def simple_ensemble_model(regressor_name, X):
   """
-  Trains a simple ensemble model using the given regressor and the input data.
+  Builds (without training it) a simple ensemble model using the given regressor.
 
   Args:
     regressor_name (:obj:`str`): The name of the regressor to use.
-    X (:obj:`numpy.array`): The input data.
-    y (:obj:`numpy.array`): The target values.
+    X (:obj:`numpy.array`): The input data (used to find the columns that are entirely NaN).
   Returns:
-    :obj:`sklearn.base.BaseEstimator`: The trained model.
+    :obj:`sklearn.base.BaseEstimator`: The model.
   """
   if regressor_name not in list_ensemble_models():
     raise ValueError(f'Invalid regressor name: {regressor_name}')
@@ -151,26 +635,63 @@ def simple_ensemble_model_estimate(regressor_name, X, y):
   drop_all_nan_cols = ColumnTransformer([('drop_all_nan_cols', 'drop', all_nan_cols)], remainder='passthrough')
   imputer = SimpleImputer(strategy='mean')
   scaler = StandardScaler()
-  model = make_pipeline(drop_all_nan_cols, imputer, scaler, regressor)
+  return make_pipeline(drop_all_nan_cols, imputer, scaler, regressor)
+
+
+def simple_ensemble_model_estimate(regressor_name, X, y):
+  """
+  Trains a simple ensemble model using the given regressor and the input data.
+
+  Args:
+    regressor_name (:obj:`str`): The name of the regressor to use.
+    X (:obj:`numpy.array`): The input data.
+    y (:obj:`numpy.array`): The target values.
+  Returns:
+    :obj:`sklearn.base.BaseEstimator`: The trained model.
+  """
+  model = simple_ensemble_model(regressor_name, X)
   model.fit(X, y)
   return model
 
 
-def evaluate_model(model, X, y, n_splits=5, prob=0.95):
+def _fit(model, X, y, train, test):
+  # the fold models are not returned, to avoid pickling them back from the workers
+  fitted = clone(model).fit(X[train], y[train])
+  return fitted if test is None else fitted.predict(X[test])
+
+
+def evaluate_model(model, X, y, n_splits=5, prob=0.95, n_jobs=-1, refit=False):
   """Evaluates a model using cross validation and visual inspection.
 
+  Every fold is fitted once (on a copy of the model, that is hence left untouched), and both
+  the scores and the (out of fold) predictions used for the plots are obtained from the
+  fitted fold models.
+
   Args:
     model (:obj:`sklearn.base.BaseEstimator`): The model to evaluate.
     X (:obj:`numpy.array`): The input data.
     y (:obj:`numpy.array`): The target values.
     n_splits (:obj:`int`, optional): The number of splits to use for cross validation. Defaults to 5.
     prob (:obj:`float`, optional): The confidence interval to use for the residuals distribution plot. Defaults to 0.95.
+    n_jobs (:obj:`int`, optional): The number of folds fitted in parallel (as in :class:`joblib.Parallel`). Defaults to -1 (all the processors).
+    refit (:obj:`bool`, optional): Whether to fit also a copy of the model on all the data, in parallel with the folds; the fitted model is returned as the ``model`` entry of the results. Defaults to ``False``.
 
   Returns:
     :obj:`dict`: A dictionary with the evaluation results.
   """
-  cv = cross_validate(model, X, y, cv=n_splits, n_jobs=-1, scoring=['neg_root_mean_squared_error', 'r2'])
-  y_pred = cross_val_predict(model, X, y, cv=n_splits, n_jobs=-1)
+  folds = list(KFold(n_splits).split(X, y))
+  if refit:
+    folds.append((np.arange(len(y)), None))
+  fits = joblib.Parallel(n_jobs=n_jobs)(joblib.delayed(_fit)(model, X, y, train, test) for train, test in folds)
+  y_pred = np.empty(len(y), dtype=np.float64)
+  r2, rmse = [], []
+  for (_, test), pred in zip(folds, fits):
+    if test is None:
+      continue
+    y_pred[test] = pred
+    r2.append(r2_score(y[test], pred))
+    rmse.append(root_mean_squared_error(y[test], pred))
+  r2, rmse = np.array(r2), np.array(rmse)
   residuals = y - y_pred
   q0, q1 = mquantiles(residuals, prob=[1 - prob, prob])
 
@@ -190,17 +711,20 @@ def evaluate_model(model, X, y, n_splits=5, prob=0.95):
     plt.tight_layout()
     plt.close(fig)  # to avid displaying it
   metrics = {
-    'r2 mean': cv['test_r2'].mean(),
-    'r2 std': cv['test_r2'].std(),
-    'rmse mean': -cv['test_neg_root_mean_squared_error'].mean(),
-    'rmse std': cv['test_neg_root_mean_squared_error'].std(),
+    'r2 mean': r2.mean(),
+    'r2 std': r2.std(),
+    'rmse mean': rmse.mean(),
+    'rmse std': rmse.std(),
     'q0': q0,
     'q1': q1,
   }
-  return {
+  res = {
     'args': {'n_splits': n_splits, 'prob': prob},
-    'details': {'r2': cv['test_r2'], 'rmse': -cv['test_neg_root_mean_squared_error']},
+    'details': {'r2': r2, 'rmse': rmse},
     'metrics': metrics,
     'plot': fig if HAS_PLOT else None,
     'table': tabulate(metrics.items(), tablefmt='outline', floatfmt='.4f'),
   }
+  if refit:
+    res['model'] = fits[-1]
+  return res
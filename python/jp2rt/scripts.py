@@ -1,19 +1,29 @@
 from json import dumps
 from pathlib import Path
+from tempfile import TemporaryDirectory
 
 import click
 
 from jp2rt import (
   add_descriptors_via_tsv,
+  compute_and_predict,
+  create_cds_archive,
   descriptors,
   evaluate_model,
+  export_tree_ensemble,
   list_ensemble_models,
+  load_columns,
   load_descriptors,
   load_model,
+  load_model_columns,
   load_retention_times,
+  merge_shards,
   save_model,
+  serve,
+  simple_ensemble_model,
   simple_ensemble_model_estimate,
 )
+from jp2rt.ml import DEFAULT_CHUNK_SIZE, TREES_SUFFIX, has_tree_ensemble, predict_file
 
 
 @click.group()
@@ -22,18 +32,135 @@ def cli():
 
 
 @click.command()
-@click.argument('src', type=click.Path(exists=True, resolve_path=True))
-@click.argument('dst', type=click.Path(writable=True, resolve_path=True))
-def compute_descriptors(src, dst):
+@click.option('--ordered', '-o', is_flag=True, help='Preserves the order of the lines of SRC.')
+@click.option(
+  '--threads',
+  '-t',
+  type=click.IntRange(min=1),
+  help='Number of threads computing the descriptors.',
+)
+@click.option(
+  '--batch-size',
+  type=click.IntRange(min=1),
+  help='Number of lines handed to a thread at once.',
+)
+@click.option(
+  '--longest-first',
+  is_flag=True,
+  help='Computes the most expensive molecules first (can not be used with --ordered).',
+)
+@click.option(
+  '--chunk-size',
+  type=click.IntRange(min=1),
+  help='Checkpoints the computation every given number of lines, so that it can be resumed.',
+)
+@click.option(
+  '--shard',
+  help='Computes just the I-th of N shards of SRC, given as I/N (see merge-shards).',
+)
+@click.option(
+  '--cache',
+  type=click.Path(file_okay=False, resolve_path=True),
+  help='Directory of a persistent cache of descriptor values.',
+)
+@click.option(
+  '--descriptors',
+  '-d',
+  'spec',
+  help='Comma separated names of the descriptors (or values) to compute, or @ followed by a file with a name per line.',
+)
+@click.option(
+  '--for-model',
+  '-m',
+  type=click.Path(exists=True, resolve_path=True),
+  help='Computes just the descriptor values needed by the given model.',
+)
+@click.option(
+  '--timeout',
+  type=click.IntRange(min=1),
+  help='Time budget (in milliseconds) for every descriptor of a molecule.',
+)
+@click.option(
+  '--molecule-timeout',
+  type=click.IntRange(min=1),
+  help='Time budget (in milliseconds) for all the descriptors of a molecule.',
+)
+@click.option('--metrics', is_flag=True, help='Prints per descriptor timing and failure metrics.')
+@click.option(
+  '--metrics-json',
+  type=click.Path(dir_okay=False, writable=True, resolve_path=True),
+  help='Writes per descriptor timing and failure metrics in JSON format to the given file.',
+)
+@click.option(
+  '--rejects',
+  type=click.Path(dir_okay=False, writable=True, resolve_path=True),
+  help='Records the failed descriptors and molecules in the given tab separated values file (appending to it when resuming a computation in chunks).',
+)
+@click.argument('src', type=click.Path(exists=True, allow_dash=True, resolve_path=True))
+@click.argument('dst', type=click.Path(writable=True, allow_dash=True, resolve_path=True))
+def compute_descriptors(
+  ordered,
+  threads,
+  batch_size,
+  longest_first,
+  chunk_size,
+  shard,
+  cache,
+  spec,
+  for_model,
+  timeout,
+  molecule_timeout,
+  metrics,
+  metrics_json,
+  rejects,
+  src,
+  dst,
+):
   """Computes molecular descriptions.
 
   Reads a tab separated values file with SMILES and producing another tab separated values file appending molecular descriptor values.
 
+  If DST has the .npy extension, the descriptor values are written in binary (NumPy) format, and the columns of SRC are written to a sidecar file with the .smiles.tsv extension.
+
+  The names of the computed values are written, one per line, to a file with the path of DST followed by the .columns extension.
+
+  If --chunk-size is given, every completed chunk of lines is saved in a directory with the path of DST followed by the .parts extension; if the computation is interrupted, running it again with the same arguments skips the completed chunks.
+
+  SRC and DST can be - to read from the standard input and write to the standard output; gzip compressed input is detected automatically, and DST is compressed if it has the .gz extension.
+
   \b
   SRC   The source tab separated values file (must contain SMILES on the last column).
   DST   The destination tab separated values file (will have the same columns of SRC, followed by molecular descriptor values).
   """  # noqa: E501
-  add_descriptors_via_tsv(src, dst)
+  selection = None
+  if spec is not None and for_model is not None:
+    raise click.UsageError('At most one of --descriptors and --for-model can be given.')
+  if spec is not None:
+    if spec.startswith('@'):
+      selection = Path(spec[1:]).read_text(encoding='utf-8').split()
+    else:
+      selection = [d.strip() for d in spec.split(',') if d.strip()]
+  if for_model is not None:
+    selection = load_model_columns(for_model)
+    if selection is None:
+      raise click.UsageError(f'The model {for_model} does not record its descriptor values.')
+  add_descriptors_via_tsv(
+    src,
+    dst,
+    ordered,
+    cache,
+    selection,
+    timeout,
+    molecule_timeout,
+    metrics,
+    metrics_json,
+    threads=threads,
+    batch_size=batch_size,
+    chunk_size=chunk_size,
+    shard=shard,
+    longest_first=longest_first,
+    rejects=rejects,
+  )
 
 
 @click.command()
@@ -52,52 +179,141 @@ def list_descriptors(json):
 
 
 @click.command()
+@click.option(
+  '--chunk-size',
+  type=click.IntRange(min=1),
+  default=DEFAULT_CHUNK_SIZE,
+  show_default=True,
+  help='Number of lines of SRC read, predicted and written at once.',
+)
+@click.option(
+  '--jobs',
+  '-j',
+  type=click.IntRange(min=1),
+  default=1,
+  show_default=True,
+  help='Number of processes predicting the chunks in parallel.',
+)
 @click.argument('model', type=click.Path(exists=True, resolve_path=True))
 @click.argument('src', type=click.Path(exists=True, resolve_path=True))
 @click.argument('dst', type=click.Path(writable=True, resolve_path=True))
-def predict_rt(model, src, dst):
+def predict_rt(chunk_size, jobs, model, src, dst):
   """Uses the model to predict the retention time.
 
   Given a tab separated values containing the molecular descriptors and a model, produces another tab separated values file prepending the predicted value.
 
   \b
   MODEL The model file.
-  SRC   The source tab separated values file (the molecular descriptors must be on the last columns).
+  SRC   The source tab separated values file (the molecular descriptors must be on the last columns), or binary .npy file.
   DST   The destination tab separated values file (will have the predicted retention time, followed by the same columns of SRC).
+
+  If both the model and SRC record the names of their descriptor values, just the values used by the model are selected from SRC.
+
+  SRC is read and predicted in chunks, so that the memory used does not depend on its size.
   """  # noqa: E501
-  model = load_model(model)
-  X = load_descriptors(src)
-  click.echo(f'Read {X.shape[0]} molecules with {X.shape[1]} descriptor values each...')
-  y = model.predict(X)
-  with open(src) as inf, open(dst, 'w') as ouf:
-    for line, rt in zip(inf, y, strict=True):
-      ouf.write(f'{rt}\t{line}')
-  click.echo(f'Predicted retention times written to {dst}...')
+  n_rows = predict_file(model, src, dst, chunk_size, jobs)
+  click.echo(f'Predicted retention times of {n_rows} molecules written to {dst}...')
+
+
+@click.command('compute-and-predict')
+@click.option('--ordered', '-o', is_flag=True, help='Preserves the order of the lines of SRC.')
+@click.option(
+  '--threads',
+  '-t',
+  type=click.IntRange(min=1),
+  help='Number of threads computing the descriptors.',
+)
+@click.option(
+  '--batch-size',
+  type=click.IntRange(min=1),
+  help='Number of lines handed to a thread at once.',
+)
+@click.option(
+  '--cache',
+  type=click.Path(file_okay=False, resolve_path=True),
+  help='Directory of a persistent cache of descriptor values.',
+)
+@click.option(
+  '--timeout',
+  type=click.IntRange(min=1),
+  help='Time budget (in milliseconds) for every descriptor of a molecule.',
+)
+@click.option(
+  '--molecule-timeout',
+  type=click.IntRange(min=1),
+  help='Time budget (in milliseconds) for all the descriptors of a molecule.',
+)
+@click.argument('model', type=click.Path(exists=True, resolve_path=True))
+@click.argument('src', type=click.Path(exists=True, allow_dash=True, resolve_path=True))
+@click.argument('dst', type=click.Path(writable=True, allow_dash=True, resolve_path=True))
+def compute_and_predict_rt(
+  ordered, threads, batch_size, cache, timeout, molecule_timeout, model, src, dst
+):
+  """Predicts the retention time directly from the SMILES.
+
+  Computes just the descriptor values needed by the model, and evaluates the model (that must be an ensemble of trees estimated with the RandomForest, ExtraTrees or GradientBoosting regressors) in the same process, without writing the descriptor values.
+
+  \b
+  MODEL The model file.
+  SRC   The source tab separated values file (must contain SMILES on the last column).
+  DST   The destination tab separated values file (will have the predicted retention time, followed by the same columns of SRC).
+  """  # noqa: E501
+  with TemporaryDirectory() as tmp:
+    if not has_tree_ensemble(model):  # saved by a previous version, the trees are exported now
+      trees = Path(tmp) / f'model{TREES_SUFFIX}'
+      try:
+        trees.write_bytes(export_tree_ensemble(load_model(model), load_model_columns(model)))
+      except ValueError as e:
+        raise click.UsageError(f'The model {model} can not be evaluated in Java: {e}') from e
+      model = trees
+    compute_and_predict(
+      model,
+      src,
+      dst,
+      ordered,
+      cache,
+      timeout,
+      molecule_timeout,
+      threads=threads,
+      batch_size=batch_size,
+    )
 
 
 @click.command()
 @click.option('--evaluate', '-e', is_flag=True, help='Evaluates the model using cross-validation.')
+@click.option(
+  '--jobs',
+  '-j',
+  type=click.IntRange(min=1),
+  help='Number of models fitted in parallel when evaluating (defaults to all the processors).',
+)
 @click.argument('name', type=click.STRING)
 @click.argument('src', type=click.Path(exists=True, resolve_path=True))
 @click.argument('dst', type=click.Path(writable=True, resolve_path=True))
-def estimate_model(evaluate, name, src, dst):
+def estimate_model(evaluate, jobs, name, src, dst):
   """Estimates a model using the given ensemble regressor.
 
   \b
   NAME  The ensemble regressor name.
   SRC   The source tab separated values file (the retention times must be on the first column, and molecular descriptors must be on the last columns).
   DST   The destination model file.
+
+  When evaluating, the cross-validation folds and the model saved to DST are fitted in parallel, each just once.
   """  # noqa: E501
   dst = Path(dst)
   X = load_descriptors(src)
   y = load_retention_times(src)
-  click.echo(f'Read {X.shape[0]} molecules with {X.shape[1]} descriptor values each\nEstimating model...')
-  model = simple_ensemble_model_estimate(name, X, y)
-  size = save_model(model, dst)
+  click.echo(f'Read {X.shape[0]} molecules with {X.shape[1]} descriptor values each')
+  if evaluate:
+    click.echo('Estimating and evaluating model...')
+    v = evaluate_model(simple_ensemble_model(name, X), X, y, n_jobs=-1 if jobs is None else jobs, refit=True)
+    model = v['model']
+  else:
+    click.echo('Estimating model...')
+    model = simple_ensemble_model_estimate(name, X, y)
+  size = save_model(model, dst, load_columns(src))
   click.echo(f'Model saved to {dst.with_suffix(".jp2rt")} ({size} bytes)...')
   if evaluate:
-    click.echo('Evaluating model...')
-    v = evaluate_model(model, X, y)
     click.echo(v['table'])
     pdst = dst.with_suffix('.png')
     plot = v['plot']
@@ -106,17 +322,76 @@ def estimate_model(evaluate, name, src, dst):
       click.echo(f'Evaluation plot saved to {pdst}')
 
 
+@click.command('merge-shards')
+@click.argument('dst', type=click.Path(writable=True, resolve_path=True))
+@click.argument('srcs', nargs=-1, required=True, type=click.Path(exists=True, resolve_path=True))
+def merge_shard_outputs(dst, srcs):
+  """Merges the outputs of the shards computed with compute-descriptors --shard.
+
+  Checks that all the shards are present, have been computed for the same input with the same column layout, and that no row is missing.
+
+  \b
+  DST   The merged file.
+  SRCS  The outputs of all the shards, in any order.
+  """  # noqa: E501
+  merge_shards(dst, srcs)
+
+
+@click.command('serve')
+@click.option(
+  '--threads',
+  '-t',
+  type=click.IntRange(min=1),
+  help='Number of threads computing the descriptors.',
+)
+@click.option(
+  '--descriptors',
+  '-d',
+  'spec',
+  help='Comma separated names of the descriptors (or values) to compute.',
+)
+@click.option(
+  '--timeout',
+  type=click.IntRange(min=1),
+  help='Time budget (in milliseconds) for every descriptor of a molecule.',
+)
+@click.argument('address')
+def serve_descriptors(threads, spec, timeout, address):
+  """Runs a resident descriptor server.
+
+  The server computes the descriptors of the batches of SMILES sent by the clients (see jp2rt.client.DescriptorClient), paying the start up cost just once; it runs until it is terminated.
+
+  \b
+  ADDRESS A port number (on the loopback interface), a host:port pair, or the path of a Unix domain socket.
+  """  # noqa: E501
+  selection = None if spec is None else [d.strip() for d in spec.split(',') if d.strip()]
+  serve(address, threads, selection, timeout)
+
+
+@click.command('create-cds-archive')
+def create_cds_archive_cmd():
+  """Create a class data sharing archive for the Java library.
+
+  The archive is used by the following commands to start the Java library faster; it must be created again if a different Java version is used.
+  """  # noqa: E501
+  click.echo(f'Created {create_cds_archive()}')
+
+
 @click.command()
 def list_models():
   "List the known ensemble models."
   click.echo('\n'.join(list_ensemble_models()))
 
 
+cli.add_command(compute_and_predict_rt)
 cli.add_command(compute_descriptors)
+cli.add_command(create_cds_archive_cmd)
 cli.add_command(estimate_model)
 cli.add_command(list_descriptors)
 cli.add_command(list_models)
+cli.add_command(merge_shard_outputs)
 cli.add_command(predict_rt)
+cli.add_command(serve_descriptors)
 
 if __name__ == '__main__':
   cli()
@@ -0,0 +1,66 @@
+import importlib.resources
+
+import jpype
+import numpy as np
+import pytest
+from sklearn.ensemble import GradientBoostingRegressor
+from sklearn.linear_model import LinearRegression
+
+from jp2rt.java import JavaLib
+from jp2rt.ml import (
+  export_tree_ensemble,
+  has_tree_ensemble,
+  load_model,
+  save_model,
+  simple_ensemble_model_estimate,
+)
+
+ROWS, FEATURES = 300, 8
+
+requires_java = pytest.mark.skipif(
+  not (importlib.resources.files('jp2rt') / 'lib.jar').is_file(),
+  reason='The Java library has not been built',
+)
+
+
+def _data():
+  rng = np.random.default_rng(0)
+  X = rng.normal(size=(ROWS, FEATURES))
+  y = X[:, 0] * 3 + np.sin(X[:, 1]) + X[:, 3] * X[:, 4] + rng.normal(scale=0.1, size=ROWS)
+  X[rng.random(X.shape) < 0.1] = np.nan  # filled by the imputer
+  X[:, 2] = np.nan  # dropped by the column transformer
+  return X, y
+
+
+def _predict(ensemble, X):
+  return np.array([ensemble.predict(jpype.JArray(jpype.JDouble)(row.tolist())) for row in X])
+
+
+@requires_java
+@pytest.mark.parametrize('regressor_name', ['RandomForest', 'ExtraTrees', 'GradientBoosting'])
+def test_exported_ensemble_predicts_as_the_model(regressor_name, tmp_path):
+  X, y = _data()
+  model = simple_ensemble_model_estimate(regressor_name, X[: ROWS // 2], y[: ROWS // 2])
+  X_test = X[ROWS // 2 :]
+  expected = model.predict(X_test)
+  path = tmp_path / 'model.jp2rt'
+  save_model(model, path)
+  assert has_tree_ensemble(path)
+  with JavaLib() as jl:
+    TreeEnsemble = jl('TreeEnsemble')
+    exported = TreeEnsemble.parse(jpype.JArray(jpype.JByte)(export_tree_ensemble(model)))
+    saved = TreeEnsemble.load(jl('java.nio.file.Paths').get(str(path)))
+    np.testing.assert_allclose(_predict(exported, X_test), expected, rtol=1e-9, atol=1e-9)
+    np.testing.assert_allclose(_predict(saved, X_test), expected, rtol=1e-9, atol=1e-9)
+
+
+def test_unsupported_models_are_saved_without_trees(tmp_path):
+  X, y = _data()
+  X = np.nan_to_num(X)
+  model = GradientBoostingRegressor(init=LinearRegression()).fit(X, y)
+  with pytest.raises(ValueError):
+    export_tree_ensemble(model)
+  path = tmp_path / 'model.jp2rt'
+  save_model(model, path)
+  assert not has_tree_ensemble(path)
+  np.testing.assert_array_equal(load_model(path).predict(X), model.predict(X))